@@ -0,0 +1,25 @@
+/**
+ * What a manager does with a save that would take its in-flight payloads
+ * over the memory budget.
+ *
+ * @author Jack Mead
+ */
+public enum JSMAdmission {
+
+	/**
+	 * The save waits, up to the block timeout, until enough payloads have been written
+	 */
+	BLOCK,
+
+	/**
+	 * The save fails right away
+	 */
+	FAIL,
+
+	/**
+	 * The save is staged in the spill directory on local disk without holding on to
+	 * its payload, and is placed on a database once the budget has room for it again
+	 */
+	SPILL
+
+}
@@ -0,0 +1,566 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Store of the deduplicated chunks of one database. Files are split with content defined
+ * chunking: a gear rolling hash over the last 64 bytes picks the cut points, so an edit
+ * only changes the chunks around it, and bytes inserted or removed do not shift every chunk
+ * after them like fixed size blocks would. Each chunk is named by its SHA-256 and stored once
+ * under the store's directory, however many files hold it, and each file is stored as a
+ * recipe listing its chunks. The chunks of a file are hashed in parallel on a fork join pool.
+ * <br />
+ * Reference counts are kept in memory and rebuilt from the recipes when the database is
+ * initialized, after which the chunks no recipe refers to, left by a write or a delete that
+ * never completed, are swept. A chunk is deleted once the last file holding it is deleted.
+ * <br />
+ * Recipe syntax is as follows, all integers big endian:
+ *
+ * magic (4) | file length (8) | chunk count (4)
+ * then per chunk: SHA-256 (32) | chunk length (4)
+ *
+ * @author Jack Mead
+ */
+public class JSMChunkStore {
+
+	/**
+	 * Codec name recorded in the index for files stored as recipes
+	 */
+	public static final String CODEC = "chunks";
+
+	/**
+	 * Directory of the store under the root of the database
+	 */
+	public static final String DIRECTORY = ".jsmchunks/";
+
+	private static final int MAGIC = 0x4A534D43; //JSMC
+	private static final int DIGEST_LENGTH = 32;
+
+	/**
+	 * Random value of each byte for the gear hash. Seeded, so the cut points of the
+	 * same bytes never change and new files keep deduplicating against old ones.
+	 */
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x4A534D);
+		for(int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private String directory;
+	private ForkJoinPool pool;
+	private int minSize;
+	private int averageSize;
+	private int maxSize;
+
+	/**
+	 * Cut masks used before and after the average size, harder then easier to match,
+	 * which keeps the chunk sizes close to the average
+	 */
+	private long strictMask;
+	private long looseMask;
+
+	private HashMap<Key, Chunk> chunks;
+	private long storedBytes;
+	private long fileBytes;
+
+	/**
+	 * @param directory - directory of the store, ending with '/'
+	 */
+	public JSMChunkStore(String directory) {
+		this(directory, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param directory - directory of the store, ending with '/'
+	 * @param pool - pool on which the chunks are hashed
+	 */
+	public JSMChunkStore(String directory, ForkJoinPool pool) {
+		this.directory = directory;
+		this.pool = pool;
+		this.chunks = new HashMap<Key, Chunk>();
+		this.storedBytes = 0;
+		this.fileBytes = 0;
+		this.setChunkSizes(16384, 65536, 262144);
+	}
+
+	/**
+	 * Sets the sizes chunks are cut at. Every chunk stored is its own file on the drive,
+	 * so smaller chunks find more duplicates but cost more files and more writes. Only
+	 * files chunked from then on are affected, and chunks cut at other sizes rarely match.
+	 * @param min - smallest chunk in bytes, except for the end of a file
+	 * @param average - targeted chunk size in bytes, rounded to a power of two
+	 * @param max - largest chunk in bytes
+	 */
+	public synchronized void setChunkSizes(int min, int average, int max) {
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(64, average) - 1);
+		this.averageSize = 1 << bits;
+		this.minSize = Math.max(64, Math.min(min, this.averageSize));
+		this.maxSize = Math.max(this.averageSize, max);
+		this.strictMask = -1L << (64 - Math.min(63, bits + 2));
+		this.looseMask = -1L << (64 - Math.max(1, bits - 2));
+	}
+
+	public synchronized int getAverageChunkSize() {
+		return this.averageSize;
+	}
+
+	public String getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * Splits a file into chunks and hashes them.
+	 * @param data - raw file data
+	 * @return recipe of the file, not yet holding any chunk.
+	 */
+	public Recipe split(byte[] data) {
+		int min, average, max;
+		long strict, loose;
+		synchronized(this) {
+			min = this.minSize;
+			average = this.averageSize;
+			max = this.maxSize;
+			strict = this.strictMask;
+			loose = this.looseMask;
+		}
+
+		ArrayList<Integer> cuts = new ArrayList<Integer>(data.length / average + 2);
+		int offset = 0;
+		while(offset < data.length) {
+			offset = cut(data, offset, min, average, max, strict, loose);
+			cuts.add(offset);
+		}
+
+		int count = cuts.size();
+		Recipe recipe = new Recipe(data.length, count);
+		ArrayList<ForkJoinTask<Key>> tasks = new ArrayList<ForkJoinTask<Key>>(count);
+		int from = 0;
+		for(int i = 0; i < count; i++) {
+			int start = from;
+			int length = cuts.get(i) - from;
+			recipe.offsets[i] = start;
+			recipe.lengths[i] = length;
+			if(count > 1) {
+				tasks.add(this.pool.submit(() -> digest(data, start, length)));
+			} else {
+				recipe.keys[i] = digest(data, start, length);
+			}
+			from += length;
+		}
+		for(int i = 0; i < tasks.size(); i++) {
+			recipe.keys[i] = tasks.get(i).join();
+		}
+		return recipe;
+	}
+
+	/**
+	 * Finds the end of the chunk starting at an offset.
+	 * @return offset of the first byte after the chunk.
+	 */
+	private static int cut(byte[] data, int from, int min, int average, int max, long strict, long loose) {
+		int left = data.length - from;
+		if(left <= min) { return data.length; }
+		int normal = Math.min(left, average);
+		int limit = Math.min(left, max);
+		long hash = 0;
+		int i = min;
+		for(; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[from + i] & 0xFF];
+			if((hash & strict) == 0) { return from + i + 1; }
+		}
+		for(; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data[from + i] & 0xFF];
+			if((hash & loose) == 0) { return from + i + 1; }
+		}
+		return from + limit;
+	}
+
+	private static Key digest(byte[] data, int from, int length) {
+		MessageDigest sha = SHA256.get();
+		sha.update(data, from, length);
+		return new Key(sha.digest());
+	}
+
+	/**
+	 * Takes a reference on every chunk of a file that is about to be written. Chunks not
+	 * in the store yet are added to it, and must be written by whoever claims them.
+	 * @param recipe - recipe returned by split()
+	 */
+	public synchronized void acquire(Recipe recipe) {
+		recipe.chunks = new Chunk[recipe.keys.length];
+		for(int i = 0; i < recipe.keys.length; i++) {
+			Chunk chunk = this.chunks.get(recipe.keys[i]);
+			if(chunk == null) {
+				chunk = new Chunk(recipe.keys[i], recipe.lengths[i], new CompletableFuture<Boolean>());
+				this.chunks.put(chunk.key, chunk);
+			}
+			chunk.references++;
+			recipe.chunks[i] = chunk;
+		}
+		this.fileBytes += recipe.length;
+	}
+
+	/**
+	 * Claims a chunk to write it. Exactly one of the files holding a new chunk
+	 * gets to write it, the others wait for it with await().
+	 * @return boolean indicating if the caller must write the chunk and then call stored().
+	 */
+	public synchronized boolean claim(Chunk chunk) {
+		if(chunk.claimed) { return false; }
+		chunk.claimed = true;
+		return true;
+	}
+
+	/**
+	 * Records whether a claimed chunk was written. A chunk that failed is dropped
+	 * from the store, so the next file holding the same bytes writes it again.
+	 * @param chunk - chunk claimed with claim()
+	 * @param written - boolean indicating if the chunk is on the drive under its name
+	 */
+	public void stored(Chunk chunk, boolean written) {
+		synchronized(this) {
+			if(written) {
+				this.storedBytes += chunk.length;
+			} else {
+				chunk.failed = true;
+				this.chunks.remove(chunk.key, chunk);
+			}
+		}
+		chunk.stored.complete(written);
+	}
+
+	/**
+	 * Waits for a chunk claimed by another writer to be written.
+	 * @return boolean indicating if the chunk is stored.
+	 */
+	public boolean await(Chunk chunk) {
+		return chunk.stored.join();
+	}
+
+	/**
+	 * Gives back the references of a file that was deleted or failed to be written,
+	 * and deletes the chunks no other file holds.
+	 * @param recipe - recipe the references were taken with, or read back from the drive
+	 * @return amount of bytes of chunks deleted.
+	 */
+	public synchronized long release(Recipe recipe) {
+		long freed = 0;
+		for(int i = 0; i < recipe.keys.length; i++) {
+			Chunk chunk = recipe.chunks == null ? this.chunks.get(recipe.keys[i]) : recipe.chunks[i];
+			if(chunk == null || --chunk.references > 0) { continue; }
+			if(!chunk.failed && this.chunks.remove(chunk.key, chunk) && chunk.stored.getNow(false)) {
+				try {
+					Files.deleteIfExists(Paths.get(this.getPath(chunk.key)));
+					this.storedBytes -= chunk.length;
+					freed += chunk.length;
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		recipe.chunks = null;
+		this.fileBytes -= recipe.length;
+		return freed;
+	}
+
+	/**
+	 * Counts the references of a file found on the drive when the database is initialized.
+	 * @param recipe - recipe read back from the drive
+	 */
+	public synchronized void reference(Recipe recipe) {
+		for(int i = 0; i < recipe.keys.length; i++) {
+			Chunk chunk = this.chunks.get(recipe.keys[i]);
+			if(chunk == null) {
+				chunk = new Chunk(recipe.keys[i], recipe.lengths[i], CompletableFuture.completedFuture(true));
+				chunk.claimed = true;
+				this.chunks.put(chunk.key, chunk);
+				this.storedBytes += chunk.length;
+			}
+			chunk.references++;
+		}
+		this.fileBytes += recipe.length;
+	}
+
+	/**
+	 * Deletes the chunks no file refers to and the chunks left under their temporary
+	 * name. Called once every recipe on the drive has been passed to reference().
+	 * @return amount of files deleted.
+	 */
+	public synchronized int sweep() {
+		File[] directories = new File(this.directory).listFiles(File::isDirectory);
+		if(directories == null) { return 0; }
+		int swept = 0;
+		for(File directory : directories) {
+			File[] files = directory.listFiles(File::isFile);
+			if(files == null) { continue; }
+			for(File file : files) {
+				Key key = Key.parse(file.getName());
+				if((key == null || !this.chunks.containsKey(key)) && file.delete()) {
+					swept++;
+				}
+			}
+		}
+		return swept;
+	}
+
+	/**
+	 * @return full path of the file holding a chunk.
+	 */
+	public String getPath(Chunk chunk) {
+		return this.getPath(chunk.key);
+	}
+
+	/**
+	 * @return full path of the file holding the chunk of a recipe.
+	 */
+	public String getPath(Recipe recipe, int index) {
+		return this.getPath(recipe.keys[index]);
+	}
+
+	private String getPath(Key key) {
+		String hex = key.toString();
+		return this.directory + hex.substring(0, 2) + "/" + hex;
+	}
+
+	/**
+	 * @return amount of unique chunks in the store.
+	 */
+	public synchronized int getChunks() {
+		return this.chunks.size();
+	}
+
+	/**
+	 * @return bytes of the chunks stored on the drive.
+	 */
+	public synchronized long getStoredBytes() {
+		return this.storedBytes;
+	}
+
+	/**
+	 * @return bytes of the files stored as recipes, as they were saved.
+	 */
+	public synchronized long getFileBytes() {
+		return this.fileBytes;
+	}
+
+	/**
+	 * @return bytes the files stored as recipes would take on the drive beyond their chunks.
+	 */
+	public synchronized long getSavedBytes() {
+		return this.fileBytes - this.storedBytes;
+	}
+
+	/**
+	 * @return boolean indicating if the data is a recipe.
+	 */
+	public static boolean isRecipe(byte[] data) {
+		return data != null && data.length >= 16 && ByteBuffer.wrap(data).getInt() == MAGIC;
+	}
+
+	/**
+	 * Chunks of one file, in order.
+	 */
+	public static class Recipe {
+		private long length;
+		private Key[] keys;
+		private int[] offsets;
+		private int[] lengths;
+
+		/**
+		 * Chunks referenced by acquire(), or null for a recipe read back from the drive
+		 */
+		private Chunk[] chunks;
+
+		private Recipe(long length, int count) {
+			this.length = length;
+			this.keys = new Key[count];
+			this.offsets = new int[count];
+			this.lengths = new int[count];
+			this.chunks = null;
+		}
+
+		/**
+		 * @return length of the file.
+		 */
+		public long getLength() {
+			return this.length;
+		}
+
+		/**
+		 * @return amount of chunks of the file.
+		 */
+		public int getCount() {
+			return this.keys.length;
+		}
+
+		/**
+		 * @return offset of a chunk in the file.
+		 */
+		public int getOffset(int index) {
+			return this.offsets[index];
+		}
+
+		/**
+		 * @return length of a chunk.
+		 */
+		public int getLength(int index) {
+			return this.lengths[index];
+		}
+
+		/**
+		 * @return chunk referenced by acquire().
+		 */
+		public Chunk getChunk(int index) {
+			return this.chunks[index];
+		}
+
+		/**
+		 * @return boolean indicating if the bytes are the chunk at an index.
+		 */
+		public boolean matches(int index, byte[] data) {
+			return data.length == this.lengths[index] && digest(data, 0, data.length).equals(this.keys[index]);
+		}
+
+		/**
+		 * @return the recipe as stored on the drive.
+		 */
+		public byte[] encode() {
+			ByteBuffer out = ByteBuffer.allocate(16 + this.keys.length * (DIGEST_LENGTH + 4));
+			out.putInt(MAGIC).putLong(this.length).putInt(this.keys.length);
+			for(int i = 0; i < this.keys.length; i++) {
+				out.put(this.keys[i].bytes).putInt(this.lengths[i]);
+			}
+			return out.array();
+		}
+
+		/**
+		 * Reads a recipe back from the drive.
+		 * @param data - recipe as stored by encode()
+		 * @return the recipe.
+		 * @throws IllegalArgumentException if the data is not a recipe.
+		 */
+		public static Recipe decode(byte[] data) {
+			ByteBuffer in = ByteBuffer.wrap(data);
+			if(!isRecipe(data)) {
+				throw new IllegalArgumentException("data is not a chunk recipe");
+			}
+			in.getInt();
+			long length = in.getLong();
+			int count = in.getInt();
+			if(count < 0 || in.remaining() != (long) count * (DIGEST_LENGTH + 4)) {
+				throw new IllegalArgumentException("truncated chunk recipe");
+			}
+			Recipe recipe = new Recipe(length, count);
+			long offset = 0;
+			for(int i = 0; i < count; i++) {
+				byte[] digest = new byte[DIGEST_LENGTH];
+				in.get(digest);
+				recipe.keys[i] = new Key(digest);
+				recipe.lengths[i] = in.getInt();
+				recipe.offsets[i] = (int) offset;
+				offset += recipe.lengths[i];
+			}
+			if(offset != length) {
+				throw new IllegalArgumentException("chunk lengths do not add up to the file length");
+			}
+			return recipe;
+		}
+	}
+
+	/**
+	 * A unique chunk of the store and the amount of files holding it
+	 */
+	public static class Chunk {
+		private Key key;
+		private int length;
+		private int references;
+		private boolean claimed;
+		private boolean failed;
+		private CompletableFuture<Boolean> stored;
+
+		private Chunk(Key key, int length, CompletableFuture<Boolean> stored) {
+			this.key = key;
+			this.length = length;
+			this.references = 0;
+			this.claimed = false;
+			this.failed = false;
+			this.stored = stored;
+		}
+
+		public int getLength() {
+			return this.length;
+		}
+	}
+
+	/**
+	 * SHA-256 of a chunk
+	 */
+	private static class Key {
+		private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+		private byte[] bytes;
+		private int hash;
+
+		private Key(byte[] bytes) {
+			this.bytes = bytes;
+			this.hash = ByteBuffer.wrap(bytes).getInt();
+		}
+
+		/**
+		 * @return key named by a hex string, or null if the name is not one.
+		 */
+		private static Key parse(String hex) {
+			if(hex.length() != DIGEST_LENGTH * 2) { return null; }
+			byte[] bytes = new byte[DIGEST_LENGTH];
+			for(int i = 0; i < bytes.length; i++) {
+				int high = Character.digit(hex.charAt(2 * i), 16);
+				int low = Character.digit(hex.charAt(2 * i + 1), 16);
+				if(high < 0 || low < 0) { return null; }
+				bytes[i] = (byte) ((high << 4) | low);
+			}
+			return new Key(bytes);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(this.bytes, ((Key) o).bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public String toString() {
+			char[] hex = new char[this.bytes.length * 2];
+			for(int i = 0; i < this.bytes.length; i++) {
+				hex[2 * i] = HEX[(this.bytes[i] >> 4) & 0xF];
+				hex[2 * i + 1] = HEX[this.bytes[i] & 0xF];
+			}
+			return new String(hex);
+		}
+	}
+
+}
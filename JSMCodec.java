@@ -0,0 +1,33 @@
+/**
+ * Encodes files before they are written to a database and decodes them when they
+ * are read back. The name of the codec used for each file is recorded in the
+ * database's index so the file can be decoded with the same codec later.
+ *
+ * @author Jack Mead
+ */
+public interface JSMCodec {
+
+	/**
+	 * Name recorded in the index for files encoded by this codec. Must not 
+	 * contain spaces or colons.
+	 * @return name of the codec.
+	 */
+	public String getName();
+
+	/**
+	 * Encodes the raw data of a file.
+	 * @param data - raw file data
+	 * @return encoded data, or null if encoding the data is not worthwhile,
+	 * in which case the file is stored as is.
+	 */
+	public byte[] encode(byte[] data);
+
+	/**
+	 * Decodes data that was encoded by this codec.
+	 * @param data - encoded file data
+	 * @return raw file data.
+	 * @throws IllegalArgumentException if the data was not encoded by this codec.
+	 */
+	public byte[] decode(byte[] data);
+
+}
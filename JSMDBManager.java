@@ -1,18 +1,41 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 import JSMParser;
 
@@ -32,10 +55,52 @@ import JSMParser;
  * <br />
  * @author Jack Mead
  */
-public class JSMDBManager extends Thread {
+public class JSMDBManager extends Thread implements JSMDeviceListener {
+	
+	/**
+	 * Milliseconds the restager waits before trying a staged save again
+	 */
+	private static final long SPILL_RETRY_MS = 100;
 	
 	private JSMParser parser;
 	
+	/**
+	 * Watches for usb devices being plugged in or pulled out so that
+	 * the databases can be updated as soon as it happens.
+	 */
+	private JSMDeviceWatcher watcher;
+	
+	/**
+	 * Lock the run() thread waits on between device scans. Set
+	 * deviceEventPending and notify it to force an immediate scan.
+	 */
+	private final Object deviceEventLock = new Object();
+	
+	private boolean deviceEventPending;
+	
+	/**
+	 * Milliseconds between device scans when no device event has occurred.
+	 */
+	private int deviceScanSpeed;
+	
+	/**
+	 * Runs the mounting and scanning of newly found drives so that
+	 * each drive is initialized in its own task.
+	 */
+	private ExecutorService initializers;
+	
+	/**
+	 * Runs the sends to nodes, the handling of their answers and the shard reads, apart
+	 * from the initializers. Shut down only once the databases are drained, so the saves
+	 * and reads still in flight during uninit() can finish.
+	 */
+	private ExecutorService fanout;
+	
+	/**
+	 * Devices that are currently being initialized by the initializers
+	 */
+	private HashSet<String> initializing;
+	
 	/**
 	 * List of databases that are being used
 	 */
@@ -104,15 +169,82 @@ public class JSMDBManager extends Thread {
 	private int maxDBs;
 	
 	/**
-	 * HashMap containing the file names residing 
-	 * in the default directory
+	 * Entries of the files residing in the default directory, 
+	 * sorted by name and by the time they were written
 	 */
-	private HashMap<String, String> filesInDefault;
+	private TreeMap<String, JSMIndexEntry> filesInDefault;
+	private TreeSet<JSMIndexEntry> defaultByTime;
 	
 	private int maxDatabaseWriters;
 	
 	private int databaseWriteSpeed;
 	
+	/**
+	 * Times a failed file is sent to another database before
+	 * being written to the default directory
+	 */
+	private int maxWriteRetries;
+	
+	/**
+	 * Whether or not the databases run their writers on virtual threads
+	 */
+	private boolean useVirtualThreads;
+	
+	/**
+	 * Codec the databases encode new files with, or null to store them as is
+	 */
+	private JSMCodec codec;
+	
+	/**
+	 * Bytes per second each database's scrubber may read, or 0 for no scrubbers
+	 */
+	private long scrubRate;
+	
+	private boolean verifyReads;
+	
+	private JSMDurability durability;
+	
+	private JSMWriteMode writeMode;
+	
+	private boolean deduplicate;
+	
+	/**
+	 * Whether or not the databases adjust their writers with a JSMWriteController,
+	 * and the bounds the controllers stay within
+	 */
+	private boolean adaptiveWriters;
+	
+	/**
+	 * Retention policy enforced on every database, or null to retire full drives
+	 */
+	private JSMRetentionPolicy retentionPolicy;
+	private JSMMemoryBudget memoryBudget;
+	
+	/**
+	 * Saves staged in the spill directory because they did not fit in the memory budget,
+	 * keyed by file name, and the ones of them still waiting to be placed on a database
+	 */
+	private HashMap<String, PendingSave> spilled;
+	private LinkedList<PendingSave> spillQueue;
+	private boolean restaging;
+	private JSMErasureCoder erasureCoder;
+	
+	/**
+	 * Erasure coded files stored with fewer shards than the coder makes
+	 */
+	private long degradedFiles;
+	private LinkedList<JSMStorageNode> nodes;
+	
+	/**
+	 * Databases passed to addDatabase(), whose directories are not mount directories
+	 */
+	private HashSet<JSMDatabase> addedDatabases;
+	private int nextNode;
+	private int minAdaptiveWriters;
+	private int maxAdaptiveWriters;
+	private int minAdaptiveSpeed;
+	private int maxAdaptiveSpeed;
+	
 	/**
 	 * Constructor for the manager. After calling a creating a new manager,
 	 * One should call setMaxDatabases(), setRootDBDirectory(), setInfoFileDirectory(),
@@ -121,7 +253,8 @@ public class JSMDBManager extends Thread {
 	 */
 	public JSMDBManager() {
 		databases = new LinkedList<JSMDatabase>();
-		filesInDefault = new HashMap<String, String>();
+		filesInDefault = new TreeMap<String, JSMIndexEntry>();
+		defaultByTime = new TreeSet<JSMIndexEntry>(JSMIndexEntry.BY_TIME);
 		mountDirectories = new LinkedList<String>();
 		infoFileDir = null;
 		rootDBDir = null;
@@ -129,6 +262,31 @@ public class JSMDBManager extends Thread {
 		maxDBs = 0;
 		maxDatabaseWriters = 0;
 		databaseWriteSpeed = 0;
+		maxWriteRetries = 2;
+		useVirtualThreads = false;
+		codec = null;
+		scrubRate = 0;
+		verifyReads = false;
+		durability = JSMDurability.NONE;
+		writeMode = JSMWriteMode.CONCURRENT;
+		deduplicate = false;
+		adaptiveWriters = false;
+		retentionPolicy = null;
+		memoryBudget = new JSMMemoryBudget(0, JSMAdmission.BLOCK);
+		spilled = new HashMap<String, PendingSave>();
+		spillQueue = new LinkedList<PendingSave>();
+		restaging = false;
+		erasureCoder = null;
+		degradedFiles = 0;
+		nodes = new LinkedList<JSMStorageNode>();
+		addedDatabases = new HashSet<JSMDatabase>();
+		nextNode = 0;
+		deviceScanSpeed = 10000;
+		deviceEventPending = false;
+		watcher = new JSMDeviceWatcher();
+		initializers = Executors.newCachedThreadPool();
+		fanout = Executors.newCachedThreadPool();
+		initializing = new HashSet<String>();
 	}
 	
 	public void setMaxDatabaseWriters(int amount) {
@@ -139,6 +297,178 @@ public class JSMDBManager extends Thread {
 		this.databaseWriteSpeed = speedms;
 	}
 	
+	/**
+	 * Runs the file writers of databases created from now on, and their root reducers,
+	 * on virtual threads if the JVM supports them. Writers are still capped per database 
+	 * by maxDatabaseWriters.
+	 * @param virtual - boolean for whether or not to use virtual threads
+	 */
+	public void setUseVirtualThreads(boolean virtual) {
+		this.useVirtualThreads = virtual;
+	}
+	
+	/**
+	 * Sets the codec the databases encode files with before writing them, e.g. a 
+	 * JSMDeflateCodec to compress them, which cuts the amount of bytes written to 
+	 * slow usb drives. Applies to all databases, including ones already in use. 
+	 * Files in the default directory are always stored as is. Pass null to store 
+	 * new files as is.
+	 * @param codec - codec to encode new files with
+	 */
+	public synchronized void setCodec(JSMCodec codec) {
+		this.codec = codec;
+		for(JSMDatabase db : this.databases) {
+			db.setCodec(codec);
+		}
+	}
+	
+	/**
+	 * Starts a scrubber on every database from now on that re-reads its files in the background
+	 * and flags the ones that no longer match the checksum recorded when they were written.
+	 * @param bytesPerSecond - maximum rate at which each scrubber reads from its drive, 0 for no scrubbers
+	 */
+	public synchronized void setScrubRate(long bytesPerSecond) {
+		this.scrubRate = bytesPerSecond;
+		if(bytesPerSecond > 0) {
+			for(JSMDatabase db : this.databases) {
+				db.startScrubber(bytesPerSecond);
+			}
+		}
+	}
+	
+	/**
+	 * Sets whether reads check each file against its checksum before returning it.
+	 * @param verify - boolean for whether or not to verify reads
+	 */
+	public synchronized void setVerifyReads(boolean verify) {
+		this.verifyReads = verify;
+		for(JSMDatabase db : this.databases) {
+			db.setVerifyReads(verify);
+		}
+	}
+	
+	/**
+	 * Sets how written files are made to survive a power loss before they are recorded as
+	 * written, for every database and for the default directory. In GROUP_COMMIT mode the
+	 * default directory syncs each file like FSYNC_PER_FILE since it is only a fallback.
+	 * @param durability - NONE, FSYNC_PER_FILE or GROUP_COMMIT
+	 */
+	public synchronized void setDurability(JSMDurability durability) {
+		this.durability = durability;
+		for(JSMDatabase db : this.databases) {
+			db.setDurability(durability);
+		}
+	}
+	
+	/**
+	 * Sets how every database schedules its writes. SEQUENTIAL gives each drive a single
+	 * writer that writes the waiting files in long runs, instead of maxDatabaseWriters 
+	 * writers interleaving their chunks on it.
+	 * @param mode - CONCURRENT or SEQUENTIAL
+	 */
+	public synchronized void setWriteMode(JSMWriteMode mode) {
+		this.writeMode = mode;
+		for(JSMDatabase db : this.databases) {
+			db.setWriteMode(mode);
+		}
+	}
+	
+	/**
+	 * Gives every database created from now on a JSMWriteController, which adjusts its amount
+	 * of writers and its write speed to the drive's write latency and the machine's load average 
+	 * instead of using maxDatabaseWriters and databaseWriteSpeed.
+	 * @param minWriters - fewest concurrent writers per database
+	 * @param maxWriters - most concurrent writers per database
+	 * @param minSpeedms - shortest milliseconds paused between chunks
+	 * @param maxSpeedms - longest milliseconds paused between chunks
+	 */
+	public synchronized void setAdaptiveWriters(int minWriters, int maxWriters, int minSpeedms, int maxSpeedms) {
+		this.adaptiveWriters = true;
+		this.minAdaptiveWriters = minWriters;
+		this.maxAdaptiveWriters = maxWriters;
+		this.minAdaptiveSpeed = minSpeedms;
+		this.maxAdaptiveSpeed = maxSpeedms;
+	}
+	
+	/**
+	 * Stores new files erasure coded instead of whole on a single database. Each file is
+	 * split into dataShards pieces plus parityShards pieces of parity, every piece going
+	 * to a different database, and can be read back from any dataShards of them. A file
+	 * therefore survives losing up to parityShards drives at a cost of 
+	 * (dataShards + parityShards) / dataShards times its size. While fewer databases than
+	 * pieces can take a file, it is stored whole as before. Files written before the
+	 * mode was turned on, or after it is turned off, are read back the same way. A shard
+	 * that fails is queued once more to a database that was not tried, and a file left
+	 * short of shards is counted by getDegradedFiles().
+	 * @param dataShards - k, pieces the file is split into
+	 * @param parityShards - m, pieces of parity, 0 to turn erasure coding off
+	 */
+	public synchronized void setErasureCoding(int dataShards, int parityShards) {
+		this.erasureCoder = dataShards < 1 || parityShards < 1 ? null : new JSMErasureCoder(dataShards, parityShards);
+	}
+	
+	public synchronized JSMErasureCoder getErasureCoder() {
+		return this.erasureCoder;
+	}
+	
+	/**
+	 * @return amount of erasure coded files stored with fewer shards than dataShards +
+	 * parityShards, because some shards failed and no other database could take them.
+	 * Each can survive losing fewer drives than the mode promises.
+	 */
+	public synchronized long getDegradedFiles() {
+		return this.degradedFiles;
+	}
+	
+	/**
+	 * Stores new files deduplicated on every database: each file is split into content defined
+	 * chunks, and a chunk already on the drive is not written again. Timelapse frames of a still
+	 * scene and growing logs share most of their bytes, so they take a fraction of the space and
+	 * of the writes. Files already stored are read back the same way whatever the setting.
+	 * @param deduplicate - boolean for whether or not to deduplicate new files
+	 */
+	public synchronized void setDeduplication(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+		for(JSMDatabase db : this.databases) {
+			db.setDeduplication(deduplicate);
+		}
+	}
+	
+	/**
+	 * Enforces a retention policy on every database, deleting their oldest files in throttled
+	 * batches so that each drive stays writable instead of being unmounted once it is full.
+	 * @param policy - policy deciding which files are deleted
+	 */
+	public synchronized void setRetentionPolicy(JSMRetentionPolicy policy) {
+		this.retentionPolicy = policy;
+		for(JSMDatabase db : this.databases) {
+			db.setRetentionPolicy(policy);
+		}
+	}
+	
+	/**
+	 * Sets how long the manager waits between device scans when the device watcher
+	 * has not reported anything. Plugging in or pulling out a drive always triggers
+	 * a scan right away.
+	 * @param speedms - milliseconds between device scans
+	 */
+	public void setDeviceScanSpeed(int speedms) {
+		this.deviceScanSpeed = speedms;
+	}
+	
+	/**
+	 * Replaces the device watcher used to detect drives being plugged in or pulled out.
+	 * Must be called before start().
+	 * @param watcher - device watcher, e.g. one watching a temporary directory
+	 */
+	public void setDeviceWatcher(JSMDeviceWatcher watcher) {
+		this.watcher = watcher;
+	}
+	
+	public JSMDeviceWatcher getDeviceWatcher() {
+		return this.watcher;
+	}
+	
 	/**
 	 * Retrieves full 777 permissions for use in downloading and manipulating files.
 	 * @return 777 file permissions.
@@ -153,33 +483,44 @@ public class JSMDBManager extends Thread {
 	 * @param path - directory to mount drive too, starting with '/' and ending with '/'.
 	 * @return boolean indicating success of mount.
 	 */
-	public static synchronized boolean mountHardDrive(String devName, String path) {
-		ArrayList<String> errorStream = new ArrayList<String>();
+	public static boolean mountHardDrive(String devName, String path) {
+		JSMEvents.Probe event = new JSMEvents.Probe();
+		event.begin();
 		try {
-			Process p1 = Runtime.getRuntime().exec("sudo mount " + devName + " " + path);
-			Scanner s = new Scanner(p1.getErrorStream());
-			while(s.hasNextLine()) { 
-				errorStream.add(s.nextLine()); 
+			ArrayList<String> errorStream = new ArrayList<String>();
+			try {
+				Process p1 = Runtime.getRuntime().exec("sudo mount " + devName + " " + path);
+				Scanner s = new Scanner(p1.getErrorStream());
+				while(s.hasNextLine()) { 
+					errorStream.add(s.nextLine()); 
+				}
+				s.close();
+				p1.waitFor();
+				
+				boolean alreadyMounted = false;
+				for(String line : errorStream) {
+					if(line.matches("(.*)already mounted on " + path.substring(0, path.length()-2) + "(.*)")) {
+						alreadyMounted = true;
+						break;
+					}
+				}
+
+				if(errorStream.isEmpty() || alreadyMounted){ 
+					return true; 
+				}	
+			} catch(Exception e) {
+				e.printStackTrace();
 			}
-			s.close();
-			p1.waitFor();
 			
-			boolean alreadyMounted = false;
-			for(String line : errorStream) {
-				if(line.matches("(.*)already mounted on " + path.substring(0, path.length()-2) + "(.*)")) {
-					alreadyMounted = true;
-					break;
-				}
+			return false;
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.probe = "mount";
+				event.device = devName;
+				event.commit();
 			}
-
-			if(errorStream.isEmpty() || alreadyMounted){ 
-				return true; 
-			}	
-		} catch(Exception e) {
-			e.printStackTrace();
 		}
-		
-		return false;
 	}
 	
 	/**
@@ -194,39 +535,50 @@ public class JSMDBManager extends Thread {
 	 * [5] - Directory in which device is mounted <br />
 	 */
 	public static synchronized LinkedList<String[]> listUSBDrives() {
-		LinkedList<String> drives = new LinkedList<String>();
-		LinkedList<String[]> info = new LinkedList<String[]>();
+		JSMEvents.Probe event = new JSMEvents.Probe();
+		event.begin();
 		try {
-			Process p = Runtime.getRuntime().exec(linuxScriptsDir + "listDevices.sh");
-			Scanner scan = new Scanner(p.getInputStream());
-			while(scan.hasNextLine()) {
-				String line = scan.nextLine();
-				String dev = line.substring(line.lastIndexOf("/")+1);
-				if(dev.startsWith("sd")) {
-					drives.add(dev);
+			LinkedList<String> drives = new LinkedList<String>();
+			LinkedList<String[]> info = new LinkedList<String[]>();
+			try {
+				Process p = Runtime.getRuntime().exec(linuxScriptsDir + "listDevices.sh");
+				Scanner scan = new Scanner(p.getInputStream());
+				while(scan.hasNextLine()) {
+					String line = scan.nextLine();
+					String dev = line.substring(line.lastIndexOf("/")+1);
+					if(dev.startsWith("sd")) {
+						drives.add(dev);
+					}
 				}
-			}
-			scan.close();
-			p.waitFor();
-			
-			p = Runtime.getRuntime().exec("sudo df -h");
-			scan = new Scanner(p.getInputStream());
-			while(scan.hasNextLine()) {
-				String line = scan.nextLine();
-				for(int i = 0; i < drives.size(); i++) {
-					if(line.startsWith("/dev/" + drives.get(i))) {
-						info.add(line.replaceAll("\\s+", " ").split(" "));
+				scan.close();
+				p.waitFor();
+				
+				p = Runtime.getRuntime().exec("sudo df -h");
+				scan = new Scanner(p.getInputStream());
+				while(scan.hasNextLine()) {
+					String line = scan.nextLine();
+					for(int i = 0; i < drives.size(); i++) {
+						if(line.startsWith("/dev/" + drives.get(i))) {
+							info.add(line.replaceAll("\\s+", " ").split(" "));
+						}
 					}
 				}
+				scan.close();
+				p.waitFor();
+				
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-			scan.close();
-			p.waitFor();
 			
-		} catch (Exception e) {
-			e.printStackTrace();
+			return info;
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.probe = "listUSBDrives";
+				event.device = "";
+				event.commit();
+			}
 		}
-		
-		return info;
 	}
 	
 	/**
@@ -240,24 +592,35 @@ public class JSMDBManager extends Thread {
 	 * [5] - Directory in which device is mounted <br />
 	 */
 	public static synchronized String[] listUSBDriveInfo(String devName) {
-		String[] info = null;
+		JSMEvents.Probe event = new JSMEvents.Probe();
+		event.begin();
 		try {
-			Process p = Runtime.getRuntime().exec("sudo df -h");
-			Scanner scan = new Scanner(p.getInputStream());
-			while(scan.hasNextLine()) {
-				String line = scan.nextLine();
-				if(line.startsWith(devName)) {
-					info = line.replaceAll("\\s+", " ").split(" ");
-					break;
+			String[] info = null;
+			try {
+				Process p = Runtime.getRuntime().exec("sudo df -h");
+				Scanner scan = new Scanner(p.getInputStream());
+				while(scan.hasNextLine()) {
+					String line = scan.nextLine();
+					if(line.startsWith(devName)) {
+						info = line.replaceAll("\\s+", " ").split(" ");
+						break;
+					}
 				}
+				scan.close();
+				p.waitFor();
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+			
+			return info;
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.probe = "listUSBDriveInfo";
+				event.device = devName;
+				event.commit();
 			}
-			scan.close();
-			p.waitFor();
-		} catch(Exception e) {
-			e.printStackTrace();
 		}
-		
-		return info;
 	}
 	
 	/**
@@ -265,22 +628,33 @@ public class JSMDBManager extends Thread {
 	 * @param devName - syntax of /dev/sd*# where the '*' represents a lower case letter, and the '#' represents a whole integer value.
 	 * @return List of mount paths for which the drive is mounted.
 	 */
-	public static synchronized LinkedList<String> getMountPaths(String devName) {
-		LinkedList<String> info = new LinkedList<String>();
+	public static LinkedList<String> getMountPaths(String devName) {
+		JSMEvents.Probe event = new JSMEvents.Probe();
+		event.begin();
 		try {
-			Process p = Runtime.getRuntime().exec("sudo " + linuxScriptsDir + "mountPaths.sh " + devName);
-			Scanner scan = new Scanner(p.getInputStream());
-			while(scan.hasNextLine()) {
-				String line = scan.nextLine();
-				if(line.startsWith("/")) { info.add(line.trim().concat("/")); }
-			}
-			scan.close();
-			p.waitFor();
-		} catch(Exception e) {
-			e.printStackTrace();
+			LinkedList<String> info = new LinkedList<String>();
+			try {
+				Process p = Runtime.getRuntime().exec("sudo " + linuxScriptsDir + "mountPaths.sh " + devName);
+				Scanner scan = new Scanner(p.getInputStream());
+				while(scan.hasNextLine()) {
+					String line = scan.nextLine();
+					if(line.startsWith("/")) { info.add(line.trim().concat("/")); }
+				}
+				scan.close();
+				p.waitFor();
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+			
+			return info;
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.probe = "getMountPaths";
+				event.device = devName;
+				event.commit();
+			}
 		}
-		
-		return info;
 	}
 	
 	/**
@@ -289,25 +663,36 @@ public class JSMDBManager extends Thread {
 	 * @param device 
 	 * @return boolean indicated if device is mounted.
 	 */
-	public synchronized static boolean isMounted(String device) {
+	public static boolean isMounted(String device) {
+		JSMEvents.Probe event = new JSMEvents.Probe();
+		event.begin();
 		try {
-			Process p = Runtime.getRuntime().exec("sudo " + linuxScriptsDir + "checkMount.sh " + device);
-			Scanner scan = new Scanner(p.getInputStream());
-			
-			boolean mounted = false;
-			
-			while(scan.hasNextLine()){
-				String line = scan.nextLine();
-				if(line.equals("true")){
-					mounted = true;
+			try {
+				Process p = Runtime.getRuntime().exec("sudo " + linuxScriptsDir + "checkMount.sh " + device);
+				Scanner scan = new Scanner(p.getInputStream());
+				
+				boolean mounted = false;
+				
+				while(scan.hasNextLine()){
+					String line = scan.nextLine();
+					if(line.equals("true")){
+						mounted = true;
+					}
 				}
+				scan.close();
+				p.waitFor();
+				
+				return mounted;
+			} catch (Exception e){
+				return false;
+			}
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.probe = "isMounted";
+				event.device = device;
+				event.commit();
 			}
-			scan.close();
-			p.waitFor();
-			
-			return mounted;
-		} catch (Exception e){
-			return false;
 		}
 	}
 	
@@ -317,7 +702,7 @@ public class JSMDBManager extends Thread {
 	 * return 0 if any exception is thrown or if isMounted() returns false.
 	 * @return String indicating the percentage of storage left
 	 */
-	public synchronized static int storageLeftOnMountedDevice(String dir, String name) {
+	public static int storageLeftOnMountedDevice(String dir, String name) {
 		try {	
 			boolean mounted = JSMDBManager.isMounted(name);
 			
@@ -343,122 +728,312 @@ public class JSMDBManager extends Thread {
 	/**
 	 * Call start() to begin the thread which will log the usb drive information 
 	 * to usb_drive.info and unmount any usb drive that is no longer valid.
+	 * Devices are scanned as soon as the device watcher reports a drive being
+	 * plugged in or pulled out, and otherwise every deviceScanSpeed milliseconds.
 	 */
 	public void run() {
+		this.watcher.addListener(this);
+		if(this.watcher.register()) {
+			this.watcher.start();
+		}
+		
 		while(true) {
 			try {
-				Iterator<JSMDatabase> dbir = this.databases.iterator();
-				while (dbir.hasNext()) {
-					JSMDatabase db = dbir.next();
-					if(!db.isValid()) {
-						db.uninit();
-						if(!mountDirectories.contains(db.getUSBDrivePath())) {
-							mountDirectories.add(db.getUSBDrivePath());
-						}
-						dbir.remove();
-					}
-				}
-				
-				LinkedList<String[]> devices = JSMDBManager.listUSBDrives();
-				for(String[] device : devices) {
-					boolean usbInDB = false;
-					for(JSMDatabase db : this.databases) {
-						if(db.getUSBDriveName().equals(device[0])) {
-							usbInDB = true; break;
-						}
-					}
-					if(!usbInDB) {
-						if(this.mountDirectories.size() > 0) {
-							JSMDatabase db = new JSMDatabase(this.mountDirectories.getFirst(), device[0]);
-							db.setFileWriteSpeed(this.databaseWriteSpeed);
-							db.setMaxWriters(this.maxDatabaseWriters);
-							if(db.init()) { 
-								this.databases.add(db);
-								this.mountDirectories.removeFirst();
-							}
-						} else {
-							break;
-						}
-					}
-				}
-				
-				parser.clear();
-				int i = 1;
-				for(JSMDatabase db : this.databases) {
-					parser.set("USBName_" + i, db.getUSBDriveName());
-					parser.set("USBPath_" + i, db.getUSBDrivePath());
-					parser.set("TotalFiles_" + i, String.valueOf(db.getTotalFilesInDB()));
-					parser.set("USBStorage_" + i,	String.valueOf(db.getStorageLeft()));
-					i+=1;
-				}
-				parser.save();
-				
-				TimeUnit.SECONDS.sleep(10);				
+				this.scanDevices();
+				this.awaitDeviceEvent(this.deviceScanSpeed);
+			} catch(InterruptedException e) {
+				break;
 			} catch(Exception e) { e.printStackTrace(); }
 		}
+		
+		this.watcher.shutdown();
 	}
 	
 	/**
-	 * Sets the total databases allowed in manager
-	 * @param amount
+	 * Removes the databases that are no longer valid, creates databases for any new
+	 * usb drives, and logs the drive information to usb_drive.info.
 	 */
-	public void setMaxDatabases(int amount) {
-		this.maxDBs = amount;
+	private void scanDevices() {
+		JSMEvents.DeviceScan event = new JSMEvents.DeviceScan();
+		event.begin();
+		try {
+			this.removeInvalidDatabases();
+			
+			LinkedList<String[]> devices = JSMDBManager.listUSBDrives();
+			for(String[] device : devices) {
+				this.attachDevice(device[0]);
+			}
+			
+			parser.clear();
+			int i = 1;
+			for(JSMDatabase db : this.copyDatabases()) {
+				parser.set("USBName_" + i, db.getUSBDriveName());
+				parser.set("USBPath_" + i, db.getUSBDrivePath());
+				parser.set("TotalFiles_" + i, String.valueOf(db.getTotalFilesInDB()));
+				parser.set("USBStorage_" + i,	String.valueOf(db.getStorageLeft()));
+				i+=1;
+			}
+			parser.save();
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.databases = this.getDatabases().size();
+				event.commit();
+			}
+		}
 	}
 	
 	/**
-	 * Sets the directory where the databases will be mounted.
-	 * @param dir - should start with '/' and end with '/'
+	 * Removes the databases that are no longer valid, such as the ones of pulled drives,
+	 * and drains and unmounts them in the background. Called on every device scan.
+	 * @return amount of databases removed.
 	 */
-	public void setRootDBDirectory(String dir) {
-		rootDBDir = dir;
+	public int removeInvalidDatabases() {
+		int removed = 0;
+		for(JSMDatabase db : this.copyDatabases()) {
+			if(!db.isValid()) {
+				synchronized(this) {
+					this.databases.remove(db);
+				}
+				this.detachDatabase(db);
+				removed++;
+			}
+		}
+		return removed;
 	}
 	
 	/**
-	 * Sets the directory in which drive information will be printed to 'usb_drive.info'.
-	 * @param dir - should start with '/' and end with '/'
+	 * Creates a database for a usb drive that is not yet in use and initializes it
+	 * in its own task. The database is added to the manager, and can be written to, 
+	 * as soon as its own initialization completes. Does nothing if the drive is already 
+	 * in use, is already being initialized, or there is no mount directory left.
+	 * @param device - syntax of /dev/sd*# where the '*' represents a lower case letter, and the '#' represents a whole integer value.
 	 */
-	public void setInfoFileDirectory(String dir) {
-		infoFileDir = dir;
+	private synchronized void attachDevice(String device) {
+		if(this.initializing.contains(device)) { return; }
+		for(JSMDatabase db : this.databases) {
+			if(db.getUSBDriveName().equals(device)) { return; }
+		}
+		if(this.mountDirectories.isEmpty()) { return; }
+		
+		this.attach(new JSMDatabase(this.mountDirectories.removeFirst(), device));
 	}
 	
 	/**
-	 * Sets the directory in which the helper linux script files will be created and stored.
-	 * @param dir - should start with '/' and end with '/'
+	 * Adds a database that the manager did not create itself, such as a simulated drive,
+	 * and initializes it in its own task like a usb drive that was plugged in. Its
+	 * directory is not one of the manager's mount directories and is never reused.
+	 * @param db - database that has not been initialized yet
 	 */
-	public void setLinuxScriptsDirectory(String dir) {
-		linuxScriptsDir = dir;
+	public synchronized void addDatabase(JSMDatabase db) {
+		if(this.initializing.contains(db.getUSBDriveName())) { return; }
+		this.addedDatabases.add(db);
+		this.attach(db);
 	}
 	
 	/**
-	 * Initializes the databases and creates the directories needed.
-	 * This will not overwrite any existing databases or files. Call this 
-	 * method before attempting to write to the database.
+	 * Applies the manager's settings to a new database and initializes it.
 	 */
-	public void init() {
-		
-		//creating database directories
-		for(int i = 1; i < (this.maxDBs+1); i++) {
-			this.mountDirectories.add(rootDBDir + "db" + i + "/");
+	private synchronized void attach(JSMDatabase db) {
+		String device = db.getUSBDriveName();
+		db.setFileWriteSpeed(this.databaseWriteSpeed);
+		db.setMaxWriters(this.maxDatabaseWriters);
+		db.setUseVirtualThreads(this.useVirtualThreads);
+		db.setCodec(this.codec);
+		db.setVerifyReads(this.verifyReads);
+		db.setDurability(this.durability);
+		db.setWriteMode(this.writeMode);
+		db.setDeduplication(this.deduplicate);
+		if(this.adaptiveWriters) {
+			db.setWriteController(new JSMWriteController(this.minAdaptiveWriters, this.maxAdaptiveWriters, 
+					this.minAdaptiveSpeed, this.maxAdaptiveSpeed));
 		}
-		
-		//creating default database directory
-		if(!Files.exists(Paths.get(rootDBDir + "default/"))) {
-			try {
-				Files.createDirectory(Paths.get(rootDBDir + "default/"), JSMDBManager.getFullPermissions());
-			} catch (IOException e) {
-				e.printStackTrace();
+		this.initializing.add(device);
+		this.initializers.submit(new Runnable() {
+			@Override
+			public void run() {
+				boolean initialized = false;
+				try {
+					initialized = db.init();
+				} catch(Exception e) {
+					e.printStackTrace();
+				} finally {
+					finishAttach(db, initialized);
+				}
 			}
-		}
-		
-		//creating info file
-		if(!Files.exists(Paths.get(infoFileDir + "usb_drives.info"))) {
-			try {
-				Files.createFile(Paths.get(infoFileDir + "usb_drives.info"), JSMDBManager.getFullPermissions());
-			} catch (IOException e) {
-				e.printStackTrace();
+		});
+	}
+	
+	/**
+	 * Adds an initialized database to the manager, or gives its mount
+	 * directory back if the initialization failed.
+	 */
+	private synchronized void finishAttach(JSMDatabase db, boolean initialized) {
+		this.initializing.remove(db.getUSBDriveName());
+		if(initialized) {
+			this.databases.add(db);
+			if(this.scrubRate > 0) {
+				db.startScrubber(this.scrubRate);
 			}
-		}
+			if(this.retentionPolicy != null) {
+				db.setRetentionPolicy(this.retentionPolicy);
+			}
+		} else {
+			this.returnMountDirectory(db);
+		}
+	}
+	
+	/**
+	 * Drains and unmounts a database that was removed from the manager without waiting
+	 * on it. Its mount directory is given back once the drive is unmounted.
+	 * @return future completed once the drive is unmounted.
+	 */
+	private CompletableFuture<Boolean> detachDatabase(JSMDatabase db) {
+		return db.uninit().whenComplete((unmounted, e) -> {
+			if(e != null) { e.printStackTrace(); }
+			returnMountDirectory(db);
+		});
+	}
+	
+	private synchronized void returnMountDirectory(JSMDatabase db) {
+		String dir = db.getUSBDrivePath();
+		if(this.addedDatabases.remove(db)) { return; }
+		if(!this.mountDirectories.contains(dir)) {
+			this.mountDirectories.add(dir);
+		}
+	}
+	
+	/**
+	 * Copies the database list so it can be iterated without
+	 * holding the manager's lock.
+	 */
+	private synchronized LinkedList<JSMDatabase> copyDatabases() {
+		return new LinkedList<JSMDatabase>(this.databases);
+	}
+	
+	/**
+	 * Blocks until the device watcher reports an event or until the timeout
+	 * has passed, whichever comes first.
+	 * @param timeout - milliseconds to wait
+	 */
+	private void awaitDeviceEvent(long timeout) throws InterruptedException {
+		synchronized(this.deviceEventLock) {
+			if(!this.deviceEventPending) {
+				this.deviceEventLock.wait(timeout);
+			}
+			this.deviceEventPending = false;
+		}
+	}
+	
+	/**
+	 * Wakes up the run() thread to scan the devices right away.
+	 */
+	private void signalDeviceEvent() {
+		synchronized(this.deviceEventLock) {
+			this.deviceEventPending = true;
+			this.deviceEventLock.notifyAll();
+		}
+	}
+	
+	@Override
+	public void deviceAttached(String device) {
+		this.signalDeviceEvent();
+	}
+	
+	/**
+	 * Invalidates the database of a pulled drive so no more files are
+	 * sent to it, then wakes up the run() thread to remove it.
+	 */
+	@Override
+	public void deviceDetached(String device) {
+		synchronized(this) {
+			for(JSMDatabase db : this.databases) {
+				if(db.getUSBDriveName().equals(device)) {
+					db.invalidate();
+				}
+			}
+		}
+		this.signalDeviceEvent();
+	}
+	
+	@Override
+	public void mountTableChanged() {
+		this.signalDeviceEvent();
+	}
+	
+	/**
+	 * Sets the total databases allowed in manager
+	 * @param amount
+	 */
+	public void setMaxDatabases(int amount) {
+		this.maxDBs = amount;
+	}
+	
+	/**
+	 * Sets the directory where the databases will be mounted.
+	 * @param dir - should start with '/' and end with '/'
+	 */
+	public void setRootDBDirectory(String dir) {
+		rootDBDir = dir;
+	}
+	
+	/**
+	 * Sets the directory in which drive information will be printed to 'usb_drive.info'.
+	 * @param dir - should start with '/' and end with '/'
+	 */
+	public void setInfoFileDirectory(String dir) {
+		infoFileDir = dir;
+	}
+	
+	/**
+	 * Sets the directory in which the helper linux script files will be created and stored.
+	 * @param dir - should start with '/' and end with '/'
+	 */
+	public void setLinuxScriptsDirectory(String dir) {
+		linuxScriptsDir = dir;
+	}
+	
+	/**
+	 * Initializes the databases and creates the directories needed.
+	 * This will not overwrite any existing databases or files. Call this 
+	 * method before attempting to write to the database. The usb drives are
+	 * initialized concurrently in the background, and each one is added to the
+	 * databases as soon as it is ready. Files saved before then go to the default
+	 * directory if forced.
+	 */
+	public void init() {
+		
+		//creating database directories
+		for(int i = 1; i < (this.maxDBs+1); i++) {
+			this.mountDirectories.add(rootDBDir + "db" + i + "/");
+		}
+		
+		//creating default database directory
+		if(!Files.exists(Paths.get(rootDBDir + "default/"))) {
+			try {
+				Files.createDirectory(Paths.get(rootDBDir + "default/"), JSMDBManager.getFullPermissions());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		//creating spill directory
+		if(!Files.exists(Paths.get(rootDBDir + "spill/"))) {
+			try {
+				Files.createDirectory(Paths.get(rootDBDir + "spill/"), JSMDBManager.getFullPermissions());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		//creating info file
+		if(!Files.exists(Paths.get(infoFileDir + "usb_drives.info"))) {
+			try {
+				Files.createFile(Paths.get(infoFileDir + "usb_drives.info"), JSMDBManager.getFullPermissions());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		
 		//creating check mount shell file
 		if(!Files.exists(Paths.get(linuxScriptsDir + "checkMount.sh"))) {
@@ -496,24 +1071,49 @@ public class JSMDBManager extends Thread {
 		parser = new JSMParser(Paths.get(infoFileDir + "usb_drives.info"));
 		LinkedList<String[]> devices = JSMDBManager.listUSBDrives();
 		
+		//each drive is mounted and scanned concurrently and becomes usable once it's ready
 		for(String[] device : devices) {
-			if(this.mountDirectories.size() > 0) {
-				JSMDatabase db = new JSMDatabase(this.mountDirectories.getFirst(), device[0]);
-				db.setFileWriteSpeed(this.databaseWriteSpeed);
-				db.setMaxWriters(this.maxDatabaseWriters);
-				if(db.init()) { 
-					this.databases.add(db);
-					this.mountDirectories.removeFirst();
-				}
-			} else {
-				break;
-			}
+			this.attachDevice(device[0]);
 		}
 		
+		//files the default directory was still being written to when the machine went down
+		JSMDatabase.sweepTempFiles(rootDBDir + "default/");
 		File[] files = new File(rootDBDir + "default/").listFiles(File::isFile);
 		for(int i = 0; i < files.length; i++) {
-			filesInDefault.put(files[i].getName(), files[i].getName());
+			this.addToFilesInDefault(files[i].getName(), files[i].length(), files[i].lastModified());
+		}
+		
+		//saves that were still staged when the manager was last stopped
+		JSMDatabase.sweepTempFiles(rootDBDir + "spill/");
+		files = new File(rootDBDir + "spill/").listFiles(File::isFile);
+		synchronized(this) {
+			for(int i = 0; i < files.length; i++) {
+				PendingSave save = new PendingSave(null, files[i].getName(), true, JSMPriority.NORMAL);
+				save.federate = true;
+				save.staged = true;
+				this.spilled.put(save.name, save);
+				this.spillQueue.add(save);
+			}
+			this.restage();
+		}
+	}
+	
+	/**
+	 * @return amount of databases, valid or not.
+	 */
+	public synchronized int getTotalDatabases() {
+		return this.databases.size();
+	}
+	
+	/**
+	 * @return amount of valid databases with a free writer.
+	 */
+	public synchronized int getFreeWriters() {
+		int free = 0;
+		for(JSMDatabase db : this.databases) {
+			if(db.isValid() && db.canWriteFile()) { free++; }
 		}
+		return free;
 	}
 	
 	/**
@@ -526,15 +1126,30 @@ public class JSMDBManager extends Thread {
 
 	/**
 	 * Queues all databases to finish writing files and unmount the drives.
-	 * After calling this method to object will no longer be usuable and should
-	 * be recreated. 
+	 * The drives are drained concurrently, and this method returns once all of
+	 * them are unmounted. After calling this method to object will no longer be 
+	 * usuable and should be recreated. 
 	 */
-	public synchronized void uninit() {
-		for(JSMDatabase db : this.databases) {
-			db.uninit();
-			mountDirectories.add(db.getUSBDrivePath());
+	public void uninit() {
+		LinkedList<JSMDatabase> dbs;
+		synchronized(this) {
+			dbs = new LinkedList<JSMDatabase>(this.databases);
+			this.databases.clear();
+			this.initializers.shutdown();
+			this.restaging = true;
+		}
+		
+		LinkedList<CompletableFuture<Boolean>> drains = new LinkedList<CompletableFuture<Boolean>>();
+		for(JSMDatabase db : dbs) {
+			drains.add(this.detachDatabase(db));
+		}
+		try {
+			CompletableFuture.allOf(drains.toArray(new CompletableFuture<?>[0])).join();
+		} catch(Exception e) {
+			e.printStackTrace();
 		}
-		this.databases.clear();
+		this.fanout.shutdown();
+		this.unstage();
 	}
 	
 	/**
@@ -605,7 +1220,8 @@ public class JSMDBManager extends Thread {
 	}
 	
 	/**
-	 * Tests whether or not a file is written to the database
+	 * Tests whether or not a file is written to the database. Only this manager's databases
+	 * and default directory are checked, so it is cheap enough to poll.
 	 * @param fileName - name of file to check 
 	 * @return boolean for whether or not the file has been written to a database
 	 */
@@ -621,76 +1237,1507 @@ public class JSMDBManager extends Thread {
 		return false;
 	}
 	
+	/**
+	 * Tests whether or not a file is written to this manager or to one of its healthy nodes.
+	 * Each node that is asked may block for up to its timeout, so this is meant for a 
+	 * lookup now and then rather than for polling.
+	 * @param fileName - name of file to check 
+	 * @return boolean for whether or not the file has been written anywhere
+	 */
+	public boolean isWrittenAnywhere(String fileName) {
+		if(this.isWrittenToDB(fileName)) { return true; }
+		for(JSMStorageNode node : this.getNodes()) {
+			try {
+				if(node.isHealthy() && node.isWrittenToDB(fileName)) { return true; }
+			} catch(IOException e) {
+				//an unreachable node is treated as not holding the file
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Reads a file from whichever database holds it, or from the default directory,
+	 * or else from the first healthy node that holds it. Encoded files are decoded 
+	 * transparently, and erasure coded files are rebuilt from their shards.
+	 * @param fileName - name of the file to read
+	 * @return raw file data, or null if the file is not in the database.
+	 * @throws IOException if the file could not be read or decoded.
+	 */
+	public byte[] read(String fileName) throws IOException {
+		IOException failure = null;
+		try {
+			byte[] data = this.readLocal(fileName);
+			if(data != null) { return data; }
+		} catch(IOException e) {
+			failure = e;
+		}
+		
+		for(JSMStorageNode node : this.getNodes()) {
+			if(!node.isHealthy()) { continue; }
+			try {
+				byte[] data = node.read(fileName);
+				if(data != null) { return data; }
+			} catch(IOException e) {
+				failure = e;
+			}
+		}
+		if(failure != null) { throw failure; }
+		return null;
+	}
+	
+	/**
+	 * Reads a file like read(), but only from this manager's own databases and 
+	 * default directory, not from its nodes.
+	 * @param fileName - name of the file to read
+	 * @return raw file data, or null if the file is not in the database.
+	 * @throws IOException if the file could not be read or decoded.
+	 */
+	public byte[] readLocal(String fileName) throws IOException {
+		IOException failure = null;
+		for(JSMDatabase db : this.copyDatabases()) {
+			byte[] data;
+			try {
+				data = db.read(fileName);
+			} catch(IOException e) {
+				//another drive may hold a copy or a shard of it
+				failure = e;
+				continue;
+			}
+			if(data != null) {
+				return JSMErasureCoder.isShard(data) ? this.readShards(fileName, data) : data;
+			}
+		}
+		
+		synchronized(this) {
+			if(this.filesInDefault.get(fileName) == null) {
+				PendingSave staged = this.spilled.get(fileName);
+				if(staged != null && staged.staged) {
+					return Files.readAllBytes(Paths.get(rootDBDir + "spill/" + fileName));
+				}
+				if(failure != null) { throw failure; }
+				return null;
+			}
+		}
+		return Files.readAllBytes(Paths.get(rootDBDir + "default/" + fileName));
+	}
+	
+	/**
+	 * Rebuilds an erasure coded file. The shards on every database are read at
+	 * once, and any that cannot be read or fail their checksum are left out.
+	 * @param fileName - name of the file
+	 * @param first - shard already read
+	 * @return the file.
+	 * @throws IOException if fewer shards than the file's data shards could be read.
+	 */
+	private byte[] readShards(String fileName, byte[] first) throws IOException {
+		int k = JSMErasureCoder.getDataShards(first);
+		int m = JSMErasureCoder.getParityShards(first);
+		JSMErasureCoder coder = this.getErasureCoder();
+		if(coder == null || coder.getDataShards() != k || coder.getParityShards() != m) {
+			coder = new JSMErasureCoder(k, m);
+		}
+		
+		byte[][] shards = new byte[k + m][];
+		shards[JSMErasureCoder.getIndex(first)] = first;
+		LinkedList<CompletableFuture<byte[]>> reads = new LinkedList<CompletableFuture<byte[]>>();
+		for(JSMDatabase db : this.copyDatabases()) {
+			Supplier<byte[]> read = () -> {
+				try {
+					return db.read(fileName);
+				} catch(IOException e) {
+					return null;
+				}
+			};
+			try {
+				reads.add(CompletableFuture.supplyAsync(read, this.fanout));
+			} catch(RejectedExecutionException e) {
+				//the manager is shutting down, read the shard here instead
+				reads.add(CompletableFuture.completedFuture(read.get()));
+			}
+		}
+		for(CompletableFuture<byte[]> read : reads) {
+			byte[] shard = read.join();
+			if(JSMErasureCoder.isShard(shard) && JSMErasureCoder.getIndex(shard) < shards.length) {
+				shards[JSMErasureCoder.getIndex(shard)] = shard;
+			}
+		}
+		
+		try {
+			return coder.decode(shards);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("could not rebuild " + fileName, e);
+		}
+	}
+	
+	/**
+	 * @return boolean indicating if the file on the drive is an erasure coded shard.
+	 */
+	private static boolean isShardFile(String path) {
+		try(RandomAccessFile r = new RandomAccessFile(path, "r")) {
+			byte[] header = new byte[JSMErasureCoder.HEADER_SIZE];
+			if(r.length() < header.length) { return false; }
+			r.readFully(header);
+			return JSMErasureCoder.isShard(header);
+		} catch(IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Finds a file that is stored as is, so it can be sent straight from the drive.
+	 * @param fileName - name of the file
+	 * @return full path to the file, or null if it is not in the database, was encoded,
+	 * or has to be verified because reads are verified.
+	 */
+	public String getRawFilePath(String fileName) {
+		for(JSMDatabase db : this.copyDatabases()) {
+			if(db.isWrittenToDB(fileName)) {
+				String path = db.getRawFilePath(fileName);
+				return path == null || isShardFile(path) ? null : path;
+			}
+		}
+		synchronized(this) {
+			if(this.filesInDefault.get(fileName) == null) { return null; }
+		}
+		return rootDBDir + "default/" + fileName;
+	}
+	
 	/**
 	 * Adds a file name to the list of files that are in the default directory
 	 * @param name - file name to put into the default list
+	 * @param size - size of the file
+	 * @param time - time the file was written
 	 */
-	private void addToFilesInDefault(String name) {
-		filesInDefault.put(name, name);
+	private synchronized void addToFilesInDefault(String name, long size, long time) {
+		JSMIndexEntry entry = new JSMIndexEntry(name, JSMIndexEntry.NO_CODEC, JSMIndexEntry.NO_CHECKSUM, size, time);
+		JSMIndexEntry previous = filesInDefault.put(name, entry);
+		if(previous != null) { defaultByTime.remove(previous); }
+		defaultByTime.add(entry);
 	}
 	
 	/**
-	 * Selects a random database to write a file to. As long as 
-	 * database is valid and it can accept another file to write to it,
-	 * an index will be selected.
-	 * @return index in the databases list to be a valid database. Will 
-	 * return -1 if no database is available to write to.
+	 * Lists the files whose name starts with a prefix across every database and the 
+	 * default directory, e.g. 'camera3_'.
+	 * @param prefix - start of the file names, empty for every file
+	 * @return entries of the files sorted by name.
 	 */
-	private synchronized int select(String name) {
-		int selection = -1;
-		for(int i = 0; i < this.databases.size(); i++) {
-			JSMDatabase db = this.databases.get(i);
-			if(db.canWriteFile() && db.isValid()) {
-				selection = i;
-				break;
+	public ArrayList<JSMIndexEntry> list(String prefix) {
+		return this.list(prefix, null, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Lists one page of the files whose name starts with a prefix across every database
+	 * and the default directory. Each database is asked for at most one page, which are
+	 * merged, so the cost is proportional to the page rather than to the amount of files.
+	 * @param prefix - start of the file names, empty for every file
+	 * @param after - name of the last file of the previous page, or null for the first page
+	 * @param limit - most entries returned
+	 * @return entries of the files sorted by name.
+	 */
+	public ArrayList<JSMIndexEntry> list(String prefix, String after, int limit) {
+		LinkedList<List<JSMIndexEntry>> pages = new LinkedList<List<JSMIndexEntry>>();
+		for(JSMDatabase db : this.copyDatabases()) {
+			pages.add(db.list(prefix, after, limit));
+		}
+		
+		ArrayList<JSMIndexEntry> defaults = new ArrayList<JSMIndexEntry>();
+		synchronized(this) {
+			NavigableMap<String, JSMIndexEntry> range = this.filesInDefault.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+			if(after != null) { range = range.tailMap(after, false); }
+			for(JSMIndexEntry entry : range.values()) {
+				if(defaults.size() >= limit) { break; }
+				defaults.add(entry);
 			}
 		}
-		return selection;
+		pages.add(defaults);
+		
+		return JSMDBManager.merge(pages, JSMIndexEntry.BY_NAME, limit);
 	}
 	
 	/**
-	 * Saves a file to a database or to the default directory if no database is available.
-	 * To successfully write to the database, call the isCurrentlyWriting() and isWrittenToDB()
-	 * methods to test whether or not to even write the file. If these methods are not called
-	 * beforehand and the file was already queued in the databases, the file will not be overridden
-	 * but may be copied in another database will cause unnecessary resources to be consumed. 
-	 * @param data - raw data of file
-	 * @param name - name of the file
-	 * @param force - boolean for whether or not to save the file to the default directory
-	 * if no database is available. 
-	 * @return boolean indicating if a file was successfully queue to be written to a database or
-	 * to the default directory.
+	 * Lists the files committed within a time range across every database and 
+	 * the default directory.
+	 * @param from - earliest commit time in milliseconds since the epoch, inclusive
+	 * @param to - latest commit time in milliseconds since the epoch, exclusive
+	 * @return entries of the files sorted by commit time.
 	 */
-	public synchronized boolean save(byte[] data, String name, boolean force) {
-		int index = this.select(name);
-		if(index != -1) {
-			JSMDatabase db = this.databases.get(index);
-			if(db.write(data, name)) {
-				return true;
-			} else {
-				return false;
+	public ArrayList<JSMIndexEntry> listRange(long from, long to) {
+		return this.listRange(from, to, null, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Lists one page of the files committed within a time range across every database 
+	 * and the default directory.
+	 * @param from - earliest commit time in milliseconds since the epoch, inclusive
+	 * @param to - latest commit time in milliseconds since the epoch, exclusive
+	 * @param after - last entry of the previous page, or null for the first page
+	 * @param limit - most entries returned
+	 * @return entries of the files sorted by commit time.
+	 */
+	public ArrayList<JSMIndexEntry> listRange(long from, long to, JSMIndexEntry after, int limit) {
+		LinkedList<List<JSMIndexEntry>> pages = new LinkedList<List<JSMIndexEntry>>();
+		for(JSMDatabase db : this.copyDatabases()) {
+			pages.add(db.listRange(from, to, after, limit));
+		}
+		
+		ArrayList<JSMIndexEntry> defaults = new ArrayList<JSMIndexEntry>();
+		if(from < to) {
+			synchronized(this) {
+				JSMIndexEntry start = new JSMIndexEntry("", JSMIndexEntry.NO_CODEC, JSMIndexEntry.NO_CHECKSUM, 0, from);
+				JSMIndexEntry end = new JSMIndexEntry("", JSMIndexEntry.NO_CODEC, JSMIndexEntry.NO_CHECKSUM, 0, to);
+				NavigableSet<JSMIndexEntry> range = this.defaultByTime.subSet(start, true, end, false);
+				if(after != null) { range = range.tailSet(after, false); }
+				for(JSMIndexEntry entry : range) {
+					if(defaults.size() >= limit) { break; }
+					defaults.add(entry);
+				}
 			}
-		} else if(force) {
+		}
+		pages.add(defaults);
+		
+		return JSMDBManager.merge(pages, JSMIndexEntry.BY_TIME, limit);
+	}
+	
+	/**
+	 * Iterates over the files whose name starts with a prefix, fetching them a page at a time.
+	 * @param prefix - start of the file names, empty for every file
+	 * @param pageSize - amount of entries fetched per page
+	 * @return iterator over the entries sorted by name.
+	 */
+	public Iterator<JSMIndexEntry> iterator(String prefix, int pageSize) {
+		return new Iterator<JSMIndexEntry>() {
+			private ArrayList<JSMIndexEntry> page = list(prefix, null, pageSize);
+			private int position = 0;
 			
-			try {
-				if(!Files.exists(Paths.get(rootDBDir + "default/" + name))) {
-					Files.createFile(Paths.get(rootDBDir + "default/" + name), JSMDBManager.getFullPermissions());
-					
-					FileOutputStream fos = new FileOutputStream(rootDBDir + "default/" + name);
-					fos.write(data); fos.close();
-					
-					this.addToFilesInDefault(name);
-					
-					return true;
-				}
-				
-				return false;
-			} catch(Exception e) {
-				e.printStackTrace();
-				return false;
+			@Override
+			public boolean hasNext() {
+				if(position < page.size()) { return true; }
+				if(page.size() < pageSize) { return false; }
+				page = list(prefix, page.get(page.size() - 1).getName(), pageSize);
+				position = 0;
+				return !page.isEmpty();
 			}
-		} else {
-			return false;
+			
+			@Override
+			public JSMIndexEntry next() {
+				if(!hasNext()) { throw new NoSuchElementException(); }
+				return page.get(position++);
+			}
+		};
+	}
+	
+	/**
+	 * Iterates over the files committed within a time range, fetching them a page at a time.
+	 * @param from - earliest commit time in milliseconds since the epoch, inclusive
+	 * @param to - latest commit time in milliseconds since the epoch, exclusive
+	 * @param pageSize - amount of entries fetched per page
+	 * @return iterator over the entries sorted by commit time.
+	 */
+	public Iterator<JSMIndexEntry> iterator(long from, long to, int pageSize) {
+		return new Iterator<JSMIndexEntry>() {
+			private ArrayList<JSMIndexEntry> page = listRange(from, to, null, pageSize);
+			private int position = 0;
+			
+			@Override
+			public boolean hasNext() {
+				if(position < page.size()) { return true; }
+				if(page.size() < pageSize) { return false; }
+				page = listRange(from, to, page.get(page.size() - 1), pageSize);
+				position = 0;
+				return !page.isEmpty();
+			}
+			
+			@Override
+			public JSMIndexEntry next() {
+				if(!hasNext()) { throw new NoSuchElementException(); }
+				return page.get(position++);
+			}
+		};
+	}
+	
+	/**
+	 * Streams every stored file, in the databases and the default directory, to a channel
+	 * as a tar archive with the files sorted by name. See export().
+	 * @param out - channel to write the archive to, e.g. Channels.newChannel(socketOutputStream)
+	 * @return amount of files exported.
+	 * @throws IOException if the channel could not be written to.
+	 */
+	public long exportAll(WritableByteChannel out) throws IOException {
+		return this.export(this.iterator("", 1000), out);
+	}
+	
+	/**
+	 * Streams the files committed within a time range to a channel as a tar archive with
+	 * the files sorted by commit time. See export().
+	 * @param from - earliest commit time in milliseconds since the epoch, inclusive
+	 * @param to - latest commit time in milliseconds since the epoch, exclusive
+	 * @param out - channel to write the archive to
+	 * @return amount of files exported.
+	 * @throws IOException if the channel could not be written to.
+	 */
+	public long exportRange(long from, long to, WritableByteChannel out) throws IOException {
+		return this.export(this.iterator(from, to, 1000), out);
+	}
+	
+	/**
+	 * Streams files to a channel as a tar archive in the order of the entries. The files are
+	 * read ahead like getMany() reads them in order, so every drive is read at once and the
+	 * export runs at the combined speed of the drives, while the archive is still written
+	 * strictly in order. Files removed while the export runs are left out.
+	 * @param entries - files to export, in archive order
+	 * @param out - channel to write the archive to
+	 * @return amount of files exported.
+	 * @throws IOException if the channel could not be written to, or a file could not be read.
+	 */
+	private long export(Iterator<JSMIndexEntry> entries, WritableByteChannel out) throws IOException {
+		JSMTarWriter tar = new JSMTarWriter(out);
+		LinkedList<JSMIndexEntry> exported = new LinkedList<JSMIndexEntry>();
+		Iterator<String> names = new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+			
+			@Override
+			public String next() {
+				JSMIndexEntry entry = entries.next();
+				exported.add(entry);
+				return entry.getName();
+			}
+		};
+		
+		this.fetch(names, (name, data) -> {
+			JSMIndexEntry entry = exported.poll();
+			if(data != null) {
+				tar.write(name, entry.getTime(), data);
+			}
+		}, true);
+		tar.finish();
+		return tar.getFiles();
+	}
+	
+	/**
+	 * Reads many files at once, e.g. the frames of a timelapse. The files are grouped by
+	 * the drive that holds them and every drive is read at the same time, each by as many
+	 * readers as its own limit allows, so the reads run at the combined speed of the drives
+	 * instead of one drive at a time. Files in the default directory, on nodes, or that 
+	 * cannot be read from the drive that holds them are read like read() reads them.
+	 * <br />
+	 * Each future completes as soon as its file has been read, holding null if the file is 
+	 * not in the database, or exceptionally with the IOException if it could not be read.
+	 * Wait on the futures in the order of the map to handle the files in the order asked for,
+	 * or attach a callback to each to handle them as they are read. Every file is held in 
+	 * memory until its future is dropped, see the other getMany() to stream many files.
+	 * @param names - names of the files to read
+	 * @return map of each file name to the future of its data, in the order of the names.
+	 */
+	public LinkedHashMap<String, CompletableFuture<byte[]>> getMany(Collection<String> names) {
+		ReadFanout fanout = new ReadFanout();
+		LinkedHashMap<String, CompletableFuture<byte[]>> reads = new LinkedHashMap<String, CompletableFuture<byte[]>>();
+		for(String name : names) {
+			if(!reads.containsKey(name)) {
+				reads.put(name, fanout.read(name));
+			}
+		}
+		CompletableFuture.allOf(reads.values().toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> fanout.close(false));
+		return reads;
+	}
+	
+	/**
+	 * Reads many files like the other getMany(), but streams them to a listener so only
+	 * a window of files is held in memory at a time. The window is a few files per reader
+	 * of every drive, which is enough for every drive to be kept busy. Returns once every 
+	 * file has been handed to the listener, or the listener threw.
+	 * @param names - names of the files to read
+	 * @param listener - listener called with each file on this thread
+	 * @param ordered - true to hand the files over in the order of the names, false to hand
+	 * each over as soon as it is read
+	 * @return amount of files read, not counting the ones not in the database.
+	 * @throws IOException if thrown by the listener.
+	 */
+	public long getMany(Collection<String> names, JSMReadListener listener, boolean ordered) throws IOException {
+		return this.fetch(names.iterator(), listener, ordered);
+	}
+	
+	/**
+	 * Reads files through a fanout with a bounded amount of them read ahead.
+	 */
+	private long fetch(Iterator<String> names, JSMReadListener listener, boolean ordered) throws IOException {
+		ReadFanout fanout = new ReadFanout();
+		int window = fanout.getWindow();
+		LinkedList<Map.Entry<String, CompletableFuture<byte[]>>> issued = new LinkedList<Map.Entry<String, CompletableFuture<byte[]>>>();
+		LinkedBlockingQueue<Map.Entry<String, CompletableFuture<byte[]>>> completed = new LinkedBlockingQueue<Map.Entry<String, CompletableFuture<byte[]>>>();
+		int inFlight = 0;
+		long read = 0;
+		try {
+			while(names.hasNext() || inFlight > 0) {
+				while(names.hasNext() && inFlight < window) {
+					String name = names.next();
+					Map.Entry<String, CompletableFuture<byte[]>> request = new AbstractMap.SimpleImmutableEntry<String, CompletableFuture<byte[]>>(name, fanout.read(name));
+					if(ordered) {
+						issued.add(request);
+					} else {
+						request.getValue().whenComplete((data, e) -> completed.add(request));
+					}
+					inFlight++;
+				}
+				
+				Map.Entry<String, CompletableFuture<byte[]>> next;
+				try {
+					next = ordered ? issued.poll() : completed.take();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for files to be read");
+				}
+				inFlight--;
+				
+				byte[] data;
+				try {
+					data = next.getValue().join();
+				} catch(CompletionException e) {
+					listener.readFailed(next.getKey(), e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+					continue;
+				}
+				listener.fileRead(next.getKey(), data);
+				if(data != null) { read++; }
+			}
+		} finally {
+			fanout.close(true);
+		}
+		return read;
+	}
+	
+	/**
+	 * Reads files on a pool of threads, grouped by the database that holds each of them. 
+	 * Each database is read by at most as many readers as its limit, the default directory 
+	 * and the nodes by at most four, and reads of a group over its limit wait in the order 
+	 * they were asked for. So a group with many files waiting never holds up the others.
+	 */
+	private class ReadFanout {
+		private ExecutorService readers;
+		private LinkedList<JSMDatabase> dbs;
+		private HashMap<JSMDatabase, LinkedList<Runnable>> waiting;
+		private HashMap<JSMDatabase, Integer> running;
+		private boolean closed;
+		
+		private ReadFanout() {
+			this.readers = JSMThreads.newExecutor(useVirtualThreads);
+			this.dbs = copyDatabases();
+			this.waiting = new HashMap<JSMDatabase, LinkedList<Runnable>>();
+			this.running = new HashMap<JSMDatabase, Integer>();
+			this.closed = false;
+		}
+		
+		/**
+		 * @return amount of files to read ahead to keep every group busy.
+		 */
+		private int getWindow() {
+			int window = 2 * this.getLimit(null);
+			for(JSMDatabase db : this.dbs) {
+				window += 2 * this.getLimit(db);
+			}
+			return window;
+		}
+		
+		private int getLimit(JSMDatabase db) {
+			return db == null ? 4 : Math.max(1, db.getMaxReaders());
+		}
+		
+		/**
+		 * Queues a file to be read in the group of the database that holds it.
+		 * @return future of the file's data.
+		 */
+		private CompletableFuture<byte[]> read(String name) {
+			JSMDatabase holder = null;
+			for(JSMDatabase db : this.dbs) {
+				if(db.isWrittenToDB(name)) {
+					holder = db;
+					break;
+				}
+			}
+			
+			JSMDatabase group = holder;
+			CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+			Runnable task = () -> {
+				try {
+					result.complete(readFrom(group, name));
+				} catch(IOException e) {
+					result.completeExceptionally(e);
+				} catch(RuntimeException e) {
+					result.completeExceptionally(e);
+				} finally {
+					this.finished(group);
+				}
+			};
+			
+			synchronized(this) {
+				if(this.closed) {
+					result.cancel(false);
+					return result;
+				}
+				this.waiting.computeIfAbsent(group, g -> new LinkedList<Runnable>()).add(task);
+				this.startReads(group);
+			}
+			return result;
+		}
+		
+		/**
+		 * Starts the waiting reads of a group up to its limit.
+		 */
+		private synchronized void startReads(JSMDatabase group) {
+			LinkedList<Runnable> tasks = this.waiting.get(group);
+			int count = this.running.getOrDefault(group, 0);
+			while(!this.closed && tasks != null && !tasks.isEmpty() && count < this.getLimit(group)) {
+				this.readers.submit(tasks.removeFirst());
+				count++;
+			}
+			this.running.put(group, count);
+		}
+		
+		private synchronized void finished(JSMDatabase group) {
+			this.running.put(group, this.running.get(group) - 1);
+			this.startReads(group);
+		}
+		
+		/**
+		 * Stops the readers. Reads that have not started are dropped.
+		 * @param interrupt - true to interrupt the reads that are running
+		 */
+		private synchronized void close(boolean interrupt) {
+			this.closed = true;
+			this.waiting.clear();
+			if(interrupt) {
+				this.readers.shutdownNow();
+			} else {
+				this.readers.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Reads a file from the database that holds it, falling back to read()
+	 * if it is not there anymore, cannot be read, or is an erasure coded shard.
+	 * @param db - database that holds the file, or null to go straight to read()
+	 */
+	private byte[] readFrom(JSMDatabase db, String fileName) throws IOException {
+		if(db != null) {
+			try {
+				byte[] data = db.read(fileName);
+				if(data != null) {
+					return JSMErasureCoder.isShard(data) ? this.readShards(fileName, data) : data;
+				}
+			} catch(IOException e) {
+				//another drive, the default directory or a node may still have it
+			}
+		}
+		return this.read(fileName);
+	}
+	
+	/**
+	 * Merges sorted lists into one sorted list. A file found in more than
+	 * one list is only kept once.
+	 * @param lists - lists sorted by the comparator
+	 * @param comparator - order of the lists
+	 * @param limit - most entries returned
+	 * @return the first entries of the merged lists.
+	 */
+	private static ArrayList<JSMIndexEntry> merge(List<List<JSMIndexEntry>> lists, Comparator<JSMIndexEntry> comparator, int limit) {
+		PriorityQueue<MergeHead> queue = new PriorityQueue<MergeHead>(Math.max(1, lists.size()), 
+				(a, b) -> comparator.compare(a.entry, b.entry));
+		for(List<JSMIndexEntry> list : lists) {
+			Iterator<JSMIndexEntry> rest = list.iterator();
+			if(rest.hasNext()) { queue.add(new MergeHead(rest.next(), rest)); }
+		}
+		
+		ArrayList<JSMIndexEntry> merged = new ArrayList<JSMIndexEntry>();
+		HashSet<String> seen = new HashSet<String>();
+		while(!queue.isEmpty() && merged.size() < limit) {
+			MergeHead head = queue.poll();
+			if(seen.add(head.entry.getName())) {
+				merged.add(head.entry);
+			}
+			if(head.rest.hasNext()) { queue.add(new MergeHead(head.rest.next(), head.rest)); }
+		}
+		return merged;
+	}
+	
+	/**
+	 * Next entry of one of the lists being merged
+	 */
+	private static class MergeHead {
+		private JSMIndexEntry entry;
+		private Iterator<JSMIndexEntry> rest;
+		
+		private MergeHead(JSMIndexEntry entry, Iterator<JSMIndexEntry> rest) {
+			this.entry = entry;
+			this.rest = rest;
+		}
+	}
+	
+	/**
+	 * Selects a random database to write a file to. As long as 
+	 * database is valid and it can accept another file to write to it,
+	 * an index will be selected.
+	 * @return index in the databases list to be a valid database. Will 
+	 * return -1 if no database is available to write to.
+	 */
+	private synchronized int select(String name) {
+		return this.select(name, null, JSMPriority.NORMAL);
+	}
+	
+	/**
+	 * Selects a database to write a file to, skipping the databases
+	 * that have already failed to write it. A database with a free writer
+	 * is preferred, otherwise the one with the fewest files of the priority 
+	 * class waiting that still has room in its queue.
+	 * @param exclude - databases not to select, may be null
+	 * @param priority - priority class of the file
+	 * @return index in the databases list to be a valid database. Will 
+	 * return -1 if no database is available to write to.
+	 */
+	private synchronized int select(String name, Set<JSMDatabase> exclude, JSMPriority priority) {
+		JSMEvents.Select event = new JSMEvents.Select();
+		event.begin();
+		int selection = -1;
+		for(int i = 0; i < this.databases.size(); i++) {
+			JSMDatabase db = this.databases.get(i);
+			if(exclude != null && exclude.contains(db)) { continue; }
+			if(!db.isValid() || !db.canQueueFile(priority)) { continue; }
+			if(db.canWriteFile()) {
+				selection = i;
+				break;
+			}
+			if(selection == -1 || db.getWriteQueue().getQueued(priority) < 
+					this.databases.get(selection).getWriteQueue().getQueued(priority)) {
+				selection = i;
+			}
+		}
+		event.end();
+		if(event.shouldCommit()) {
+			event.fileName = name;
+			event.priority = priority.name();
+			event.drive = selection == -1 ? "" : this.databases.get(selection).getUSBDriveName();
+			event.commit();
+		}
+		return selection;
+	}
+	
+	/**
+	 * Sets how many times a file that failed to be written to a database, e.g. because its
+	 * drive was pulled out mid-write, is sent to another database before it is written to 
+	 * the default directory instead.
+	 * @param amount - retries per file
+	 */
+	public synchronized void setMaxWriteRetries(int amount) {
+		this.maxWriteRetries = amount;
+	}
+	
+	public synchronized int getMaxWriteRetries() {
+		return this.maxWriteRetries;
+	}
+	
+	/**
+	 * Saves a file to a database or to the default directory if no database is available.
+	 * To successfully write to the database, call the isCurrentlyWriting() and isWrittenToDB()
+	 * methods to test whether or not to even write the file. If these methods are not called
+	 * beforehand and the file was already queued in the databases, the file will not be overridden
+	 * but may be copied in another database will cause unnecessary resources to be consumed. 
+	 * @param data - raw data of file
+	 * @param name - name of the file
+	 * @param force - boolean for whether or not to save the file to the default directory
+	 * if no database is available. 
+	 * @return boolean indicating if a file was successfully queue to be written to a database or
+	 * to the default directory.
+	 */
+	public boolean save(byte[] data, String name, boolean force) {
+		return this.saveAsync(data, name, force).getNow(null) != JSMSaveStatus.FAILED;
+	}
+	
+	/**
+	 * Saves a file like save(), in the passed priority class.
+	 * @param data - raw data of file
+	 * @param name - name of the file
+	 * @param force - boolean for whether or not to save the file to the default directory
+	 * if no database is available. 
+	 * @param priority - priority class of the file
+	 * @return boolean indicating if a file was successfully queue to be written to a database or
+	 * to the default directory.
+	 */
+	public boolean save(byte[] data, String name, boolean force, JSMPriority priority) {
+		return this.saveAsync(data, name, force, priority).getNow(null) != JSMSaveStatus.FAILED;
+	}
+	
+	/**
+	 * Saves a file like save() and reports where it ended up. Once a file is queued to a database,
+	 * the manager holds on to its data until it is committed. If the write fails, the file is sent
+	 * to another valid database, up to maxWriteRetries times, and then to the default directory, 
+	 * whether or not the save was forced.
+	 * @param data - raw data of file
+	 * @param name - name of the file
+	 * @param force - boolean for whether or not to save the file to the default directory
+	 * if no database is available. 
+	 * @return future completed with where the file was written, or FAILED if it could not be
+	 * queued or every attempt to write it failed.
+	 */
+	public CompletableFuture<JSMSaveStatus> saveAsync(byte[] data, String name, boolean force) {
+		return this.saveAsync(data, name, force, JSMPriority.NORMAL);
+	}
+	
+	/**
+	 * Saves a file like saveAsync(), in the passed priority class. When every writer of the
+	 * databases is busy, the file waits in the database's queue for its class, and the
+	 * databases hand out free writers by weighted fair queuing over the classes. Urgent files 
+	 * therefore wait for a bounded share of the writers instead of behind every routine file,
+	 * while bulk files still get written. A file whose class is full on every database goes to
+	 * the default directory as before.
+	 * <br />
+	 * The file's data is counted against the memory budget until it is written. If it does 
+	 * not fit, the budget's policy decides whether this call waits, fails, or spills the file.
+	 * @param data - raw data of file
+	 * @param name - name of the file
+	 * @param force - boolean for whether or not to save the file to the default directory
+	 * if no database is available. 
+	 * @param priority - priority class of the file
+	 * @return future completed with where the file was written, or FAILED if it could not be
+	 * queued or every attempt to write it failed.
+	 */
+	public CompletableFuture<JSMSaveStatus> saveAsync(byte[] data, String name, boolean force, JSMPriority priority) {
+		return this.saveAsync(data, name, force, priority, true);
+	}
+	
+	/**
+	 * Saves a file like saveAsync(), but only to this manager's own databases and default
+	 * directory, never to its nodes. Used to serve the saves of other managers.
+	 * @param data - raw data of file
+	 * @param name - name of the file
+	 * @param force - boolean for whether or not to save the file to the default directory
+	 * if no database is available. 
+	 * @param priority - priority class of the file
+	 * @return future completed with where the file was written, or FAILED if it could not be
+	 * queued or every attempt to write it failed.
+	 */
+	public CompletableFuture<JSMSaveStatus> saveLocalAsync(byte[] data, String name, boolean force, JSMPriority priority) {
+		return this.saveAsync(data, name, force, priority, false);
+	}
+	
+	private CompletableFuture<JSMSaveStatus> saveAsync(byte[] data, String name, boolean force, JSMPriority priority, boolean federate) {
+		JSMEvents.Save event = new JSMEvents.Save();
+		event.begin();
+		PendingSave save = new PendingSave(data, name, force, priority);
+		save.federate = federate;
+		if(this.reserve(save) || this.admit(save)) {
+			synchronized(this) {
+				if(!this.place(save)) {
+					save.finish(JSMSaveStatus.FAILED);
+				}
+			}
+		}
+		event.end();
+		if(event.shouldCommit()) {
+			event.fileName = name;
+			event.bytes = data.length;
+			event.priority = priority.name();
+			event.result = save.status.isDone() ? save.status.getNow(null).name() : "QUEUED";
+			event.commit();
+		}
+		return save.status;
+	}
+	
+	/**
+	 * Reserves room in the memory budget for a save if it fits right away.
+	 * @return boolean indicating if the save's data was reserved.
+	 */
+	private boolean reserve(PendingSave save) {
+		if(this.memoryBudget.tryAcquire(save.data.length)) {
+			save.reserved = save.data.length;
+			save.budget = this.memoryBudget;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Applies the budget's policy to a save that did not fit in it. Must not be
+	 * called while holding the manager's lock, since a BLOCK save waits on other 
+	 * saves finishing.
+	 * @return boolean indicating if room was reserved and the save should be placed.
+	 * Otherwise the save has either been staged in the spill directory or failed.
+	 */
+	private boolean admit(PendingSave save) {
+		JSMAdmission policy = this.memoryBudget.getPolicy();
+		if(policy == JSMAdmission.BLOCK) {
+			try {
+				if(this.memoryBudget.acquire(save.data.length, this.memoryBudget.getBlockTimeout())) {
+					save.reserved = save.data.length;
+					save.budget = this.memoryBudget;
+					return true;
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		this.memoryBudget.refuse();
+		if(policy != JSMAdmission.SPILL || !this.spill(save)) {
+			save.finish(JSMSaveStatus.FAILED);
+		}
+		return false;
+	}
+	
+	/**
+	 * Stages a save that did not fit in the memory budget in the spill directory on
+	 * local disk and lets go of its data. The save stays pending until the restager 
+	 * has placed it on a database. The file is written without the manager's lock, so
+	 * other saves are not held up behind the local disk.
+	 * @return boolean indicating if the file was staged. Fails if a file of
+	 * the same name is already staged.
+	 */
+	private boolean spill(PendingSave save) {
+		synchronized(this) {
+			if(this.fanout.isShutdown() || this.spilled.get(save.name) != null) { return false; }
+			//holds the name while the file is written without the lock
+			this.spilled.put(save.name, save);
+		}
+		boolean written = this.writeLocal(rootDBDir + "spill/", save.data, save.name);
+		synchronized(this) {
+			if(!written) {
+				this.spilled.remove(save.name);
+				return false;
+			}
+			save.data = null;
+			save.staged = true;
+			this.spillQueue.add(save);
+			this.restage();
+		}
+		return true;
+	}
+	
+	/**
+	 * Starts the restager if there are staged saves and it is not running yet.
+	 */
+	private synchronized void restage() {
+		if(this.restaging || this.spillQueue.isEmpty()) { return; }
+		this.restaging = true;
+		try {
+			this.fanout.submit(this::restageAll);
+		} catch(RejectedExecutionException e) {
+			this.restaging = false;
+		}
+	}
+	
+	/**
+	 * Places the staged saves on the databases one after another, oldest first. Each 
+	 * one waits until its data fits in the memory budget again and a database has room
+	 * in its queue, then is read back from the spill directory and placed like any other
+	 * save. Its staged file is deleted once it is written.
+	 */
+	private void restageAll() {
+		while(true) {
+			PendingSave save;
+			synchronized(this) {
+				save = this.spillQueue.peek();
+				if(save == null || this.fanout.isShutdown()) {
+					this.restaging = false;
+					return;
+				}
+			}
+			
+			String path = rootDBDir + "spill/" + save.name;
+			try {
+				long size = Files.size(Paths.get(path));
+				if(!this.memoryBudget.acquire(size, SPILL_RETRY_MS)) { continue; }
+				
+				boolean placed = false;
+				synchronized(this) {
+					if(this.select(save.name, save.failed, save.priority) != -1 || 
+							(save.federate && !this.nodes.isEmpty())) {
+						save.data = Files.readAllBytes(Paths.get(path));
+						save.reserved = size;
+						save.budget = this.memoryBudget;
+						placed = this.place(save);
+						if(placed) {
+							this.spillQueue.remove(save);
+						} else {
+							save.data = null;
+							save.budget = null;
+						}
+					}
+				}
+				if(!placed) {
+					this.memoryBudget.release(size);
+					Thread.sleep(SPILL_RETRY_MS);
+					continue;
+				}
+				save.status.whenComplete((status, e) -> unspill(save, status));
+			} catch(InterruptedException e) {
+				synchronized(this) { this.restaging = false; }
+				return;
+			} catch(IOException e) {
+				//the staged file is gone or unreadable, nothing is left to place
+				e.printStackTrace();
+				synchronized(this) {
+					this.spillQueue.remove(save);
+					this.spilled.remove(save.name);
+				}
+				save.finish(JSMSaveStatus.FAILED);
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the staged file of a save once it is done. A save that failed everywhere 
+	 * has been reported as failed, so its staged file is deleted too.
+	 */
+	private synchronized void unspill(PendingSave save, JSMSaveStatus status) {
+		this.spilled.remove(save.name);
+		try {
+			Files.deleteIfExists(Paths.get(rootDBDir + "spill/" + save.name));
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Moves the saves still waiting in the spill directory to the default directory
+	 * when the manager is shut down, so that their futures complete.
+	 */
+	private synchronized void unstage() {
+		for(PendingSave save : this.spillQueue) {
+			String path = rootDBDir + "spill/" + save.name;
+			try {
+				if(!Files.exists(Paths.get(rootDBDir + "default/" + save.name)) &&
+						JSMDatabase.publish(path, rootDBDir + "default/" + save.name, this.durability != JSMDurability.NONE)) {
+					this.addToFilesInDefault(save.name, Files.size(Paths.get(rootDBDir + "default/" + save.name)), System.currentTimeMillis());
+					this.spilled.remove(save.name);
+					save.finish(JSMSaveStatus.DEFAULT);
+					continue;
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+			save.finish(JSMSaveStatus.FAILED);
+		}
+		this.spillQueue.clear();
+	}
+	
+	/**
+	 * Caps the bytes of file data held by saves that have not been written yet, so a burst
+	 * of large files cannot run the JVM out of memory. Every save reserves the size of its
+	 * data and releases it once the file is written or has failed.
+	 * @param bytes - most bytes held at once, 0 for no limit
+	 * @param policy - BLOCK to make saves wait for room, FAIL to fail them right away, or
+	 * SPILL to stage them in the spill directory on local disk, from where they are placed
+	 * on a database once the budget and a writer have room for them again
+	 */
+	public void setMemoryBudget(long bytes, JSMAdmission policy) {
+		this.memoryBudget.setPolicy(policy);
+		this.memoryBudget.setLimit(bytes);
+	}
+	
+	/**
+	 * @return the memory budget, for the bytes currently held, the peak, and 
+	 * how many saves did not fit.
+	 */
+	public JSMMemoryBudget getMemoryBudget() {
+		return this.memoryBudget;
+	}
+	
+	/**
+	 * Saves a batch of files at once, e.g. every frame captured since the last tick. The
+	 * valid databases are looked up once for the whole batch and the files are spread over
+	 * them by size, each database writing its share one file after another with a single
+	 * writer and committing its index once. Files that fail are sent to other databases
+	 * the same way saveAsync() does it.
+	 * @param files - raw data of the files keyed by file name
+	 * @param force - boolean for whether or not to save files to the default directory
+	 * if no database is available. 
+	 * @return future for every file, completed with where the file was written, or FAILED 
+	 * if it could not be queued or every attempt to write it failed.
+	 */
+	public LinkedHashMap<String, CompletableFuture<JSMSaveStatus>> saveAll(Map<String, byte[]> files, boolean force) {
+		return this.saveAll(files, force, JSMPriority.NORMAL);
+	}
+	
+	/**
+	 * Saves a batch of files like saveAll(), in the passed priority class. The batch of each
+	 * database waits in the queue of its class if every writer of that database is busy.
+	 * @param files - raw data of the files keyed by file name
+	 * @param force - boolean for whether or not to save files to the default directory
+	 * if no database is available. 
+	 * @param priority - priority class of the files
+	 * @return future for every file, completed with where the file was written, or FAILED 
+	 * if it could not be queued or every attempt to write it failed.
+	 */
+	public LinkedHashMap<String, CompletableFuture<JSMSaveStatus>> saveAll(Map<String, byte[]> files, boolean force, JSMPriority priority) {
+		LinkedHashMap<String, CompletableFuture<JSMSaveStatus>> results = new LinkedHashMap<String, CompletableFuture<JSMSaveStatus>>();
+		
+		//files are placed as they fit in the memory budget, and the ones reserved so far
+		//are placed before waiting for room so that they can free it
+		ArrayList<PendingSave> admitted = new ArrayList<PendingSave>(files.size());
+		for(Map.Entry<String, byte[]> file : files.entrySet()) {
+			PendingSave save = new PendingSave(file.getValue(), file.getKey(), force, priority);
+			results.put(save.name, save.status);
+			if(this.reserve(save)) {
+				admitted.add(save);
+				continue;
+			}
+			
+			this.placeAll(admitted, priority);
+			admitted = new ArrayList<PendingSave>(files.size());
+			if(this.admit(save)) {
+				admitted.add(save);
+			}
+		}
+		this.placeAll(admitted, priority);
+		return results;
+	}
+	
+	/**
+	 * Spreads reserved saves over the databases that can take them, largest first.
+	 */
+	private synchronized void placeAll(ArrayList<PendingSave> saves, JSMPriority priority) {
+		if(saves.isEmpty()) { return; }
+		
+		LinkedList<JSMDatabase> targets = new LinkedList<JSMDatabase>();
+		for(JSMDatabase db : this.databases) {
+			if(db.canQueueFile(priority) && db.isValid()) {
+				targets.add(db);
+			}
+		}
+		
+		//largest files first, each to the database with the fewest bytes so far
+		saves.sort((a, b) -> Integer.compare(b.data.length, a.data.length));
+		
+		ArrayList<LinkedHashMap<String, PendingSave>> shares = new ArrayList<LinkedHashMap<String, PendingSave>>();
+		long[] bytes = new long[targets.size()];
+		for(int i = 0; i < targets.size(); i++) {
+			shares.add(new LinkedHashMap<String, PendingSave>());
+		}
+		LinkedList<PendingSave> unplaced = new LinkedList<PendingSave>();
+		for(PendingSave save : saves) {
+			if(targets.isEmpty()) {
+				unplaced.add(save);
+				continue;
+			}
+			int smallest = 0;
+			for(int i = 1; i < bytes.length; i++) {
+				if(bytes[i] < bytes[smallest]) { smallest = i; }
+			}
+			shares.get(smallest).put(save.name, save);
+			bytes[smallest] += save.data.length;
+		}
+		
+		for(int i = 0; i < targets.size(); i++) {
+			JSMDatabase db = targets.get(i);
+			LinkedHashMap<String, PendingSave> share = shares.get(i);
+			if(share.isEmpty()) { continue; }
+			
+			LinkedHashMap<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+			for(PendingSave save : share.values()) {
+				batch.put(save.name, save.data);
+			}
+			HashMap<String, CompletableFuture<Boolean>> committed = db.submitAll(batch, priority);
+			if(committed == null) {
+				unplaced.addAll(share.values());
+				continue;
+			}
+			for(PendingSave save : share.values()) {
+				committed.get(save.name).whenComplete((written, e) -> finishWrite(save, db, written != null && written));
+			}
+		}
+		
+		for(PendingSave save : unplaced) {
+			if(!this.place(save)) {
+				save.finish(JSMSaveStatus.FAILED);
+			}
+		}
+	}
+	
+	/**
+	 * Queues a pending file to a database, or writes it to the default directory if
+	 * no database is available and the save allows it.
+	 * @return boolean indicating if the file was queued or written.
+	 */
+	private synchronized boolean place(PendingSave save) {
+		if(this.erasureCoder != null && save.attempts == 0 && !save.shardsTried && this.placeShards(save)) {
+			return true;
+		}
+		
+		if(save.attempts <= this.maxWriteRetries) {
+			int index = this.select(save.name, save.failed, save.priority);
+			
+			//with no free writer here, the file goes to a node instead of waiting in a queue
+			if(save.federate && !save.nodesTried && !this.nodes.isEmpty() && 
+					(index == -1 || !this.databases.get(index).canWriteFile())) {
+				save.nodesTried = true;
+				try {
+					this.fanout.submit(() -> placeRemote(save));
+					return true;
+				} catch(RejectedExecutionException e) {
+					//the manager is shutting down, place the file here instead
+				}
+			}
+			
+			if(index != -1) {
+				JSMDatabase db = this.databases.get(index);
+				CompletableFuture<Boolean> committed = db.submit(save.data, save.name, save.priority);
+				if(committed != null) {
+					committed.whenComplete((written, e) -> finishWrite(save, db, written != null && written));
+					return true;
+				}
+			}
+		}
+		
+		if(save.force) {
+			if(this.writeToDefault(save.data, save.name)) {
+				save.finish(JSMSaveStatus.DEFAULT);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends a pending file to the next node that can take it, or places it on this
+	 * manager again if none can. Nodes are asked without holding the manager's lock,
+	 * so managers that are nodes of each other cannot deadlock.
+	 */
+	private void placeRemote(PendingSave save) {
+		JSMStorageNode node = this.selectNode(save);
+		if(node != null) {
+			CompletableFuture<JSMSaveStatus> status;
+			try {
+				status = node.save(save.data, save.name, save.priority);
+			} catch(Exception e) {
+				status = CompletableFuture.completedFuture(JSMSaveStatus.FAILED);
+			}
+			status.whenComplete((result, e) -> {
+				boolean written = result == JSMSaveStatus.DATABASE;
+				try {
+					this.fanout.submit(() -> finishRemoteWrite(save, node, written));
+				} catch(RejectedExecutionException e1) {
+					//the manager has shut down, a failed file cannot be placed again
+					save.finish(written ? JSMSaveStatus.DATABASE : JSMSaveStatus.FAILED);
+				}
+			});
+			return;
+		}
+		
+		synchronized(this) {
+			if(!this.place(save)) {
+				save.finish(JSMSaveStatus.FAILED);
+			}
+		}
+	}
+	
+	/**
+	 * Picks the next node, round robin, that is healthy, has room, and has not failed the file.
+	 * @return the node, or null if none can take the file.
+	 */
+	private JSMStorageNode selectNode(PendingSave save) {
+		ArrayList<JSMStorageNode> candidates;
+		int start;
+		synchronized(this) {
+			candidates = new ArrayList<JSMStorageNode>(this.nodes);
+			start = this.nextNode++;
+		}
+		for(int i = 0; i < candidates.size(); i++) {
+			JSMStorageNode node = candidates.get(Math.floorMod(start + i, candidates.size()));
+			if(!save.failedNodes.contains(node) && node.canAccept()) {
+				return node;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Called once a node has finished writing a pending file. A failed file is
+	 * placed again, excluding the node that failed it.
+	 */
+	private void finishRemoteWrite(PendingSave save, JSMStorageNode node, boolean written) {
+		if(written) {
+			save.finish(JSMSaveStatus.DATABASE);
+			return;
+		}
+		
+		synchronized(this) {
+			save.failedNodes.add(node);
+			save.nodesTried = false;
+			save.attempts += 1;
+			save.force = true;
+			if(!this.place(save)) {
+				save.finish(JSMSaveStatus.FAILED);
+			}
+		}
+	}
+	
+	/**
+	 * Adds another manager as a place to store files. Files are sent to nodes,
+	 * in turn, whenever no database of this manager has a free writer, and 
+	 * isWrittenAnywhere() and read() look for files on the nodes too.
+	 * @param node - the node, e.g. a JSMRemoteNode for a manager served by a JSMServer
+	 */
+	public synchronized void addNode(JSMStorageNode node) {
+		this.nodes.add(node);
+	}
+	
+	public synchronized void removeNode(JSMStorageNode node) {
+		this.nodes.remove(node);
+	}
+	
+	public synchronized LinkedList<JSMStorageNode> getNodes() {
+		return new LinkedList<JSMStorageNode>(this.nodes);
+	}
+	
+	/**
+	 * Starts splitting a pending file into shards if there are enough databases to take
+	 * them. The file is encoded on the fanout executor, without the manager's lock.
+	 * @return boolean indicating if the file is being sharded. False if there are fewer
+	 * databases able to take a shard than there are shards.
+	 */
+	private synchronized boolean placeShards(PendingSave save) {
+		JSMErasureCoder coder = this.erasureCoder;
+		save.shardsTried = true;
+		if(this.shardTargets(save, null, coder.getTotalShards()).size() < coder.getTotalShards()) { return false; }
+		try {
+			this.fanout.submit(() -> encodeShards(save, coder));
+			return true;
+		} catch(RejectedExecutionException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Encodes a pending file, then takes the manager's lock only to queue each shard to
+	 * a different database. If the databases filled up in the meantime the file is 
+	 * placed whole instead.
+	 */
+	private void encodeShards(PendingSave save, JSMErasureCoder coder) {
+		byte[][] shards;
+		try {
+			shards = coder.encode(save.data);
+		} catch(Exception e) {
+			e.printStackTrace();
+			shards = null;
+		}
+		
+		synchronized(this) {
+			ArrayList<JSMDatabase> targets = this.shardTargets(save, null, coder.getTotalShards());
+			if(shards == null || targets.size() < shards.length) {
+				if(!this.place(save)) {
+					save.finish(JSMSaveStatus.FAILED);
+				}
+				return;
+			}
+			
+			ArrayList<CompletableFuture<Boolean>> committed = new ArrayList<CompletableFuture<Boolean>>();
+			for(int i = 0; i < shards.length; i++) {
+				CompletableFuture<Boolean> shard = targets.get(i).submit(shards[i], save.name, save.priority);
+				committed.add(shard == null ? CompletableFuture.completedFuture(false) : shard);
+			}
+			byte[][] encoded = shards;
+			CompletableFuture.allOf(committed.toArray(new CompletableFuture<?>[0]))
+					.whenComplete((done, e) -> finishShards(save, encoded, targets, committed, coder.getDataShards()));
+		}
+	}
+	
+	/**
+	 * @param exclude - databases not to pick, may be null
+	 * @param shards - most databases to pick
+	 * @return the valid databases that can queue a shard of the file and do not hold
+	 * one yet, at most one per shard.
+	 */
+	private synchronized ArrayList<JSMDatabase> shardTargets(PendingSave save, Set<JSMDatabase> exclude, int shards) {
+		ArrayList<JSMDatabase> targets = new ArrayList<JSMDatabase>();
+		for(JSMDatabase db : this.databases) {
+			if(targets.size() == shards) { break; }
+			if(exclude != null && exclude.contains(db)) { continue; }
+			if(db.isValid() && db.canQueueFile(save.priority) && !db.isWrittenToDB(save.name)) {
+				targets.add(db);
+			}
+		}
+		return targets;
+	}
+	
+	/**
+	 * Called once every shard of a pending file is done. If enough shards made it to
+	 * rebuild the file, the missing ones are queued once more to databases that were 
+	 * not tried, and the file is counted as degraded if any of them still fails. 
+	 * Otherwise the shards that did are removed and the file is placed again as a whole.
+	 */
+	private void finishShards(PendingSave save, byte[][] shards, ArrayList<JSMDatabase> targets, ArrayList<CompletableFuture<Boolean>> committed, int dataShards) {
+		LinkedList<JSMDatabase> written = new LinkedList<JSMDatabase>();
+		ArrayList<Integer> missing = new ArrayList<Integer>();
+		for(int i = 0; i < committed.size(); i++) {
+			if(committed.get(i).join()) {
+				written.add(targets.get(i));
+			} else {
+				missing.add(i);
+			}
+		}
+		if(written.size() >= dataShards) {
+			if(missing.isEmpty()) {
+				save.finish(JSMSaveStatus.DATABASE);
+			} else {
+				this.repairShards(save, shards, targets, missing);
+			}
+			return;
+		}
+		
+		for(JSMDatabase db : written) {
+			db.delete(Arrays.asList(save.name));
+		}
+		synchronized(this) {
+			save.attempts += 1;
+			save.force = true;
+			if(!this.place(save)) {
+				save.finish(JSMSaveStatus.FAILED);
+			}
+		}
+	}
+	
+	/**
+	 * Queues the shards that failed to databases that were not tried yet, and finishes 
+	 * the save once they are done, counting it as degraded if any shard is still missing.
+	 * @param tried - databases that were handed a shard of the file
+	 * @param missing - indexes of the shards that failed
+	 */
+	private void repairShards(PendingSave save, byte[][] shards, ArrayList<JSMDatabase> tried, ArrayList<Integer> missing) {
+		ArrayList<CompletableFuture<Boolean>> repaired = new ArrayList<CompletableFuture<Boolean>>();
+		synchronized(this) {
+			ArrayList<JSMDatabase> targets = this.shardTargets(save, new HashSet<JSMDatabase>(tried), missing.size());
+			for(int i = 0; i < missing.size(); i++) {
+				CompletableFuture<Boolean> shard = i < targets.size() ? 
+						targets.get(i).submit(shards[missing.get(i)], save.name, save.priority) : null;
+				repaired.add(shard == null ? CompletableFuture.completedFuture(false) : shard);
+			}
+		}
+		CompletableFuture.allOf(repaired.toArray(new CompletableFuture<?>[0])).whenComplete((done, e) -> {
+			for(CompletableFuture<Boolean> shard : repaired) {
+				if(!shard.join()) {
+					synchronized(this) { this.degradedFiles += 1; }
+					break;
+				}
+			}
+			save.finish(JSMSaveStatus.DATABASE);
+		});
+	}
+	
+	/**
+	 * Called once a database has finished writing a pending file. A failed
+	 * file is placed again, excluding the database that failed it.
+	 */
+	private void finishWrite(PendingSave save, JSMDatabase db, boolean written) {
+		if(written) {
+			save.finish(JSMSaveStatus.DATABASE);
+			return;
+		}
+		
+		synchronized(this) {
+			save.failed.add(db);
+			save.nodesTried = false;
+			save.attempts += 1;
+			save.force = true;
+			if(!this.place(save)) {
+				save.finish(JSMSaveStatus.FAILED);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a file to the default directory. Like the databases, the file is written
+	 * under its temporary name and renamed once it is complete.
+	 * @return boolean indicating if the file was written. Fails if
+	 * the file already exists in the default directory.
+	 */
+	private synchronized boolean writeToDefault(byte[] data, String name) {
+		if(this.writeLocal(rootDBDir + "default/", data, name)) {
+			this.addToFilesInDefault(name, data.length, System.currentTimeMillis());
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Writes a file to a directory on local disk under its temporary name and 
+	 * renames it once it is complete.
+	 * @param dir - directory to write the file to
+	 * @return boolean indicating if the file was written. Fails if
+	 * the file already exists in the directory.
+	 */
+	private boolean writeLocal(String dir, byte[] data, String name) {
+		String temp = dir + JSMDatabase.TEMP_PREFIX + name;
+		try {
+			if(!Files.exists(Paths.get(dir + name))) {
+				Files.deleteIfExists(Paths.get(temp));
+				Files.createFile(Paths.get(temp), JSMDBManager.getFullPermissions());
+				
+				FileOutputStream fos = new FileOutputStream(temp);
+				fos.write(data); 
+				if(this.durability != JSMDurability.NONE) { fos.getFD().sync(); }
+				fos.close();
+				
+				if(JSMDatabase.publish(temp, dir + name, this.durability != JSMDurability.NONE)) {
+					return true;
+				}
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		
+		try {
+			Files.deleteIfExists(Paths.get(temp));
+		} catch(IOException e) { e.printStackTrace(); }
+		return false;
+	}
+	
+	/**
+	 * A file handed to saveAsync() that has not been committed yet
+	 */
+	private static class PendingSave {
+		private byte[] data;
+		private String name;
+		private boolean force;
+		private JSMPriority priority;
+		private int attempts;
+		private JSMMemoryBudget budget;
+		private long reserved;
+		private boolean federate;
+		private boolean nodesTried;
+		private boolean shardsTried;
+		private boolean staged;
+		private HashSet<JSMStorageNode> failedNodes;
+		private HashSet<JSMDatabase> failed;
+		private CompletableFuture<JSMSaveStatus> status;
+		
+		private PendingSave(byte[] data, String name, boolean force, JSMPriority priority) {
+			this.data = data;
+			this.name = name;
+			this.force = force;
+			this.priority = priority;
+			this.attempts = 0;
+			this.budget = null;
+			this.reserved = 0;
+			this.federate = false;
+			this.nodesTried = false;
+			this.shardsTried = false;
+			this.staged = false;
+			this.failedNodes = new HashSet<JSMStorageNode>();
+			this.failed = new HashSet<JSMDatabase>();
+			this.status = new CompletableFuture<JSMSaveStatus>();
+		}
+		
+		/**
+		 * Reports the outcome and lets go of the data and its room in the memory budget.
+		 */
+		private void finish(JSMSaveStatus result) {
+			this.data = null;
+			if(this.budget != null) {
+				this.budget.release(this.reserved);
+				this.budget = null;
+			}
+			this.status.complete(result);
 		}
 	}
 }
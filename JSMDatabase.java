@@ -1,28 +1,148 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 
 public class JSMDatabase {
 	
+	/**
+	 * Name of the index file kept in the root of each database. Files 
+	 * starting with '.jsm' belong to the database itself and are never 
+	 * counted or moved as stored files.
+	 */
+	public static final String INDEX_FILE = ".jsmindex";
+	
+	/**
+	 * Prefix of the name a file is written under until it is complete. Files with it
+	 * are not data files, and are swept when the database is initialized.
+	 */
+	public static final String TEMP_PREFIX = ".jsmtmp.";
+	
 	private String usbDrivePath;
 	private String usbDriveName;
 	private int maxWriters;
+	private JSMWriteMode writeMode;
+	
+	/**
+	 * Bytes after which a SEQUENTIAL writer stops taking waiting batches into its run
+	 */
+	private long runBytes;
 	private int folderIndex;
 	private int rootFiles;
 	private int fileWriteSpeed;
-	private ThreadPoolExecutor reducingRoot;
-	private ThreadPoolExecutor fileWriters;
+	
+	/**
+	 * Chunk size used by writeFile(), adapted to the drive's write latency within
+	 * minChunkSize and maxChunkSize, and always a multiple of the block size
+	 */
+	private int chunkSize;
+	private int minChunkSize;
+	private int maxChunkSize;
+	private long chunkLatency;
+	
+	/**
+	 * Nano time of the last chunk write that was synced to measure the drive's latency,
+	 * and the nanoseconds to wait between two such samples
+	 */
+	private long lastSample;
+	private long sampleInterval;
+	private int blockSize;
+	private boolean blockSizeSet;
+	
+	/**
+	 * Adjusts the amount of writers and the write speed when set
+	 */
+	private JSMWriteController controller;
+	private ExecutorService reducingRoot;
+	private ExecutorService fileWriters;
+	private JSMPermits rootPermits;
+	private JSMPermits writerPermits;
+	private JSMPermits readerPermits;
+	private JSMWriteQueue<WriteBatch> writeQueue;
+	private boolean useVirtualThreads;
+	/**
+	 * Maps the name of every file in the database to the directory it resides in
+	 */
 	private HashMap<String, String> filesInDB;
+	
+	/**
+	 * Index entries of the files written by this database, keyed by name
+	 */
+	private HashMap<String, JSMIndexEntry> index;
+	private JSMParser indexFile;
+	
+	/**
+	 * Held while appending to or rewriting the index file, so neither needs the
+	 * database's lock. Never taken while holding the database's lock.
+	 */
+	private Object indexLock;
+	
+	/**
+	 * Entries of every stored file, including ones written before the index 
+	 * existed, sorted by name and by commit time for listing queries
+	 */
+	private TreeMap<String, JSMIndexEntry> byName;
+	private TreeSet<JSMIndexEntry> byTime;
+	private long storedBytes;
+	private JSMCodec codec;
+	private HashMap<String, JSMCodec> codecs;
+	
+	/**
+	 * Chunks of the files stored deduplicated, and whether new files are
+	 */
+	private JSMChunkStore chunkStore;
+	private boolean deduplicate;
+	private HashSet<String> corruptFiles;
+	private boolean verifyReads;
+	private JSMScrubber scrubber;
+	private JSMReclaimer reclaimer;
+	
+	/**
+	 * Nanoseconds and bytes spent computing checksums while writing files
+	 */
+	private AtomicLong checksumTime;
+	private AtomicLong checksumBytes;
+	
+	private JSMDurability durability;
+	private JSMGroupCommitter groupCommitter;
+	private long groupCommitWindow;
+	private long groupCommitBytes;
 	private HashMap<String, String> currentlyWriting;
 	private boolean isValid;
+	private boolean draining;
+	private long drainTimeout;
+	private CompletableFuture<Boolean> drained;
 	
 	/**
 	 * Constructs a new database. Call init method directly after.
@@ -31,98 +151,522 @@ public class JSMDatabase {
 	 */
 	public JSMDatabase(String usbDrivePath, String usbDriveName) {
 		filesInDB = new HashMap<String, String>();
+		index = new HashMap<String, JSMIndexEntry>();
+		byName = new TreeMap<String, JSMIndexEntry>();
+		byTime = new TreeSet<JSMIndexEntry>(JSMIndexEntry.BY_TIME);
+		storedBytes = 0;
+		codecs = new HashMap<String, JSMCodec>();
+		codec = null;
+		corruptFiles = new HashSet<String>();
+		verifyReads = false;
+		scrubber = null;
+		reclaimer = null;
+		checksumTime = new AtomicLong(0);
+		checksumBytes = new AtomicLong(0);
+		durability = JSMDurability.NONE;
+		groupCommitter = null;
+		groupCommitWindow = 200;
+		groupCommitBytes = 8388608;
 		currentlyWriting = new HashMap<String, String>();
+		indexLock = new Object();
 		this.usbDrivePath = usbDrivePath;
 		this.usbDriveName = usbDriveName;
+		this.chunkStore = new JSMChunkStore(usbDrivePath + JSMChunkStore.DIRECTORY);
+		this.deduplicate = false;
 		this.fileWriteSpeed = 100;
+		this.blockSize = 4096;
+		this.blockSizeSet = false;
+		this.minChunkSize = 65536;
+		this.maxChunkSize = 4194304;
+		this.chunkLatency = 50000000L;
+		this.lastSample = 0;
+		this.sampleInterval = 100000000L;
+		this.chunkSize = 524288;
+		this.controller = null;
 		this.folderIndex = -1;
 		this.rootFiles = 0;
 		this.maxWriters = 4;
-		this.reducingRoot = (ThreadPoolExecutor) Executors.newCachedThreadPool();
-		this.fileWriters = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+		this.writeMode = JSMWriteMode.CONCURRENT;
+		this.runBytes = 33554432;
+		this.useVirtualThreads = false;
+		this.reducingRoot = JSMThreads.newExecutor(false);
+		this.fileWriters = JSMThreads.newExecutor(false);
+		this.rootPermits = new JSMPermits(1);
+		this.writerPermits = new JSMPermits(this.maxWriters);
+		this.readerPermits = new JSMPermits(2);
+		this.writeQueue = new JSMWriteQueue<WriteBatch>(8);
 		this.isValid = false;
+		this.draining = false;
+		this.drainTimeout = 60000;
+		this.drained = null;
 	}
 	
 	/**
 	 * Initializes the database by creating the root directory for it and
-	 * mounting the hard drive too it. If mount is successful, the folder index
-	 * is initialized and the total files within the database are counted.
+	 * mounting the hard drive too it. If mount is successful, the files left
+	 * by writes that never completed are swept, the folder index is initialized 
+	 * and the total files within the database are counted.
 	 * @return boolean indicating success of initializing this database
 	 */
 	public synchronized boolean init() {
-		if(!Files.exists(Paths.get(this.usbDrivePath))) {
-			try {
-				Files.createDirectory(Paths.get(this.usbDrivePath), JSMDBManager.getFullPermissions());
-			} catch (IOException e) {
-				e.printStackTrace();
-				return false;
+		JSMEvents.Init event = new JSMEvents.Init();
+		event.begin();
+		int swept = 0;
+		try {
+			if(!Files.exists(Paths.get(this.usbDrivePath))) {
+				try {
+					Files.createDirectory(Paths.get(this.usbDrivePath), JSMDBManager.getFullPermissions());
+				} catch (IOException e) {
+					e.printStackTrace();
+					return false;
+				}
+			}
+			
+			if(this.mount()) {
+				swept = sweepTempFiles(this.usbDrivePath);
+				this.folderIndex = this.getFolderIndex();
+				this.probeBlockSize();
+				this.getFilesInDrive();
+				this.loadIndex();
+				this.buildSortedIndex();
+				swept += this.loadChunks();
+				this.isValid = true;
+				return true;
+			}
+			
+			return false;
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.drive = this.usbDriveName;
+				event.path = this.usbDrivePath;
+				event.success = this.isValid;
+				event.files = this.filesInDB.size();
+				event.swept = swept;
+				event.commit();
 			}
 		}
-		
-		if(JSMDBManager.mountHardDrive(this.usbDriveName, this.usbDrivePath)) {
-			this.folderIndex = this.getFolderIndex();
-			this.getFilesInDrive();
-			this.isValid = true;
-			return true;
-		}
-		
-		return false;
 	}
 	
 	/**
-	 * Waits until reducing root process is completed and
-	 * until all files have been written to database and then
-	 * proceeds to unmount the drive. Database should be deleted
-	 * and should then be recreated.
+	 * Stops this database from accepting any more files and drains it in the background.
+	 * Files that are already being written are given until the drain timeout to finish,
+	 * along with any reducing root process, after which they are interrupted and the 
+	 * partially written files are removed. The drive is then unmounted. Database should 
+	 * be deleted and should then be recreated.
+	 * @return future completed once the drive is unmounted, holding true if everything 
+	 * finished before the drain timeout and the unmount succeeded.
 	 */
-	public synchronized void uninit() {
-		while(true) {
-			if(this.isReducingRoot() || this.isWritingFiles()) {
-				try { TimeUnit.SECONDS.sleep(5); } catch (InterruptedException e) {}
-			} else {
-				Process p2;
+	public synchronized CompletableFuture<Boolean> uninit() {
+		if(this.drained != null) { return this.drained; }
+		
+		this.draining = true;
+		this.drained = new CompletableFuture<Boolean>();
+		if(this.scrubber != null) { this.scrubber.shutdown(); }
+		if(this.reclaimer != null) { this.reclaimer.shutdown(); }
+		long timeout = this.drainTimeout;
+		Thread drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
 				try {
-					p2 = Runtime.getRuntime().exec("sudo umount " + this.usbDriveName); p2.waitFor();
-				} catch (Exception e) {
-					e.printStackTrace();
+					drained.complete(drain(timeout));
+				} catch(Exception e) {
+					drained.completeExceptionally(e);
 				}
-				
-				break;
 			}
+		}, "jsm-drain-" + this.usbDriveName);
+		drainer.start();
+		return this.drained;
+	}
+	
+	/**
+	 * Waits for the writers and the root reducer to finish, up to the timeout, 
+	 * and unmounts the drive.
+	 * @param timeout - milliseconds to wait for the writers to finish
+	 * @return boolean indicating if everything finished in time and the unmount succeeded.
+	 */
+	private boolean drain(long timeout) {
+		JSMEvents.Drain event = new JSMEvents.Drain();
+		event.begin();
+		LinkedList<WriteBatch> aborted = this.writeQueue.clear();
+		for(WriteBatch batch : aborted) {
+			batch.abort();
+		}
+		this.fileWriters.shutdown();
+		this.reducingRoot.shutdown();
+		
+		boolean finished = false;
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			finished = this.fileWriters.awaitTermination(timeout, TimeUnit.MILLISECONDS) &&
+					this.reducingRoot.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			
+			if(!finished) {
+				this.fileWriters.shutdownNow();
+				this.reducingRoot.shutdownNow();
+				this.fileWriters.awaitTermination(5, TimeUnit.SECONDS);
+				this.reducingRoot.awaitTermination(5, TimeUnit.SECONDS);
+			}
+			
+			JSMGroupCommitter committer = this.getGroupCommitter();
+			if(committer != null) {
+				committer.shutdown();
+				committer.join(Math.max(1, deadline - System.currentTimeMillis()));
+				finished = finished && !committer.isAlive();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		finished = this.unmount() && finished;
+		
+		event.end();
+		if(event.shouldCommit()) {
+			event.drive = this.usbDriveName;
+			event.aborted = aborted.size();
+			event.finished = finished;
+			event.commit();
+		}
+		return finished;
+	}
+	
+	/**
+	 * Mounts the usb drive to the database's path.
+	 * @return boolean indicating success of the mount.
+	 */
+	protected boolean mount() {
+		return JSMDBManager.mountHardDrive(this.usbDriveName, this.usbDrivePath);
+	}
+	
+	/**
+	 * @return boolean indicating if the usb drive is still mounted to the database's path.
+	 */
+	protected boolean isMounted() {
+		return JSMDBManager.getMountPaths(this.usbDriveName).contains(this.usbDrivePath);
+	}
+	
+	/**
+	 * Unmounts the usb drive.
+	 * @return boolean indicating success of the unmount.
+	 */
+	protected boolean unmount() {
+		try {
+			Process p2 = Runtime.getRuntime().exec("sudo umount " + this.getUSBDriveName()); 
+			return p2.waitFor() == 0;
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
 		}
 	}
 	
+	/**
+	 * Sets how long uninit() lets files that are being written finish
+	 * before interrupting them.
+	 * @param timeoutms - milliseconds to wait
+	 */
+	public synchronized void setDrainTimeout(long timeoutms) {
+		this.drainTimeout = timeoutms;
+	}
+	
+	public synchronized long getDrainTimeout() {
+		return this.drainTimeout;
+	}
+	
+	/**
+	 * @return boolean indicating if uninit() has been called on this database.
+	 */
+	public synchronized boolean isDraining() {
+		return this.draining;
+	}
+	
 	/**
 	 * Counts the total amount of files residing in the database and
-	 * the total amount of files residing in the root directory.
+	 * the total amount of files residing in the root directory. The sub
+	 * directories are listed in parallel.
 	 */
 	public synchronized void getFilesInDrive() {
-		File[] files = new File(this.usbDrivePath).listFiles(File::isFile);
-		for(int i = 0; i < files.length; i++) {
-			rootFiles+=1;
-			filesInDB.put(files[i].getName(), files[i].getName());
+		JSMEvents.FileScan event = new JSMEvents.FileScan();
+		event.begin();
+		try {
+			File[] files = new File(this.usbDrivePath).listFiles(JSMDatabase::isDataFile);
+			if(files == null) { return; }
+			for(int i = 0; i < files.length; i++) {
+				rootFiles+=1;
+				filesInDB.put(files[i].getName(), this.usbDrivePath);
+			}
+			
+			File[] directories = new File(this.usbDrivePath).listFiles(f -> f.isDirectory() && !f.getName().startsWith(".jsm"));
+			if(directories == null) { return; }
+			List<File> subfiles = Arrays.stream(directories).parallel()
+					.flatMap(directory -> {
+						File[] f = directory.listFiles(JSMDatabase::isDataFile);
+						return f == null ? Stream.<File>empty() : Arrays.stream(f);
+					})
+					.collect(Collectors.toList());
+			for(File file : subfiles) {
+				filesInDB.put(file.getName(), file.getParent() + "/");
+			}
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.drive = this.usbDriveName;
+				event.rootFiles = this.rootFiles;
+				event.files = this.filesInDB.size();
+				event.commit();
+			}
 		}
+	}
+	
+	/**
+	 * Loads the index file of this database, creating it if it does not exist.
+	 * Entries for files no longer on the drive are ignored.
+	 */
+	private synchronized void loadIndex() {
+		this.indexFile = new JSMParser(Paths.get(this.usbDrivePath + INDEX_FILE));
+		if(!Files.exists(Paths.get(this.usbDrivePath + INDEX_FILE))) {
+			try {
+				Files.createFile(Paths.get(this.usbDrivePath + INDEX_FILE), JSMDBManager.getFullPermissions());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else if(this.indexFile.load()) {
+			for(String name : this.indexFile.getHashMap().keySet()) {
+				if(this.filesInDB.get(name) != null) {
+					this.index.put(name, JSMIndexEntry.parse(name, this.indexFile.get(name)));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Builds the sorted index from the index entries, making up entries for files
+	 * written before the index existed from their size and last modified time.
+	 */
+	private synchronized void buildSortedIndex() {
+		for(Map.Entry<String, String> file : this.filesInDB.entrySet()) {
+			JSMIndexEntry entry = this.index.get(file.getKey());
+			if(entry == null) {
+				File f = new File(file.getValue() + file.getKey());
+				entry = new JSMIndexEntry(file.getKey(), JSMIndexEntry.NO_CODEC, 
+						JSMIndexEntry.NO_CHECKSUM, f.length(), f.lastModified());
+			}
+			this.addToSortedIndex(entry);
+		}
+	}
+	
+	/**
+	 * Rebuilds the reference counts of the chunk store from the recipes of the files stored
+	 * deduplicated, and sweeps the chunks none of them refers to. The recipes are read in
+	 * parallel straight from the drive, not through readFile(), which may need this database.
+	 * @return amount of chunk files swept.
+	 */
+	private synchronized int loadChunks() {
+		if(!Files.isDirectory(Paths.get(this.chunkStore.getDirectory()))) { return 0; }
 		
-		File[] directories = new File(this.usbDrivePath).listFiles(File::isDirectory);
-		for(int i = 0; i < directories.length; i++) {
-			File[] subfiles = new File(directories[i].getPath()).listFiles(File::isFile);
-			for(int x = 0; x < subfiles.length; x++) {
-				filesInDB.put(subfiles[i].getName(), subfiles[i].getName());
+		List<JSMChunkStore.Recipe> recipes = this.index.values().stream()
+				.filter(entry -> JSMChunkStore.CODEC.equals(entry.getCodec()))
+				.map(entry -> this.filesInDB.get(entry.getName()) + entry.getName())
+				.collect(Collectors.toList()).parallelStream()
+				.map(path -> {
+					try {
+						return JSMChunkStore.Recipe.decode(Files.readAllBytes(Paths.get(path)));
+					} catch(IOException | IllegalArgumentException e) {
+						e.printStackTrace();
+						return null;
+					}
+				})
+				.collect(Collectors.toList());
+		for(JSMChunkStore.Recipe recipe : recipes) {
+			if(recipe != null) {
+				this.chunkStore.reference(recipe);
 			}
 		}
+		return this.chunkStore.sweep();
+	}
+	
+	private synchronized void addToSortedIndex(JSMIndexEntry entry) {
+		JSMIndexEntry previous = this.byName.put(entry.getName(), entry);
+		if(previous != null) {
+			this.byTime.remove(previous);
+			this.storedBytes -= Math.max(0, previous.getSize());
+		}
+		this.byTime.add(entry);
+		this.storedBytes += Math.max(0, entry.getSize());
+	}
+	
+	private synchronized void removeFromSortedIndex(String name) {
+		JSMIndexEntry previous = this.byName.remove(name);
+		if(previous != null) {
+			this.byTime.remove(previous);
+			this.storedBytes -= Math.max(0, previous.getSize());
+		}
+	}
+	
+	/**
+	 * Lists the files whose name starts with a prefix, e.g. 'camera3_'.
+	 * @param prefix - start of the file names, empty for every file
+	 * @return entries of the files sorted by name.
+	 */
+	public synchronized ArrayList<JSMIndexEntry> list(String prefix) {
+		return this.list(prefix, null, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Lists one page of the files whose name starts with a prefix. Costs time 
+	 * proportional to the page, not to the amount of files in the database.
+	 * @param prefix - start of the file names, empty for every file
+	 * @param after - name of the last file of the previous page, or null for the first page
+	 * @param limit - most entries returned
+	 * @return entries of the files sorted by name.
+	 */
+	public synchronized ArrayList<JSMIndexEntry> list(String prefix, String after, int limit) {
+		NavigableMap<String, JSMIndexEntry> range = this.byName.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+		if(after != null) {
+			range = range.tailMap(after, false);
+		}
+		ArrayList<JSMIndexEntry> page = new ArrayList<JSMIndexEntry>(Math.min(limit, 1024));
+		for(JSMIndexEntry entry : range.values()) {
+			if(page.size() >= limit) { break; }
+			page.add(entry);
+		}
+		return page;
+	}
+	
+	/**
+	 * Lists the files committed within a time range.
+	 * @param from - earliest commit time in milliseconds since the epoch, inclusive
+	 * @param to - latest commit time in milliseconds since the epoch, exclusive
+	 * @return entries of the files sorted by commit time.
+	 */
+	public synchronized ArrayList<JSMIndexEntry> listRange(long from, long to) {
+		return this.listRange(from, to, null, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Lists one page of the files committed within a time range. Costs time 
+	 * proportional to the page, not to the amount of files in the database.
+	 * @param from - earliest commit time in milliseconds since the epoch, inclusive
+	 * @param to - latest commit time in milliseconds since the epoch, exclusive
+	 * @param after - last entry of the previous page, or null for the first page
+	 * @param limit - most entries returned
+	 * @return entries of the files sorted by commit time.
+	 */
+	public synchronized ArrayList<JSMIndexEntry> listRange(long from, long to, JSMIndexEntry after, int limit) {
+		ArrayList<JSMIndexEntry> page = new ArrayList<JSMIndexEntry>(Math.min(limit, 1024));
+		if(from >= to) { return page; }
+		
+		JSMIndexEntry start = new JSMIndexEntry("", JSMIndexEntry.NO_CODEC, JSMIndexEntry.NO_CHECKSUM, 0, from);
+		JSMIndexEntry end = new JSMIndexEntry("", JSMIndexEntry.NO_CODEC, JSMIndexEntry.NO_CHECKSUM, 0, to);
+		NavigableSet<JSMIndexEntry> range = this.byTime.subSet(start, true, end, false);
+		if(after != null) {
+			range = range.tailSet(after, false);
+		}
+		for(JSMIndexEntry entry : range) {
+			if(page.size() >= limit) { break; }
+			page.add(entry);
+		}
+		return page;
+	}
+	
+	/**
+	 * @return the oldest stored files, oldest first.
+	 * @param limit - most entries returned
+	 */
+	public synchronized ArrayList<JSMIndexEntry> getOldestFiles(int limit) {
+		ArrayList<JSMIndexEntry> oldest = new ArrayList<JSMIndexEntry>(Math.min(limit, 1024));
+		for(JSMIndexEntry entry : this.byTime) {
+			if(oldest.size() >= limit) { break; }
+			oldest.add(entry);
+		}
+		return oldest;
+	}
+	
+	/**
+	 * @return total amount of bytes stored on the drive by the files of this database.
+	 */
+	public synchronized long getStoredBytes() {
+		return this.storedBytes + this.chunkStore.getStoredBytes();
+	}
+	
+	/**
+	 * Deletes the files left under their temporary name by writes that never completed,
+	 * e.g. because of a power loss. Every other file was complete when it got its name,
+	 * so nothing else on the drive needs to be checked.
+	 * @param directory - directory to sweep, ending with '/'
+	 * @return amount of files deleted.
+	 */
+	public static int sweepTempFiles(String directory) {
+		File[] files = new File(directory).listFiles(f -> f.isFile() && f.getName().startsWith(TEMP_PREFIX));
+		if(files == null) { return 0; }
+		int swept = 0;
+		for(File file : files) {
+			if(file.delete()) { swept++; }
+		}
+		return swept;
+	}
+	
+	/**
+	 * Gives a completely written file its name with an atomic rename, so that the
+	 * file appears under its name whole or not at all.
+	 * @param temp - full path the file was written to
+	 * @param path - full path of the file
+	 * @param sync - true to force the rename to the drive before returning
+	 * @return boolean indicating if the file was renamed.
+	 */
+	public static boolean publish(String temp, String path, boolean sync) {
+		try {
+			Files.move(Paths.get(temp), Paths.get(path), StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		if(sync) {
+			forceDirectory(path.substring(0, path.lastIndexOf('/') + 1));
+		}
+		return true;
+	}
+	
+	/**
+	 * Forces the entries of a directory, such as a rename, to the drive.
+	 */
+	public static void forceDirectory(String directory) {
+		try(FileChannel channel = FileChannel.open(Paths.get(directory), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch(IOException e) {
+			//not every file system can sync a directory
+		}
+	}
+	
+	/**
+	 * Tests if a file holds stored data rather than belonging to the database itself.
+	 */
+	private static boolean isDataFile(File file) {
+		return file.isFile() && !file.getName().startsWith(".jsm");
 	}
 	
 	/**
 	 * Returns the last integer by which to start making sub directories under the root directory.
-	 * Folders are created by the method createSubDirectory().
+	 * Folders are created by the method createSubDirectory(). The root directory is listed once
+	 * rather than probing each possible folder.
 	 * @return Integer of the folder by which to start indexing sub directories
 	 */
 	private synchronized int getFolderIndex() {
-		if(Files.exists(Paths.get(this.usbDrivePath))) {
-			for(int i = 1; i < 1000; i++) {
-				if(!Files.exists(Paths.get(this.usbDrivePath + "files_" + String.valueOf(i)+ "/"))) {
-					return i;
-				} 
+		File[] directories = new File(this.usbDrivePath).listFiles(File::isDirectory);
+		if(directories == null) { return -1; }
+		
+		HashSet<Integer> used = new HashSet<Integer>();
+		for(File directory : directories) {
+			String name = directory.getName();
+			if(name.startsWith("files_")) {
+				try {
+					used.add(Integer.parseInt(name.substring(6)));
+				} catch(NumberFormatException e) {}
+			}
+		}
+		
+		for(int i = 1; i < 1000; i++) {
+			if(!used.contains(i)) {
+				return i;
 			}
 		}
 		return -1;
@@ -157,15 +701,17 @@ public class JSMDatabase {
 	/**
 	 * Checks if database is still mounted to original path, 
 	 * if folderIndex has not errored, and storage left is
-	 * greater than 5%. If database has become invalid, 
-	 * it will always remain invalid.
+	 * greater than 5%. A database with a retention policy stays 
+	 * valid when it is low on storage, since its reclaimer frees 
+	 * up space. If database has become invalid, it will always 
+	 * remain invalid.
 	 * @return boolean indicating validity of database
 	 */
 	public synchronized boolean isValid() {
-		if(this.isValid == false) { return false; }
+		if(this.isValid == false || this.draining) { return false; }
 		
-		if(!JSMDBManager.getMountPaths(this.usbDriveName).contains(this.usbDrivePath) ||
-		    this.folderIndex == -1 || this.getStorageLeft() <= 5) {
+		if(!this.isMounted() ||
+		    this.folderIndex == -1 || (this.reclaimer == null && this.getStorageLeft() <= 5)) {
 			this.isValid = false;
 			return false;
 		}
@@ -173,6 +719,14 @@ public class JSMDatabase {
 		return true;
 	}
 	
+	/**
+	 * Permanently marks this database as invalid, e.g. when its drive has been
+	 * pulled out. No more files will be queued to it.
+	 */
+	public synchronized void invalidate() {
+		this.isValid = false;
+	}
+	
 	public synchronized void incrementRootFiles() {
 		this.rootFiles+=1;
 	}
@@ -199,63 +753,631 @@ public class JSMDatabase {
 	}
 	
 	private synchronized void addToFilesInDB(String name) {
-		filesInDB.put(name, name);
-	}
-	
-	public synchronized boolean isWrittenToDB(String name) {
-		return filesInDB.get(name) == null ? false : true;
+		filesInDB.put(name, this.usbDrivePath);
 	}
 	
-	public synchronized int getTotalFilesInDB() {
-		return this.filesInDB.size();
+	/**
+	 * Adds newly written files to the database and records their index 
+	 * entries with a single append to the index file. The append is made 
+	 * after letting go of the database's lock.
+	 * @param entries - index entries of the files, written to the root directory
+	 */
+	private void commit(LinkedList<JSMIndexEntry> entries) {
+		if(entries.isEmpty()) { return; }
+		
+		ArrayList<String> lines = new ArrayList<String>(entries.size());
+		JSMParser indexFile;
+		synchronized(this) {
+			for(JSMIndexEntry entry : entries) {
+				this.addToFilesInDB(entry.getName());
+				this.index.put(entry.getName(), entry);
+				this.addToSortedIndex(entry);
+				this.incrementRootFiles();
+				lines.add(entry.getName() + ": " + entry.toValue());
+			}
+			indexFile = this.indexFile;
+		}
+		if(indexFile != null) {
+			synchronized(this.indexLock) {
+				indexFile.append(lines);
+			}
+		}
 	}
 	
-	public synchronized void setFileWriteSpeed(int speed) {
-		this.fileWriteSpeed = speed;
+	/**
+	 * Records that a file has moved to another directory of the database.
+	 */
+	private synchronized void moveInDB(String name, String directory) {
+		if(filesInDB.get(name) != null) {
+			filesInDB.put(name, directory);
+		}
 	}
 	
-	public synchronized int getFileWriteSpeed() {
-		return this.fileWriteSpeed;
+	/**
+	 * @return index entry of a file written by this database, or null 
+	 * if the file is not in the index.
+	 */
+	public synchronized JSMIndexEntry getIndexEntry(String name) {
+		return this.index.get(name);
 	}
 	
-	public synchronized int getMaxWriters() {
-		return this.maxWriters;
+	/**
+	 * @return copy of the index entries of the files written by this database.
+	 */
+	public synchronized LinkedList<JSMIndexEntry> getIndexEntries() {
+		return new LinkedList<JSMIndexEntry>(this.index.values());
 	}
 	
-	public synchronized void setMaxWriters(int amount) {
-		this.maxWriters = amount;
+	/**
+	 * @return full path to a file in the database, or null if it is not in the database.
+	 */
+	public synchronized String getFilePath(String name) {
+		String directory = this.filesInDB.get(name);
+		return directory == null ? null : directory + name;
 	}
 	
-	public synchronized String getUSBDriveName() {
-		return this.usbDriveName;
+	/**
+	 * Lists every file stored in the database. Files written before the index existed 
+	 * have an entry made up from the file's size and last modified time.
+	 * @return an entry for every stored file, sorted by name.
+	 */
+	public synchronized ArrayList<JSMIndexEntry> getStoredFiles() {
+		return new ArrayList<JSMIndexEntry>(this.byName.values());
 	}
 	
-	public synchronized String getUSBDrivePath() {
-		return this.usbDrivePath;
+	/**
+	 * Deletes files from the drive and from the database, and rewrites the index file.
+	 * Files that are being written are skipped. The files are taken out of the database
+	 * under its lock, but unlinked and the index rewritten without it, so writers and
+	 * readers are not held up. A file that cannot be unlinked is put back.
+	 * @param names - names of the files to delete
+	 * @return bytes freed on the drive by each file deleted, keyed by name. A deduplicated
+	 * file frees its recipe and the chunks no other file refers to.
+	 */
+	public LinkedHashMap<String, Long> delete(List<String> names) {
+		LinkedHashMap<String, String> removed = new LinkedHashMap<String, String>();
+		HashMap<String, JSMIndexEntry> entries = new HashMap<String, JSMIndexEntry>();
+		synchronized(this) {
+			for(String name : names) {
+				String directory = this.filesInDB.get(name);
+				if(directory == null || this.isCurrentlyWriting(name)) { continue; }
+				removed.put(name, directory);
+				entries.put(name, this.index.get(name));
+				this.filesInDB.remove(name);
+				this.index.remove(name);
+				this.removeFromSortedIndex(name);
+				this.corruptFiles.remove(name);
+				if(directory.equals(this.usbDrivePath)) {
+					this.decrementRootFiles();
+				}
+			}
+		}
+		
+		LinkedHashMap<String, Long> freed = new LinkedHashMap<String, Long>();
+		for(Map.Entry<String, String> file : removed.entrySet()) {
+			String name = file.getKey();
+			String directory = file.getValue();
+			JSMIndexEntry entry = entries.get(name);
+			try {
+				JSMChunkStore.Recipe recipe = entry != null && JSMChunkStore.CODEC.equals(entry.getCodec()) ? 
+						this.readRecipe(directory + name) : null;
+				Path path = Paths.get(directory + name);
+				long bytes = Files.exists(path) ? Files.size(path) : 0;
+				Files.deleteIfExists(path);
+				if(recipe != null) {
+					bytes += this.chunkStore.release(recipe);
+				}
+				freed.put(name, bytes);
+			} catch(IOException e) {
+				e.printStackTrace();
+				this.restore(name, directory, entry);
+			}
+		}
+		if(!freed.isEmpty()) {
+			this.rewriteIndex();
+		}
+		return freed;
 	}
 	
-	public synchronized int getTotalRootFiles() {
-		return this.rootFiles;
+	/**
+	 * Puts back a file that delete() took out of the database but could not unlink.
+	 */
+	private synchronized void restore(String name, String directory, JSMIndexEntry entry) {
+		this.filesInDB.put(name, directory);
+		if(entry != null) {
+			this.index.put(name, entry);
+			this.addToSortedIndex(entry);
+		}
+		if(directory.equals(this.usbDrivePath)) {
+			this.incrementRootFiles();
+		}
 	}
 	
-	public synchronized boolean canReduceRoot() {
-		return this.reducingRoot.getActiveCount() == 0 &&
-				this.reducingRoot.getQueue().size() == 0;
+	/**
+	 * Rewrites the index file from the index entries held in memory. The new index is
+	 * written and synced under its temporary name and then renamed over the old one, so 
+	 * a crash or a pulled drive leaves either the old index or the new one, never a 
+	 * truncated one that would make encoded files read back as raw. The entries are
+	 * copied under the database's lock, and written out without it.
+	 */
+	private void rewriteIndex() {
+		synchronized(this.indexLock) {
+			StringBuilder lines = new StringBuilder();
+			synchronized(this) {
+				if(this.indexFile == null) { return; }
+				for(JSMIndexEntry entry : this.index.values()) {
+					lines.append(entry.getName()).append(": ").append(entry.toValue()).append('\n');
+				}
+			}
+			this.writeIndex(lines);
+		}
 	}
 	
-	public synchronized boolean isReducingRoot() {
-		return this.reducingRoot.getActiveCount() > 0 ||
-				this.reducingRoot.getQueue().size() > 0;
+	/**
+	 * Writes the lines of the index under its temporary name and renames them over the index.
+	 */
+	private void writeIndex(StringBuilder lines) {
+		String temp = this.usbDrivePath + TEMP_PREFIX + INDEX_FILE;
+		try(FileChannel channel = FileChannel.open(Paths.get(temp), StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		} catch(IOException e) {
+			e.printStackTrace();
+			try {
+				Files.deleteIfExists(Paths.get(temp));
+			} catch(IOException e1) { e1.printStackTrace(); }
+			return;
+		}
+		publish(temp, this.usbDrivePath + INDEX_FILE, true);
+	}
+	
+	/**
+	 * Starts a reclaimer that enforces the retention policy on this database by deleting its 
+	 * oldest files. Once a reclaimer is running, the database is no longer retired when it is
+	 * low on storage. Does nothing if one is already running.
+	 * @param policy - policy deciding which files are deleted
+	 * @return the reclaimer, e.g. to read how much it has deleted.
+	 */
+	public synchronized JSMReclaimer setRetentionPolicy(JSMRetentionPolicy policy) {
+		if(this.reclaimer == null && !this.draining) {
+			this.reclaimer = new JSMReclaimer(this, policy);
+			this.reclaimer.start();
+		}
+		return this.reclaimer;
+	}
+	
+	public synchronized JSMReclaimer getReclaimer() {
+		return this.reclaimer;
+	}
+	
+	/**
+	 * @return full path to a file in the database that is stored as is and can be sent 
+	 * straight from the drive, or null if it is not in the database, was encoded, or has
+	 * to have its checksum verified first because reads are verified.
+	 */
+	public synchronized String getRawFilePath(String name) {
+		JSMIndexEntry entry = this.index.get(name);
+		if(entry != null && !entry.isRaw()) { return null; }
+		//a verified read has to check the checksum before any of the file is sent
+		if(entry != null && this.verifyReads && entry.hasChecksum()) { return null; }
+		return this.getFilePath(name);
+	}
+	
+	/**
+	 * Flags a file whose stored bytes do not match its checksum. Flagged files are listed
+	 * by getCorruptFiles(), and each is recorded once as a JSMEvents.Corrupt event.
+	 */
+	public synchronized void markCorrupt(String name) {
+		if(this.corruptFiles.add(name)) {
+			JSMEvents.Corrupt event = new JSMEvents.Corrupt();
+			if(event.shouldCommit()) {
+				event.drive = this.usbDriveName;
+				event.fileName = name;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * @return names of the files found to not match their checksum.
+	 */
+	public synchronized LinkedList<String> getCorruptFiles() {
+		return new LinkedList<String>(this.corruptFiles);
+	}
+	
+	/**
+	 * Sets whether read() checks each file against its checksum before returning it.
+	 * @param verify - boolean for whether or not to verify reads
+	 */
+	public synchronized void setVerifyReads(boolean verify) {
+		this.verifyReads = verify;
+	}
+	
+	public synchronized boolean isVerifyingReads() {
+		return this.verifyReads;
+	}
+	
+	/**
+	 * Starts a scrubber that re-reads the files of this database in the background and
+	 * flags those that no longer match their checksum. Does nothing if one is already running.
+	 * @param bytesPerSecond - maximum rate at which the scrubber reads from the drive
+	 * @return the scrubber, e.g. to read how much it has checked.
+	 */
+	public synchronized JSMScrubber startScrubber(long bytesPerSecond) {
+		if(this.scrubber == null && !this.draining) {
+			this.scrubber = new JSMScrubber(this, bytesPerSecond);
+			this.scrubber.start();
+		}
+		return this.scrubber;
+	}
+	
+	public synchronized JSMScrubber getScrubber() {
+		return this.scrubber;
+	}
+	
+	/**
+	 * Sets how written files are made to survive a power loss before they are recorded 
+	 * as written. Takes effect for files queued from then on.
+	 * @param durability - NONE, FSYNC_PER_FILE or GROUP_COMMIT
+	 */
+	public synchronized void setDurability(JSMDurability durability) {
+		this.durability = durability;
+		if(durability == JSMDurability.GROUP_COMMIT && this.groupCommitter == null && !this.draining) {
+			this.groupCommitter = new JSMGroupCommitter(this.usbDrivePath, this.groupCommitWindow, this.groupCommitBytes);
+			this.groupCommitter.start();
+		}
+	}
+	
+	public synchronized JSMDurability getDurability() {
+		return this.durability;
+	}
+	
+	/**
+	 * Sets the window of the GROUP_COMMIT durability mode. Must be called before setDurability().
+	 * @param windowms - longest milliseconds a written file waits to be synced
+	 * @param bytes - amount of written bytes that triggers a sync right away
+	 */
+	public synchronized void setGroupCommitWindow(long windowms, long bytes) {
+		this.groupCommitWindow = windowms;
+		this.groupCommitBytes = bytes;
+	}
+	
+	public synchronized JSMGroupCommitter getGroupCommitter() {
+		return this.groupCommitter;
+	}
+	
+	/**
+	 * Makes written files durable according to the durability mode. Files written in FSYNC_PER_FILE 
+	 * mode were already synced by writeFile(), and NONE does not wait on anything.
+	 * @return future completed with true once the files can be recorded as written.
+	 */
+	private CompletableFuture<Boolean> awaitDurable(LinkedList<JSMIndexEntry> entries, JSMDurability mode) {
+		if(mode != JSMDurability.GROUP_COMMIT || entries.isEmpty()) {
+			return CompletableFuture.completedFuture(true);
+		}
+		
+		LinkedList<String> paths = new LinkedList<String>();
+		LinkedList<String> targets = new LinkedList<String>();
+		long bytes = 0;
+		for(JSMIndexEntry entry : entries) {
+			paths.add(this.usbDrivePath + TEMP_PREFIX + entry.getName());
+			targets.add(this.usbDrivePath + entry.getName());
+			bytes += entry.getSize();
+		}
+		return this.getGroupCommitter().sync(paths, targets, bytes);
+	}
+	
+	/**
+	 * @return total nanoseconds spent computing checksums while writing files.
+	 */
+	public long getChecksumTime() {
+		return this.checksumTime.get();
+	}
+	
+	/**
+	 * @return total amount of bytes checksummed while writing files.
+	 */
+	public long getChecksumBytes() {
+		return this.checksumBytes.get();
+	}
+	
+	/**
+	 * Sets the codec used to encode files before they are written, e.g. a
+	 * JSMDeflateCodec to compress them. The codec is also registered so files 
+	 * encoded by it can be read back. Pass null to store files as is.
+	 * @param codec - codec to encode new files with
+	 */
+	public synchronized void setCodec(JSMCodec codec) {
+		this.codec = codec;
+		if(codec != null) { this.addCodec(codec); }
+	}
+	
+	public synchronized JSMCodec getCodec() {
+		return this.codec;
+	}
+	
+	/**
+	 * Registers a codec that files in this database may have been encoded with,
+	 * without using it for new files.
+	 * @param codec - codec to register under its name
+	 */
+	public synchronized void addCodec(JSMCodec codec) {
+		this.codecs.put(codec.getName(), codec);
+	}
+	
+	/**
+	 * Sets whether new files are stored deduplicated: split into content defined chunks, each
+	 * unique one stored once in the database's chunk store, and the file kept as a recipe of 
+	 * its chunks. Suits files sharing long runs of bytes, such as the frames of a still scene 
+	 * or growing logs. Deduplicated files are not encoded by the codec, and are read back 
+	 * whether or not the database still deduplicates.
+	 * @param deduplicate - boolean for whether or not to deduplicate new files
+	 */
+	public synchronized void setDeduplication(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+	
+	public synchronized boolean isDeduplicating() {
+		return this.deduplicate;
+	}
+	
+	/**
+	 * @return the chunk store, e.g. to set its chunk sizes or read how much it has saved.
+	 */
+	public JSMChunkStore getChunkStore() {
+		return this.chunkStore;
+	}
+	
+	/**
+	 * Reads a file from the database, decoding it with the codec recorded in the index.
+	 * @param name - file name
+	 * @return raw file data or null if the file is not in this database.
+	 * @throws IOException if the file could not be read or decoded.
+	 */
+	public byte[] read(String name) throws IOException {
+		for(int attempt = 0; ; attempt++) {
+			String directory;
+			JSMIndexEntry entry;
+			JSMCodec decoder;
+			synchronized(this) {
+				directory = this.filesInDB.get(name);
+				if(directory == null) { return null; }
+				entry = this.index.get(name);
+				decoder = entry == null ? null : this.codecs.get(entry.getCodec());
+			}
+			
+			byte[] stored;
+			try {
+				this.readerPermits.acquire();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting to read " + name);
+			}
+			try {
+				stored = this.readFile(directory + name);
+			} catch(NoSuchFileException e) {
+				//the root reducer may have just moved it
+				if(attempt > 0) { throw e; }
+				continue;
+			} finally {
+				this.readerPermits.release();
+			}
+			
+			if(entry != null && entry.hasChecksum() && this.isVerifyingReads()) {
+				CRC32C crc = new CRC32C();
+				crc.update(stored, 0, stored.length);
+				if(crc.getValue() != entry.getChecksum()) {
+					this.markCorrupt(name);
+					throw new IOException("checksum mismatch for " + name);
+				}
+			}
+			
+			if(entry == null || entry.isRaw()) { 
+				return stored; 
+			}
+			if(JSMChunkStore.CODEC.equals(entry.getCodec())) {
+				return this.readDeduplicated(name, stored);
+			}
+			if(decoder == null) { 
+				throw new IOException("no codec named " + entry.getCodec() + " for " + name); 
+			}
+			try {
+				return decoder.decode(stored);
+			} catch(IllegalArgumentException e) {
+				throw new IOException("could not decode " + name, e);
+			}
+		}
+	}
+	
+	/**
+	 * Puts a file stored deduplicated back together from its chunks, checking each
+	 * chunk against its hash if reads are verified.
+	 * @param name - file name
+	 * @param stored - recipe of the file
+	 * @return raw file data.
+	 */
+	private byte[] readDeduplicated(String name, byte[] stored) throws IOException {
+		JSMChunkStore.Recipe recipe;
+		try {
+			recipe = JSMChunkStore.Recipe.decode(stored);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("could not decode " + name, e);
+		}
+		if(recipe.getLength() > Integer.MAX_VALUE - 8) {
+			throw new IOException(name + " is too large to read at once");
+		}
+		
+		byte[] data = new byte[(int) recipe.getLength()];
+		boolean verify = this.isVerifyingReads();
+		try {
+			this.readerPermits.acquire();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting to read " + name);
+		}
+		try {
+			for(int i = 0; i < recipe.getCount(); i++) {
+				byte[] chunk = this.readFile(this.chunkStore.getPath(recipe, i));
+				if(chunk.length != recipe.getLength(i) || (verify && !recipe.matches(i, chunk))) {
+					this.markCorrupt(name);
+					throw new IOException("chunk " + i + " of " + name + " does not match its hash");
+				}
+				System.arraycopy(chunk, 0, data, recipe.getOffset(i), chunk.length);
+			}
+		} finally {
+			this.readerPermits.release();
+		}
+		return data;
+	}
+	
+	/**
+	 * Reads the recipe of a file stored deduplicated.
+	 * @param path - full path of the recipe
+	 */
+	private JSMChunkStore.Recipe readRecipe(String path) throws IOException {
+		try {
+			return JSMChunkStore.Recipe.decode(this.readFile(path));
+		} catch(IllegalArgumentException e) {
+			throw new IOException("could not decode " + path, e);
+		}
+	}
+	
+	public synchronized boolean isWrittenToDB(String name) {
+		return filesInDB.get(name) == null ? false : true;
+	}
+	
+	public synchronized int getTotalFilesInDB() {
+		return this.filesInDB.size();
+	}
+	
+	public synchronized void setFileWriteSpeed(int speed) {
+		this.fileWriteSpeed = speed;
+	}
+	
+	public synchronized int getFileWriteSpeed() {
+		return this.controller == null ? this.fileWriteSpeed : this.controller.getWriteSpeed();
+	}
+	
+	/**
+	 * Sets how many files may be read from the drive at once. Reads past the
+	 * limit wait for one to finish, so a bulk export cannot starve the writers.
+	 * @param amount - most reads at once
+	 */
+	public void setMaxReaders(int amount) {
+		this.readerPermits.setLimit(amount);
+	}
+	
+	public int getMaxReaders() {
+		return this.readerPermits.getLimit();
+	}
+	
+	public synchronized int getMaxWriters() {
+		return this.maxWriters;
+	}
+	
+	public synchronized void setMaxWriters(int amount) {
+		this.maxWriters = amount;
+		this.applyWriterLimit();
+		this.dispatch();
+	}
+	
+	/**
+	 * Sets how the queued files are written. In SEQUENTIAL mode the database has a single
+	 * writer, whatever setMaxWriters() or a write controller say, which writes the waiting
+	 * batches one after another in the order of the write queue. Batches already being 
+	 * written finish as they started.
+	 * @param mode - CONCURRENT or SEQUENTIAL
+	 */
+	public synchronized void setWriteMode(JSMWriteMode mode) {
+		this.writeMode = mode;
+		this.applyWriterLimit();
+		this.dispatch();
+	}
+	
+	public synchronized JSMWriteMode getWriteMode() {
+		return this.writeMode;
+	}
+	
+	/**
+	 * @param bytes - amount of bytes after which a SEQUENTIAL writer stops taking 
+	 * waiting batches and gives its permit back. A single batch is never split.
+	 */
+	public synchronized void setRunSize(long bytes) {
+		this.runBytes = bytes;
+	}
+	
+	public synchronized long getRunSize() {
+		return this.runBytes;
+	}
+	
+	/**
+	 * Sets the amount of writers from the write mode, the controller or maxWriters.
+	 */
+	private synchronized void applyWriterLimit() {
+		if(this.writeMode == JSMWriteMode.SEQUENTIAL) {
+			this.writerPermits.setLimit(1);
+		} else if(this.controller != null) {
+			this.writerPermits.setLimit(this.controller.getWriters());
+		} else {
+			this.writerPermits.setLimit(this.maxWriters);
+		}
+	}
+	
+	/**
+	 * Runs the file writers and the root reducer on virtual threads instead of platform
+	 * threads, if the JVM supports them. Writers still block in I/O and sleep between chunks,
+	 * but a parked virtual thread does not hold on to a platform thread's stack. The amount
+	 * of writers is still capped by maxWriters. Only takes effect while nothing is being 
+	 * written, so call it right after constructing the database.
+	 * @param virtual - boolean for whether or not to use virtual threads
+	 */
+	public synchronized void setUseVirtualThreads(boolean virtual) {
+		if(virtual == this.useVirtualThreads || this.draining || 
+				this.isWritingFiles() || this.isReducingRoot()) { 
+			return; 
+		}
+		
+		this.fileWriters.shutdown();
+		this.reducingRoot.shutdown();
+		this.fileWriters = JSMThreads.newExecutor(virtual);
+		this.reducingRoot = JSMThreads.newExecutor(virtual);
+		this.useVirtualThreads = virtual;
+	}
+	
+	public synchronized boolean isUsingVirtualThreads() {
+		return this.useVirtualThreads && JSMThreads.isVirtualThreadsSupported();
+	}
+	
+	public synchronized String getUSBDriveName() {
+		return this.usbDriveName;
+	}
+	
+	public synchronized String getUSBDrivePath() {
+		return this.usbDrivePath;
+	}
+	
+	public synchronized int getTotalRootFiles() {
+		return this.rootFiles;
+	}
+	
+	public synchronized boolean canReduceRoot() {
+		return !this.draining && this.rootPermits.availablePermits() > 0;
+	}
+	
+	public synchronized boolean isReducingRoot() {
+		return this.rootPermits.getInUse() > 0;
 	}
 	
 	public synchronized boolean canWriteFile() {
-		return this.fileWriters.getActiveCount() < this.getMaxWriters() &&
-				this.fileWriters.getQueue().size() < this.getMaxWriters();
+		return !this.draining && this.writerPermits.availablePermits() > 0;
 	}
 	
 	public synchronized boolean isWritingFiles() {
-		return this.fileWriters.getActiveCount() > 0 ||
-				this.fileWriters.getQueue().size() > 0;
+		return this.writerPermits.getInUse() > 0 || this.writeQueue.size() > 0;
 	}
 	
 	/**
@@ -266,29 +1388,51 @@ public class JSMDatabase {
 	 * a newly created sub directory. 
 	 */
 	public synchronized void reduceRoot(int amount) {
-		if(this.canReduceRoot()) {
-			this.reducingRoot.submit(new Runnable() {
-				@Override
-				public void run() {
-					String folder = createSubDirectory();
-					if(folder != null) {
-						File[] files = new File(getUSBDrivePath()).listFiles(File::isFile);
-						int length = amount > files.length ? files.length : amount;
-						for(int i = 0; i < length; i++) {
-							try {
-								if(!(new File(folder + files[i].getName()).exists()) && !isCurrentlyWriting(files[i].getName())) {
-									
-									if(files[i].renameTo(new File(folder + files[i].getName()))) {
-										decrementRootFiles();
-									}
-									
+		if(this.canReduceRoot() && this.rootPermits.tryAcquire()) {
+			try {
+				this.reducingRoot.submit(new Runnable() {
+					@Override
+					public void run() {
+						JSMEvents.ReduceRoot event = new JSMEvents.ReduceRoot();
+						event.begin();
+						int moved = 0;
+						try {
+							String folder = createSubDirectory();
+							if(folder != null) {
+								File[] files = new File(getUSBDrivePath()).listFiles(JSMDatabase::isDataFile);
+								int length = amount > files.length ? files.length : amount;
+								for(int i = 0; i < length; i++) {
+									try {
+										if(!(new File(folder + files[i].getName()).exists()) && !isCurrentlyWriting(files[i].getName())) {
+											
+											if(files[i].renameTo(new File(folder + files[i].getName()))) {
+												moveInDB(files[i].getName(), folder);
+												decrementRootFiles();
+												moved++;
+											}
+											
+										}
+										TimeUnit.SECONDS.sleep(1);
+									} catch (InterruptedException e) {
+										break;
+									} catch (Exception e) { e.printStackTrace(); }
 								}
-								TimeUnit.SECONDS.sleep(1);
-							} catch (Exception e) { e.printStackTrace(); }
+							}
+						} finally {
+							rootPermits.release();
+							event.end();
+							if(event.shouldCommit()) {
+								event.drive = getUSBDriveName();
+								event.requested = amount;
+								event.moved = moved;
+								event.commit();
+							}
 						}
 					}
-				}
-			});
+				});
+			} catch(RejectedExecutionException e) {
+				this.rootPermits.release();
+			}
 		}
 	}
 	
@@ -301,81 +1445,723 @@ public class JSMDatabase {
 	 * written to the database.
 	 */
 	public synchronized boolean write(byte[] data, String name) {
-		if(this.canWriteFile()) {
+		return this.submit(data, name) != null;
+	}
+	
+	/**
+	 * Writes an image to the database. Will only queue writer if there is 
+	 * one available to use. The data is held until the file is committed
+	 * to the database or the write has failed.
+	 * @param data - raw file data in a byte array
+	 * @param name - file name
+	 * @return future completed with true once the file is written to the database,
+	 * or with false if writing it failed and the partial file was removed. Returns 
+	 * null if the file could not be queued.
+	 */
+	public synchronized CompletableFuture<Boolean> submit(byte[] data, String name) {
+		return this.submit(data, name, JSMPriority.NORMAL);
+	}
+	
+	/**
+	 * Writes an image to the database like submit(), waiting in the queue of its priority 
+	 * class if every writer is busy.
+	 * @param data - raw file data in a byte array
+	 * @param name - file name
+	 * @param priority - priority class of the file
+	 * @return future completed with true once the file is written to the database,
+	 * or with false if writing it failed. Returns null if the file could not be queued.
+	 */
+	public synchronized CompletableFuture<Boolean> submit(byte[] data, String name, JSMPriority priority) {
+		LinkedHashMap<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		files.put(name, data);
+		HashMap<String, CompletableFuture<Boolean>> committed = this.submitAll(files, priority);
+		return committed == null ? null : committed.get(name);
+	}
+	
+	/**
+	 * Writes a batch of files to the database one after another using a single writer,
+	 * and records all of their index entries at once when the batch is done. Will only
+	 * queue the batch if there is a writer available to use.
+	 * @param files - raw file data keyed by file name, written in iteration order
+	 * @return future for each file, completed with true once the batch is committed and the
+	 * file was written, or with false if writing that file failed. Returns null if the batch
+	 * could not be queued.
+	 */
+	public synchronized HashMap<String, CompletableFuture<Boolean>> submitAll(LinkedHashMap<String, byte[]> files) {
+		return this.submitAll(files, JSMPriority.NORMAL);
+	}
+	
+	/**
+	 * Writes a batch of files like submitAll(). If every writer is busy, the batch waits in 
+	 * the queue of its priority class and is handed the next free writer by weighted fair 
+	 * queuing, so urgent batches overtake waiting bulk batches without starving them.
+	 * @param files - raw file data keyed by file name, written in iteration order
+	 * @param priority - priority class of the batch
+	 * @return future for each file, completed with true once the batch is committed and the
+	 * file was written, or with false if writing that file failed. Returns null if the batch
+	 * could not be queued because the database is draining or the class' queue is full.
+	 */
+	public synchronized HashMap<String, CompletableFuture<Boolean>> submitAll(LinkedHashMap<String, byte[]> files, JSMPriority priority) {
+		if(this.draining) { return null; }
+		
+		WriteBatch batch = new WriteBatch(files, this.durability, priority);
+		if(!this.writeQueue.offer(priority, batch.bytes, batch)) { return null; }
+		for(String name : files.keySet()) {
 			this.addToCurrentlyWriting(name);
-			this.fileWriters.submit(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						
-						if(!Files.exists(Paths.get(getUSBDrivePath() + name))) {
-							try {
-								Files.createFile(Paths.get(getUSBDrivePath() + name), JSMDBManager.getFullPermissions());
-							} catch (IOException e) {
-								throw e;
-							}
+		}
+		this.dispatch();
+		return batch.committed;
+	}
+	
+	/**
+	 * Hands every free writer the next batch of the write queue.
+	 */
+	private void dispatch() {
+		LinkedList<WriteBatch> rejected = new LinkedList<WriteBatch>();
+		synchronized(this) {
+			while(!this.draining && this.writerPermits.tryAcquire()) {
+				WriteBatch batch = this.writeQueue.poll();
+				if(batch == null) {
+					this.writerPermits.release();
+					break;
+				}
+				try {
+					this.fileWriters.submit(this.writeMode == JSMWriteMode.SEQUENTIAL ? new SequentialWriter(batch) : batch);
+				} catch(RejectedExecutionException e) {
+					this.writerPermits.release();
+					rejected.add(batch);
+				}
+			}
+		}
+		for(WriteBatch batch : rejected) {
+			batch.abort();
+		}
+	}
+	
+	/**
+	 * Sets how many batches of a priority class may wait for a writer before
+	 * more are turned away.
+	 * @param priority - class to limit
+	 * @param limit - most waiting batches
+	 */
+	public void setQueueLimit(JSMPriority priority, int limit) {
+		this.writeQueue.setLimit(priority, limit);
+	}
+	
+	/**
+	 * @return boolean indicating if a batch of the class would be accepted, either
+	 * by a free writer or by the class' queue.
+	 */
+	public synchronized boolean canQueueFile(JSMPriority priority) {
+		return !this.draining && this.writeQueue.canOffer(priority);
+	}
+	
+	/**
+	 * @return the write queue, for its per class metrics: queued files and bytes, 
+	 * dispatched and rejected batches, and average and longest wait.
+	 */
+	public JSMWriteQueue<?> getWriteQueue() {
+		return this.writeQueue;
+	}
+	
+	/**
+	 * A batch of files waiting for, or written by, one writer
+	 */
+	private class WriteBatch implements Runnable {
+		private LinkedHashMap<String, byte[]> files;
+		private JSMDurability mode;
+		private JSMPriority priority;
+		private long bytes;
+		private HashMap<String, CompletableFuture<Boolean>> committed;
+		
+		/**
+		 * Entries of the files written so far, and amount of files not written yet,
+		 * when the files are written by a SequentialWriter
+		 */
+		private LinkedList<JSMIndexEntry> entries;
+		private int remaining;
+		
+		private WriteBatch(LinkedHashMap<String, byte[]> files, JSMDurability mode, JSMPriority priority) {
+			this.files = files;
+			this.mode = mode;
+			this.priority = priority;
+			this.bytes = 0;
+			this.committed = new HashMap<String, CompletableFuture<Boolean>>();
+			for(Map.Entry<String, byte[]> file : files.entrySet()) {
+				this.bytes += file.getValue().length;
+				this.committed.put(file.getKey(), new CompletableFuture<Boolean>());
+			}
+			this.entries = new LinkedList<JSMIndexEntry>();
+			this.remaining = files.size();
+		}
+
+		@Override
+		public void run() {
+			JSMEvents.WriteBatch event = new JSMEvents.WriteBatch();
+			event.begin();
+			LinkedList<JSMIndexEntry> entries = new LinkedList<JSMIndexEntry>();
+			try {
+				for(Map.Entry<String, byte[]> file : files.entrySet()) {
+					if(Thread.currentThread().isInterrupted()) { break; }
+					JSMIndexEntry entry = writeToDrive(file.getValue(), file.getKey(), mode);
+					if(entry != null) {
+						entries.add(entry);
+					}
+				}
+			} catch(Exception e) {
+				e.printStackTrace();
+			} finally {
+				writerPermits.release();
+				dispatch();
+			}
+			event.end();
+			if(event.shouldCommit()) {
+				event.drive = getUSBDriveName();
+				event.files = files.size();
+				event.written = entries.size();
+				event.bytes = bytes;
+				event.commit();
+			}
+			this.complete(entries);
+		}
+		
+		/**
+		 * Records a file written by a SequentialWriter, and completes the
+		 * batch once all of its files are done.
+		 * @param entry - index entry of the file, or null if writing it failed
+		 */
+		private void written(JSMIndexEntry entry) {
+			if(entry != null) {
+				this.entries.add(entry);
+			}
+			if(--this.remaining == 0) {
+				this.complete(this.entries);
+			}
+		}
+		
+		/**
+		 * Waits for the written files to be durable, then commits them, or
+		 * removes them if they could not be made durable.
+		 */
+		private void complete(LinkedList<JSMIndexEntry> entries) {
+			awaitDurable(entries, mode).whenComplete((durable, error) -> {
+				HashSet<String> written = new HashSet<String>();
+				try {
+					if(durable != null && durable) {
+						commit(entries);
+						for(JSMIndexEntry entry : entries) {
+							written.add(entry.getName());
 						}
-						
-						if(writeFile(getUSBDrivePath() + name, convertToByteArrayList(data, 512000))) {
-							addToFilesInDB(name);
-							incrementRootFiles();
-						} else {
-							try {
-								Files.deleteIfExists(Paths.get(getUSBDrivePath() + name));
-							} catch (IOException e) { e.printStackTrace(); }	
+					} else {
+						for(JSMIndexEntry entry : entries) {
+							discard(entry);
 						}
-					} catch(Exception e) {
-						e.printStackTrace();
-					} finally {
-						removeFromCurrentlyWriting(name);
-					}				
-				}			
+					}
+				} catch(Exception e) {
+					e.printStackTrace();
+				} finally {
+					finish(written);
+				}
 			});
-			return true;
-		} else {
-			return false;
 		}
+		
+		/**
+		 * Fails a batch that never got a writer.
+		 */
+		private void abort() {
+			this.finish(new HashSet<String>());
+		}
+		
+		private void finish(HashSet<String> written) {
+			for(String name : files.keySet()) {
+				removeFromCurrentlyWriting(name);
+			}
+			for(String name : files.keySet()) {
+				committed.get(name).complete(written.contains(name));
+			}
+		}
+	}
+	
+	/**
+	 * The single writer of the SEQUENTIAL write mode, a FIFO over the write queue. It takes
+	 * one batch at a time, in the weighted fair order of the queue, and writes its files one 
+	 * after another in the order they were submitted. Once a batch is done it takes the next 
+	 * one waiting, until it has taken the run size. Each batch is committed as soon as its 
+	 * last file is written. Once nothing is waiting the writer gives its permit back.
+	 */
+	private class SequentialWriter implements Runnable {
+		private WriteBatch batch;
+		private Iterator<Map.Entry<String, byte[]>> files;
+		private long taken;
+		
+		private SequentialWriter(WriteBatch first) {
+			this.taken = 0;
+			this.take(first);
+		}
+		
+		private void take(WriteBatch batch) {
+			this.batch = batch;
+			this.files = batch.files.entrySet().iterator();
+			this.taken += batch.bytes;
+			if(batch.files.isEmpty()) {
+				batch.complete(batch.entries);
+			}
+		}
+		
+		/**
+		 * Picks the next file of the current batch, or takes the next waiting batch.
+		 * @return file to write, or null once the run is over or nothing is waiting.
+		 */
+		private Map.Entry<String, byte[]> next() {
+			while(!this.files.hasNext()) {
+				WriteBatch batch;
+				synchronized(JSMDatabase.this) {
+					if(this.taken >= runBytes || (batch = writeQueue.poll()) == null) { return null; }
+				}
+				this.take(batch);
+			}
+			return this.files.next();
+		}
+		
+		@Override
+		public void run() {
+			JSMEvents.WriteBatch event = new JSMEvents.WriteBatch();
+			event.begin();
+			int files = 0;
+			int written = 0;
+			try {
+				Map.Entry<String, byte[]> file;
+				while((file = this.next()) != null) {
+					files++;
+					JSMIndexEntry entry = null;
+					if(!Thread.currentThread().isInterrupted()) {
+						try {
+							entry = writeToDrive(file.getValue(), file.getKey(), this.batch.mode);
+						} catch(Exception e) {
+							e.printStackTrace();
+						}
+					}
+					if(entry != null) { written++; }
+					this.batch.written(entry);
+				}
+			} finally {
+				writerPermits.release();
+				dispatch();
+			}
+			event.end();
+			if(event.shouldCommit()) {
+				event.drive = getUSBDriveName();
+				event.files = files;
+				event.written = written;
+				event.bytes = this.taken;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Removes a written file that could not be made durable, under its temporary name 
+	 * or its name, and gives back the chunks it held if it was stored deduplicated.
+	 * @param entry - index entry returned by writeToDrive()
+	 */
+	private void discard(JSMIndexEntry entry) throws IOException {
+		String temp = this.getUSBDrivePath() + TEMP_PREFIX + entry.getName();
+		String path = this.getUSBDrivePath() + entry.getName();
+		if(JSMChunkStore.CODEC.equals(entry.getCodec())) {
+			String written = Files.exists(Paths.get(temp)) ? temp : path;
+			try {
+				this.chunkStore.release(this.readRecipe(written));
+			} catch(IOException e) {
+				//the chunks are swept when the database is next initialized
+				e.printStackTrace();
+			}
+		}
+		Files.deleteIfExists(Paths.get(temp));
+		Files.deleteIfExists(Paths.get(path));
 	}
 	
 	/**
-	 * Writes a list of chunks to a random access file at a rate of database's fileWriteSpeed.
+	 * Encodes and writes a single file to the root directory of the drive. The file is
+	 * written under its temporary name and renamed once it is complete, or for GROUP_COMMIT
+	 * once the group committer has synced it, so a file never appears under its name half 
+	 * written. The partially written file is removed if writing fails.
+	 * @param data - raw file data
+	 * @param name - file name
+	 * @param mode - durability mode the file is written with
+	 * @return index entry to commit for the file, or null if writing it failed.
+	 */
+	private JSMIndexEntry writeToDrive(byte[] data, String name, JSMDurability mode) {
+		if(this.isDeduplicating()) {
+			return this.writeDeduplicated(data, name, mode);
+		}
+		String temp = getUSBDrivePath() + TEMP_PREFIX + name;
+		try {
+			if(!Files.exists(Paths.get(temp))) {
+				Files.createFile(Paths.get(temp), JSMDBManager.getFullPermissions());
+			}
+			
+			JSMCodec encoder = getCodec();
+			byte[] stored = encoder == null ? null : encoder.encode(data);
+			String codecName = stored == null ? JSMIndexEntry.NO_CODEC : encoder.getName();
+			if(stored == null) { stored = data; }
+			
+			CRC32C crc = new CRC32C();
+			if(writeFile(temp, stored, crc, mode == JSMDurability.FSYNC_PER_FILE) && (mode == JSMDurability.GROUP_COMMIT || 
+					publish(temp, getUSBDrivePath() + name, mode == JSMDurability.FSYNC_PER_FILE))) {
+				return new JSMIndexEntry(name, codecName, crc.getValue(), stored.length, System.currentTimeMillis());
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		
+		try {
+			Files.deleteIfExists(Paths.get(temp));
+		} catch (IOException e) { e.printStackTrace(); }
+		return null;
+	}
+	
+	/**
+	 * Writes a single file to the drive deduplicated. The chunks the chunk store does not hold
+	 * yet are written first, each under its temporary name and renamed once complete, and then
+	 * the recipe is written like writeToDrive() writes a file. A chunk being written for another
+	 * file is waited for rather than written twice. Unless the durability mode is NONE each new
+	 * chunk is synced on its own, since the group committer only syncs the recipes. The write
+	 * speed pauses once per chunk size of new bytes rather than once per chunk file. The chunks
+	 * are given back to the store if writing the file fails.
+	 * @param data - raw file data
+	 * @param name - file name
+	 * @param mode - durability mode the file is written with
+	 * @return index entry to commit for the file, or null if writing it failed.
+	 */
+	private JSMIndexEntry writeDeduplicated(byte[] data, String name, JSMDurability mode) {
+		JSMEvents.Deduplicate event = new JSMEvents.Deduplicate();
+		event.begin();
+		String temp = getUSBDrivePath() + TEMP_PREFIX + name;
+		JSMChunkStore.Recipe recipe = this.chunkStore.split(data);
+		this.chunkStore.acquire(recipe);
+		JSMIndexEntry entry = null;
+		int newChunks = 0;
+		long newBytes = 0;
+		try {
+			boolean stored = true;
+			long unpaused = 0;
+			for(int i = 0; i < recipe.getCount() && stored; i++) {
+				JSMChunkStore.Chunk chunk = recipe.getChunk(i);
+				if(!this.chunkStore.claim(chunk)) { continue; }
+				stored = false;
+				try {
+					stored = this.writeChunkFile(chunk, data, recipe.getOffset(i), mode != JSMDurability.NONE);
+				} finally {
+					this.chunkStore.stored(chunk, stored);
+				}
+				newChunks++;
+				newBytes += chunk.getLength();
+				for(unpaused += chunk.getLength(); stored && unpaused >= this.getChunkSize(); unpaused -= this.getChunkSize()) {
+					this.pause();
+				}
+			}
+			for(int i = 0; i < recipe.getCount() && stored; i++) {
+				stored = this.chunkStore.await(recipe.getChunk(i));
+			}
+			
+			if(stored) {
+				if(!Files.exists(Paths.get(temp))) {
+					Files.createFile(Paths.get(temp), JSMDBManager.getFullPermissions());
+				}
+				byte[] encoded = recipe.encode();
+				CRC32C crc = new CRC32C();
+				if(writeFile(temp, encoded, crc, mode == JSMDurability.FSYNC_PER_FILE, false) && (mode == JSMDurability.GROUP_COMMIT || 
+						publish(temp, getUSBDrivePath() + name, mode == JSMDurability.FSYNC_PER_FILE))) {
+					entry = new JSMIndexEntry(name, JSMChunkStore.CODEC, crc.getValue(), encoded.length, System.currentTimeMillis());
+				}
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+		} finally {
+			event.end();
+			if(event.shouldCommit()) {
+				event.drive = this.usbDriveName;
+				event.fileName = name;
+				event.bytes = data.length;
+				event.chunks = recipe.getCount();
+				event.newChunks = newChunks;
+				event.newBytes = newBytes;
+				event.commit();
+			}
+		}
+		if(entry != null) { return entry; }
+		
+		try {
+			Files.deleteIfExists(Paths.get(temp));
+		} catch (IOException e) { e.printStackTrace(); }
+		this.chunkStore.release(recipe);
+		return null;
+	}
+	
+	/**
+	 * Writes a chunk of the chunk store to the drive under its temporary name, and renames it.
+	 * @param chunk - chunk claimed from the chunk store
+	 * @param data - the whole file holding the chunk
+	 * @param offset - offset of the chunk in the file
+	 * @param sync - boolean for whether or not to force the chunk to the drive
+	 * @return boolean indicating if the chunk is stored under its name.
+	 */
+	private boolean writeChunkFile(JSMChunkStore.Chunk chunk, byte[] data, int offset, boolean sync) {
+		String path = this.chunkStore.getPath(chunk);
+		int slash = path.lastIndexOf('/') + 1;
+		String temp = path.substring(0, slash) + TEMP_PREFIX + path.substring(slash);
+		try {
+			if(!Files.isDirectory(Paths.get(path.substring(0, slash)))) {
+				Files.createDirectories(Paths.get(path.substring(0, slash)), JSMDBManager.getFullPermissions());
+			}
+			if(!Files.exists(Paths.get(temp))) {
+				Files.createFile(Paths.get(temp), JSMDBManager.getFullPermissions());
+			}
+			byte[] bytes = Arrays.copyOfRange(data, offset, offset + chunk.getLength());
+			if(this.writeFile(temp, bytes, new CRC32C(), sync, false) && publish(temp, path, sync)) {
+				return true;
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		
+		try {
+			Files.deleteIfExists(Paths.get(temp));
+		} catch (IOException e) { e.printStackTrace(); }
+		return false;
+	}
+	
+	/**
+	 * Writes data to a random access file in chunks at a rate of database's fileWriteSpeed.
+	 * Each chunk is a multiple of the block size so every write but the last starts and ends
+	 * on a block. A write lands in the page cache and says nothing about the drive, so about
+	 * every 100 ms one chunk is synced with its write, and only that timing is fed to the
+	 * chunk size and the write controller.
+	 * Fails if the writer is interrupted, which happens when a drain times out.
+	 * The checksum is updated with each chunk right after it is written.
 	 * @param path - path to write file too. File should already exist before creating it.
-	 * @param chunks - The chunks of the raw byte data to write to the file.
+	 * @param data - The raw byte data to write to the file.
+	 * @param checksum - checksum to update with the written bytes
+	 * @param sync - boolean for whether or not to force the file to the drive before returning
 	 * @return boolean indicating success of writing to the database.
 	 */
-	private boolean writeFile(String path, LinkedList<byte[]> chunks) {
+	private boolean writeFile(String path, byte[] data, Checksum checksum, boolean sync) {
+		return this.writeFile(path, data, checksum, sync, true);
+	}
+	
+	/**
+	 * Writes data to a random access file like writeFile(), pausing between chunks
+	 * only if told to.
+	 * @param pause - boolean for whether or not to pause at the write speed after each chunk
+	 */
+	private boolean writeFile(String path, byte[] data, Checksum checksum, boolean sync, boolean pause) {
 		RandomAccessFile r = null;
 		try {
 			r = new RandomAccessFile(path, "rw");
 			int offset = 0;
-			while(!chunks.isEmpty()) {
-				byte[] chunk = chunks.pop();
-				r.seek(offset);
-				r.write(chunk);
-				offset+=chunk.length;
-				try { TimeUnit.MILLISECONDS.sleep(this.fileWriteSpeed); } catch (InterruptedException e) {}
+			int synced = 0;
+			while(offset < data.length) {
+				int length = Math.min(this.getChunkSize(), data.length - offset);
+				boolean sample = this.takeSample();
+				
+				JSMEvents.Chunk chunk = new JSMEvents.Chunk();
+				chunk.begin();
+				long start = System.nanoTime();
+				this.writeChunk(r, data, offset, length);
+				if(sample) {
+					r.getChannel().force(false);
+				}
+				long nanos = System.nanoTime() - start;
+				chunk.end();
+				if(chunk.shouldCommit()) {
+					chunk.drive = this.usbDriveName;
+					chunk.path = path;
+					chunk.offset = offset;
+					chunk.bytes = length;
+					chunk.commit();
+				}
+				if(sample) {
+					//the sync also flushed the chunks written since the last one
+					int flushed = offset + length - synced;
+					synced = offset + length;
+					this.adaptChunkSize(length, nanos * length / flushed);
+					this.recordWrite(flushed, nanos);
+				}
+				
+				start = System.nanoTime();
+				checksum.update(data, offset, length);
+				this.checksumTime.addAndGet(System.nanoTime() - start);
+				this.checksumBytes.addAndGet(length);
+				
+				offset+=length;
+				if(pause) {
+					this.pause();
+				}
+			}
+			if(sync) {
+				r.getFD().sync();
 			}
 			r.close();
 			return true;
 		} catch (Exception e) {
-			try { r.close(); } catch (IOException e1) {}
+			try { if(r != null) { r.close(); } } catch (IOException e1) {}
 			return false;
 		}
 	}
 	
-	private static LinkedList<byte[]> convertToByteArrayList(byte[] data, int fileBuffer) {
-		LinkedList<byte[]> result = new LinkedList<byte[]>();
-		int from = 0;
-		int to = 0;
-		int slicedItems = 0;
-		while (slicedItems < data.length) {
-			to = from + Math.min(fileBuffer, data.length - to);
-			byte[] slice = Arrays.copyOfRange(data, from, to);
-			result.add(slice);
-			slicedItems += slice.length;
-			from = to;
+	/**
+	 * @return boolean indicating if the next chunk write should be synced and timed.
+	 */
+	private synchronized boolean takeSample() {
+		long now = System.nanoTime();
+		if(this.lastSample != 0 && now - this.lastSample < this.sampleInterval) { return false; }
+		this.lastSample = now;
+		return true;
+	}
+	
+	/**
+	 * Sleeps for the database's write speed between two chunks.
+	 */
+	private void pause() throws InterruptedException {
+		int speed = this.getFileWriteSpeed();
+		JSMEvents.Throttle throttle = new JSMEvents.Throttle();
+		throttle.begin();
+		TimeUnit.MILLISECONDS.sleep(speed);
+		throttle.end();
+		if(throttle.shouldCommit()) {
+			throttle.drive = this.usbDriveName;
+			throttle.writeSpeed = speed;
+			throttle.commit();
+		}
+	}
+	
+	/**
+	 * Writes one chunk of a file to the drive.
+	 * @param r - file being written
+	 * @param data - the whole file
+	 * @param offset - offset of the chunk in the file
+	 * @param length - length of the chunk
+	 */
+	protected void writeChunk(RandomAccessFile r, byte[] data, int offset, int length) throws IOException {
+		r.seek(offset);
+		r.write(data, offset, length);
+	}
+	
+	/**
+	 * Reads a whole file from the drive.
+	 * @param path - full path of the file
+	 * @return the file's bytes as stored.
+	 */
+	protected byte[] readFile(String path) throws IOException {
+		return Files.readAllBytes(Paths.get(path));
+	}
+	
+	/**
+	 * Lets the amount of writers and the write speed adjust themselves to the drive's write 
+	 * latency and the machine's load, within the bounds passed. Replaces the values set by 
+	 * setMaxWriters() and setFileWriteSpeed(), which apply again once this is turned off.
+	 * @param controller - controller to adjust the writers with, or null to turn it off
+	 */
+	public synchronized void setWriteController(JSMWriteController controller) {
+		this.controller = controller;
+		this.applyWriterLimit();
+		this.dispatch();
+	}
+	
+	public synchronized JSMWriteController getWriteController() {
+		return this.controller;
+	}
+	
+	/**
+	 * Hands a chunk write to the controller, and applies its new amount of writers.
+	 */
+	private synchronized void recordWrite(int length, long nanos) {
+		if(this.controller != null && this.controller.record(length, nanos)) {
+			this.applyWriterLimit();
+			this.dispatch();
+		}
+	}
+	
+	/**
+	 * Sets the block size chunks are aligned to. By default it is probed from the drive's
+	 * file system when the database is initialized. Cheap flash erases in blocks much larger
+	 * than the file system's, so setting the erase block size here, if known, saves the drive
+	 * from erasing and rewriting the same block for several small writes.
+	 * @param size - block size in bytes, rounded up to a power of two
+	 */
+	public synchronized void setBlockSize(int size) {
+		this.blockSize = roundToPowerOfTwo(Math.max(512, size));
+		this.blockSizeSet = true;
+		this.setChunkSize(this.chunkSize);
+	}
+	
+	public synchronized int getBlockSize() {
+		return this.blockSize;
+	}
+	
+	/**
+	 * Sets the bounds within which the chunk size adapts to the drive, and the time
+	 * a single chunk write should take. Bounds are rounded to multiples of the block size.
+	 * @param minSize - smallest chunk in bytes
+	 * @param maxSize - largest chunk in bytes
+	 * @param latencyms - targeted milliseconds per chunk write
+	 */
+	public synchronized void setChunkBounds(int minSize, int maxSize, int latencyms) {
+		this.minChunkSize = minSize;
+		this.maxChunkSize = Math.max(minSize, maxSize);
+		this.chunkLatency = latencyms * 1000000L;
+		this.setChunkSize(this.chunkSize);
+	}
+	
+	public synchronized int getChunkSize() {
+		return this.chunkSize;
+	}
+	
+	/**
+	 * Sets the chunk size within its bounds, as the block size times a power of two.
+	 */
+	private synchronized void setChunkSize(int size) {
+		int min = Math.max(this.blockSize, this.minChunkSize);
+		int max = Math.max(min, this.maxChunkSize);
+		size = Math.max(min, Math.min(max, size));
+		int blocks = Integer.highestOneBit(Math.max(1, size / this.blockSize));
+		this.chunkSize = blocks * this.blockSize;
+	}
+	
+	/**
+	 * Doubles the chunk size when full chunks are written well under the targeted
+	 * latency and halves it when they take well over it.
+	 * @param length - bytes written
+	 * @param nanos - nanoseconds the write took
+	 */
+	private synchronized void adaptChunkSize(int length, long nanos) {
+		if(length < this.chunkSize) { return; }
+		if(nanos < this.chunkLatency / 2) {
+			this.setChunkSize(this.chunkSize * 2);
+		} else if(nanos > this.chunkLatency * 2) {
+			this.setChunkSize(this.chunkSize / 2);
 		}
-		return result;
+	}
+	
+	/**
+	 * Reads the block size of the drive's file system.
+	 */
+	private synchronized void probeBlockSize() {
+		if(this.blockSizeSet) { return; }
+		try {
+			long size = Files.getFileStore(Paths.get(this.usbDrivePath)).getBlockSize();
+			if(size > 0 && size <= 1048576) {
+				this.blockSize = roundToPowerOfTwo((int) size);
+				this.setChunkSize(this.chunkSize);
+			}
+		} catch(IOException | UnsupportedOperationException e) {}
+	}
+	
+	/**
+	 * @return smallest power of two greater than or equal to the value.
+	 */
+	private static int roundToPowerOfTwo(int value) {
+		return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
 	}
 
 }
@@ -0,0 +1,206 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses files with deflate. The data is split into chunks that are compressed
+ * in parallel on a fork join pool, so the cores of the machine can keep up with a
+ * usb drive that is far slower than they are. Files that barely compress, like jpegs,
+ * are detected from a sample and left alone, and any single chunk that does not 
+ * compress is stored as is.
+ * <br />
+ * Encoded syntax is as follows, all integers big endian:
+ * 
+ * magic (4) | raw length (4) | chunk size (4) | chunk count (4)
+ * then per chunk: stored length (4) | deflated flag (1) | data
+ *
+ * @author Jack Mead
+ */
+public class JSMDeflateCodec implements JSMCodec {
+
+	private static final int MAGIC = 0x4A534D5A; //JSMZ
+
+	private ForkJoinPool pool;
+	private int level;
+	private int chunkSize;
+
+	/**
+	 * Largest encoded size, as a fraction of the raw size, worth storing
+	 */
+	private double maxRatio;
+
+	/**
+	 * Creates a codec compressing at the fastest level on the common fork join pool.
+	 */
+	public JSMDeflateCodec() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param pool - pool on which the chunks are compressed and decompressed
+	 */
+	public JSMDeflateCodec(ForkJoinPool pool) {
+		this.pool = pool;
+		this.level = Deflater.BEST_SPEED;
+		this.chunkSize = 262144;
+		this.maxRatio = 0.9;
+	}
+
+	/**
+	 * @param level - deflate level from 1 (fastest) to 9 (smallest)
+	 */
+	public synchronized void setLevel(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * @param size - amount of raw bytes compressed by each task
+	 */
+	public synchronized void setChunkSize(int size) {
+		this.chunkSize = size;
+	}
+
+	/**
+	 * Sets how small a file must get to be stored compressed.
+	 * @param ratio - largest encoded size as a fraction of the raw size, e.g. 0.9
+	 */
+	public synchronized void setMaxRatio(double ratio) {
+		this.maxRatio = ratio;
+	}
+
+	@Override
+	public String getName() {
+		return "deflate";
+	}
+
+	@Override
+	public byte[] encode(byte[] data) {
+		int level, chunkSize;
+		double maxRatio;
+		synchronized(this) {
+			level = this.level;
+			chunkSize = this.chunkSize;
+			maxRatio = this.maxRatio;
+		}
+		
+		//a sample that does not compress means the whole file most likely won't either
+		int sample = Math.min(data.length, 65536);
+		byte[] sampled = deflate(data, 0, sample, level);
+		if(sampled == null || sampled.length > sample * maxRatio) {
+			return null;
+		}
+
+		int count = (data.length + chunkSize - 1) / chunkSize;
+		ArrayList<ForkJoinTask<byte[]>> tasks = new ArrayList<ForkJoinTask<byte[]>>(count);
+		for(int i = 0; i < count; i++) {
+			int from = i * chunkSize;
+			int length = Math.min(chunkSize, data.length - from);
+			tasks.add(this.pool.submit(() -> deflate(data, from, length, level)));
+		}
+
+		byte[][] chunks = new byte[count][];
+		long total = 16;
+		for(int i = 0; i < count; i++) {
+			chunks[i] = tasks.get(i).join();
+			int length = Math.min(chunkSize, data.length - i * chunkSize);
+			total += 5 + (chunks[i] == null ? length : chunks[i].length);
+		}
+		if(total > data.length * maxRatio) {
+			return null;
+		}
+
+		ByteBuffer out = ByteBuffer.allocate((int) total);
+		out.putInt(MAGIC).putInt(data.length).putInt(chunkSize).putInt(count);
+		for(int i = 0; i < count; i++) {
+			if(chunks[i] == null) {
+				int length = Math.min(chunkSize, data.length - i * chunkSize);
+				out.putInt(length).put((byte) 0).put(data, i * chunkSize, length);
+			} else {
+				out.putInt(chunks[i].length).put((byte) 1).put(chunks[i]);
+			}
+		}
+		return out.array();
+	}
+
+	@Override
+	public byte[] decode(byte[] data) {
+		ByteBuffer in = ByteBuffer.wrap(data);
+		if(data.length < 16 || in.getInt() != MAGIC) {
+			throw new IllegalArgumentException("data was not encoded by " + this.getName());
+		}
+		int rawLength = in.getInt();
+		int chunkSize = in.getInt();
+		int count = in.getInt();
+
+		byte[] raw = new byte[rawLength];
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(count);
+		for(int i = 0; i < count; i++) {
+			int stored = in.getInt();
+			boolean deflated = in.get() == 1;
+			int from = in.position();
+			int to = i * chunkSize;
+			int length = Math.min(chunkSize, rawLength - to);
+			in.position(from + stored);
+			if(deflated) {
+				tasks.add(this.pool.submit(() -> inflate(data, from, stored, raw, to, length)));
+			} else {
+				System.arraycopy(data, from, raw, to, length);
+			}
+		}
+		for(ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+		return raw;
+	}
+
+	/**
+	 * Compresses part of an array.
+	 * @return compressed bytes or null if they are not smaller than the raw bytes.
+	 */
+	private static byte[] deflate(byte[] data, int from, int length, int level) {
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(data, from, length);
+			deflater.finish();
+			byte[] buffer = new byte[length];
+			int size = 0;
+			while(!deflater.finished()) {
+				if(size == buffer.length) { return null; }
+				size += deflater.deflate(buffer, size, buffer.length - size);
+			}
+			if(size >= length) { return null; }
+			byte[] result = new byte[size];
+			System.arraycopy(buffer, 0, result, 0, size);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void inflate(byte[] data, int from, int stored, byte[] raw, int to, int length) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, from, stored);
+			int size = 0;
+			while(size < length && !inflater.finished()) {
+				int read = inflater.inflate(raw, to + size, length - size);
+				if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				size += read;
+			}
+			if(size != length) {
+				throw new IllegalArgumentException("corrupt deflate chunk");
+			}
+		} catch(DataFormatException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,27 @@
+/**
+ * Receives the hot-plug events produced by a {@link JSMDeviceWatcher}.
+ * Implementations should return quickly since every listener is called
+ * on the watcher's thread.
+ *
+ * @author Jack Mead
+ */
+public interface JSMDeviceListener {
+
+	/**
+	 * Called when a new device node appears in the watched device directory.
+	 * @param device - full path of the device node, e.g. /dev/sdb1
+	 */
+	public void deviceAttached(String device);
+
+	/**
+	 * Called when a device node is removed from the watched device directory.
+	 * @param device - full path of the device node, e.g. /dev/sdb1
+	 */
+	public void deviceDetached(String device);
+
+	/**
+	 * Called when the contents of the mount table have changed.
+	 */
+	public void mountTableChanged();
+
+}
@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches for usb storage devices being plugged into or pulled from the machine.
+ * Device nodes are watched through the file system's watch service (inotify on linux),
+ * so an insert or removal is reported within milliseconds instead of waiting on
+ * the next device scan. The mount table is also re-read every poll interval and
+ * listeners are told when it changes, which catches drives that are unmounted
+ * without their device node disappearing. Neither check forks a process.
+ * <br />
+ * Both the device directory and the mount table can be pointed elsewhere. Pointing
+ * them at a temporary directory and file stands in for real hardware: creating a file
+ * named like a device (e.g. 'sdb1') simulates an insert and deleting it simulates a removal.
+ * <br />
+ * Run on its own it checks itself that way, or prints the events of a directory, e.g.
+ * <br />
+ * java JSMDeviceWatcher
+ * <br />
+ * java JSMDeviceWatcher /dev/ /proc/mounts
+ *
+ * @author Jack Mead
+ */
+public class JSMDeviceWatcher extends Thread {
+
+	/**
+	 * Directory holding the device nodes, normally /dev/
+	 */
+	private Path deviceDirectory;
+
+	/**
+	 * File listing the mounted file systems, normally /proc/mounts
+	 */
+	private Path mountTable;
+
+	/**
+	 * Regex that a device node name must match to be reported
+	 */
+	private String devicePattern;
+
+	/**
+	 * Milliseconds to wait for a device event before re-reading the mount table
+	 */
+	private int pollSpeed;
+
+	private LinkedList<JSMDeviceListener> listeners;
+	private byte[] lastMountTable;
+	private WatchService watchService;
+	private volatile boolean running;
+
+	/**
+	 * Creates a watcher on /dev/ and /proc/mounts for usb storage
+	 * device nodes (sd*).
+	 */
+	public JSMDeviceWatcher() {
+		this(Paths.get("/dev/"), Paths.get("/proc/mounts"));
+	}
+
+	/**
+	 * Creates a watcher on the passed device directory and mount table.
+	 * @param deviceDirectory - directory holding the device nodes
+	 * @param mountTable - file listing the mounted file systems
+	 */
+	public JSMDeviceWatcher(Path deviceDirectory, Path mountTable) {
+		this.deviceDirectory = deviceDirectory;
+		this.mountTable = mountTable;
+		this.devicePattern = "sd[a-z]+[0-9]*";
+		this.pollSpeed = 250;
+		this.listeners = new LinkedList<JSMDeviceListener>();
+		this.lastMountTable = null;
+		this.running = false;
+		this.setName("jsm-device-watcher");
+		this.setDaemon(true);
+	}
+
+	public synchronized void addListener(JSMDeviceListener listener) {
+		this.listeners.add(listener);
+	}
+
+	public synchronized void removeListener(JSMDeviceListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	private synchronized LinkedList<JSMDeviceListener> getListeners() {
+		return new LinkedList<JSMDeviceListener>(this.listeners);
+	}
+
+	/**
+	 * Sets the regex a device node name must match to be reported.
+	 * @param pattern - regex matched against the node name only, e.g. 'sd[a-z]+[0-9]*'
+	 */
+	public synchronized void setDevicePattern(String pattern) {
+		this.devicePattern = pattern;
+	}
+
+	public synchronized String getDevicePattern() {
+		return this.devicePattern;
+	}
+
+	/**
+	 * Sets how often the mount table is re-read.
+	 * @param speedms - milliseconds between reads
+	 */
+	public synchronized void setPollSpeed(int speedms) {
+		this.pollSpeed = speedms;
+	}
+
+	public synchronized int getPollSpeed() {
+		return this.pollSpeed;
+	}
+
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * Registers the device directory with the watch service. Called by start(),
+	 * but may be called beforehand to find out if watching is possible at all.
+	 * @return boolean indicating if the device directory is being watched.
+	 */
+	public synchronized boolean register() {
+		if(this.watchService != null) { return true; }
+		try {
+			this.watchService = FileSystems.getDefault().newWatchService();
+			this.deviceDirectory.register(this.watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			this.lastMountTable = this.readMountTable();
+			return true;
+		} catch(IOException e) {
+			e.printStackTrace();
+			this.watchService = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the watcher. No listener will be called after this returns
+	 * and the thread has exited.
+	 */
+	public void shutdown() {
+		this.running = false;
+		try {
+			WatchService ws = this.watchService;
+			if(ws != null) { ws.close(); }
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		this.interrupt();
+	}
+
+	/**
+	 * Waits for device events and re-reads the mount table every poll interval
+	 * until shutdown() is called.
+	 */
+	public void run() {
+		if(!this.register()) { return; }
+		this.running = true;
+		while(this.running) {
+			try {
+				WatchKey key = this.watchService.poll(this.getPollSpeed(), TimeUnit.MILLISECONDS);
+				if(key != null) {
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							this.fireMountTableChanged();
+							continue;
+						}
+						String node = event.context().toString();
+						if(!node.matches(this.getDevicePattern())) { continue; }
+
+						String device = this.deviceDirectory.resolve(node).toString();
+						if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+							this.fireDeviceAttached(device);
+						} else {
+							this.fireDeviceDetached(device);
+						}
+					}
+					key.reset();
+				}
+
+				byte[] table = this.readMountTable();
+				if(!Arrays.equals(table, this.lastMountTable)) {
+					this.lastMountTable = table;
+					this.fireMountTableChanged();
+				}
+			} catch(InterruptedException | ClosedWatchServiceException e) {
+				break;
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+		this.running = false;
+	}
+
+	/**
+	 * With a device directory and mount table, prints their events until killed. Without,
+	 * creates and deletes device nodes and changes a mount table in a temporary directory, 
+	 * and checks that each is reported, and only those. Exits with 1 if one is not.
+	 */
+	public static void main(String[] args) throws Exception {
+		LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+		JSMDeviceListener listener = new JSMDeviceListener() {
+			public void deviceAttached(String device) { events.add("attached " + device); }
+			public void deviceDetached(String device) { events.add("detached " + device); }
+			public void mountTableChanged() { events.add("mount table changed"); }
+		};
+		
+		if(args.length > 0) {
+			JSMDeviceWatcher watcher = new JSMDeviceWatcher(Paths.get(args[0]), Paths.get(args.length > 1 ? args[1] : "/proc/mounts"));
+			watcher.addListener(listener);
+			watcher.start();
+			while(true) {
+				System.out.println(events.take());
+			}
+		}
+		
+		Path dir = Files.createTempDirectory("jsmdevices");
+		Path mounts = Files.createFile(dir.resolve("mounts"));
+		JSMDeviceWatcher watcher = new JSMDeviceWatcher(dir, mounts);
+		watcher.addListener(listener);
+		if(!watcher.register()) {
+			System.err.println("Cannot watch " + dir);
+			System.exit(1);
+		}
+		watcher.start();
+		
+		String[][] steps = {
+			{"attached " + dir.resolve("sdb"), "create sdb"},
+			{"attached " + dir.resolve("sdb1"), "create sdb1"},
+			{null, "create loop0"},
+			{"mount table changed", "mount sdb1"},
+			{"detached " + dir.resolve("sdb1"), "delete sdb1"},
+			{"detached " + dir.resolve("sdb"), "delete sdb"},
+			{null, "delete loop0"},
+		};
+		boolean passed = true;
+		for(String[] step : steps) {
+			String[] action = step[1].split(" ");
+			if(action[0].equals("create")) {
+				Files.createFile(dir.resolve(action[1]));
+			} else if(action[0].equals("delete")) {
+				Files.delete(dir.resolve(action[1]));
+			} else {
+				Files.write(mounts, ("/dev/" + action[1] + " /media/db1 vfat rw 0 0\n").getBytes());
+			}
+			
+			String event = events.poll(2000, TimeUnit.MILLISECONDS);
+			boolean ok = step[0] == null ? event == null : step[0].equals(event);
+			System.out.println((ok ? "ok    " : "FAIL  ") + step[1] + (event == null ? "" : " -> " + event));
+			passed &= ok;
+		}
+		
+		watcher.shutdown();
+		watcher.join();
+		Files.delete(mounts);
+		Files.delete(dir);
+		System.exit(passed ? 0 : 1);
+	}
+
+	private byte[] readMountTable() {
+		try {
+			return Files.readAllBytes(this.mountTable);
+		} catch(IOException e) {
+			return new byte[0];
+		}
+	}
+
+	private void fireDeviceAttached(String device) {
+		for(JSMDeviceListener listener : this.getListeners()) {
+			try { listener.deviceAttached(device); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+
+	private void fireDeviceDetached(String device) {
+		for(JSMDeviceListener listener : this.getListeners()) {
+			try { listener.deviceDetached(device); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+
+	private void fireMountTableChanged() {
+		for(JSMDeviceListener listener : this.getListeners()) {
+			try { listener.mountTableChanged(); } catch(Exception e) { e.printStackTrace(); }
+		}
+	}
+
+}
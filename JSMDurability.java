@@ -0,0 +1,27 @@
+/**
+ * How far a database goes to make sure a written file survives a power loss
+ * before recording it as written.
+ *
+ * @author Jack Mead
+ */
+public enum JSMDurability {
+
+	/**
+	 * Files are left to the operating system to flush whenever it wants. Fastest,
+	 * but files recorded as written may be truncated after a power loss.
+	 */
+	NONE,
+
+	/**
+	 * Every file is forced to the drive before it is recorded as written. 
+	 * Safe, but each file waits on its own sync.
+	 */
+	FSYNC_PER_FILE,
+
+	/**
+	 * Files written within a time or byte window are forced to the drive together
+	 * by a background flusher, and are all recorded as written once it is done.
+	 */
+	GROUP_COMMIT
+
+}
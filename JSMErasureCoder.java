@@ -0,0 +1,319 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+/**
+ * Reed-Solomon erasure coder over GF(256). A file is split into k data shards and
+ * m parity shards are computed from them, so that the file can be rebuilt from any
+ * k of the k + m shards. Stored on k + m different drives, the file survives losing
+ * any m of them while taking (k + m) / k times its size, instead of twice its size
+ * for a single copy on a second drive.
+ * <br />
+ * The code is systematic: the data shards hold the file as is, so a file whose data
+ * shards are all present is read back without any arithmetic. The parity rows form a
+ * Cauchy matrix, every square part of which can be inverted, which is what lets any
+ * k shards rebuild the data. Shards are encoded and decoded in slices on a fork join
+ * pool so every core of the machine works on a large file.
+ * <br />
+ * Each shard starts with a header, all integers big endian:
+ *
+ * magic (4) | k (1) | m (1) | index (1) | unused (1) | file length (8) | crc32 of the above (4)
+ *
+ * @author Jack Mead
+ */
+public class JSMErasureCoder {
+
+	private static final int MAGIC = 0x4A534D52; //JSMR
+	public static final int HEADER_SIZE = 20;
+
+	private static final int[] EXP = new int[512];
+	private static final int[] LOG = new int[256];
+	private static final byte[][] MUL = new byte[256][256];
+
+	static {
+		int x = 1;
+		for(int i = 0; i < 255; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if((x & 0x100) != 0) { x ^= 0x11d; }
+		}
+		for(int i = 255; i < 512; i++) {
+			EXP[i] = EXP[i - 255];
+		}
+		for(int a = 0; a < 256; a++) {
+			for(int b = 0; b < 256; b++) {
+				MUL[a][b] = (byte) multiply(a, b);
+			}
+		}
+	}
+
+	private ForkJoinPool pool;
+	private int dataShards;
+	private int parityShards;
+	private int sliceSize;
+
+	/**
+	 * Parity rows of the encoding matrix, parityShards by dataShards
+	 */
+	private int[][] parity;
+
+	/**
+	 * Creates a coder on the common fork join pool.
+	 * @param dataShards - k, amount of shards the file is split into
+	 * @param parityShards - m, amount of shards that may be lost
+	 */
+	public JSMErasureCoder(int dataShards, int parityShards) {
+		this(dataShards, parityShards, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param dataShards - k, amount of shards the file is split into
+	 * @param parityShards - m, amount of shards that may be lost
+	 * @param pool - pool on which the slices are encoded and decoded
+	 */
+	public JSMErasureCoder(int dataShards, int parityShards, ForkJoinPool pool) {
+		if(dataShards < 1 || parityShards < 0 || dataShards + parityShards > 255) {
+			throw new IllegalArgumentException("need 1 <= k and k + m <= 255");
+		}
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+		this.pool = pool;
+		this.sliceSize = 65536;
+		this.parity = new int[parityShards][dataShards];
+		for(int i = 0; i < parityShards; i++) {
+			for(int j = 0; j < dataShards; j++) {
+				this.parity[i][j] = inverse((dataShards + i) ^ j);
+			}
+		}
+	}
+
+	public int getDataShards() {
+		return this.dataShards;
+	}
+
+	public int getParityShards() {
+		return this.parityShards;
+	}
+
+	public int getTotalShards() {
+		return this.dataShards + this.parityShards;
+	}
+
+	/**
+	 * Splits a file into its shards.
+	 * @param data - the file
+	 * @return k + m shards, each with its header, data shards first.
+	 */
+	public byte[][] encode(byte[] data) {
+		int shardSize = Math.max(1, (data.length + this.dataShards - 1) / this.dataShards);
+		byte[][] shards = new byte[this.getTotalShards()][];
+		for(int i = 0; i < shards.length; i++) {
+			shards[i] = new byte[HEADER_SIZE + shardSize];
+			writeHeader(shards[i], this.dataShards, this.parityShards, i, data.length);
+			if(i < this.dataShards) {
+				int from = i * shardSize;
+				int length = Math.max(0, Math.min(shardSize, data.length - from));
+				System.arraycopy(data, from, shards[i], HEADER_SIZE, length);
+			}
+		}
+
+		byte[][] inputs = new byte[this.dataShards][];
+		System.arraycopy(shards, 0, inputs, 0, this.dataShards);
+		for(int i = 0; i < this.parityShards; i++) {
+			this.apply(this.parity[i], inputs, shards[this.dataShards + i], shardSize);
+		}
+		return shards;
+	}
+
+	/**
+	 * Rebuilds a file from its shards.
+	 * @param shards - shards by index, with null for the ones that are missing
+	 * @return the file.
+	 * @throws IllegalArgumentException if fewer than k valid shards were passed.
+	 */
+	public byte[] decode(byte[][] shards) {
+		int[] present = new int[this.dataShards];
+		boolean[] used = new boolean[this.getTotalShards()];
+		int count = 0;
+		long length = -1;
+		int shardSize = -1;
+		for(int i = 0; i < shards.length && i < this.getTotalShards() && count < this.dataShards; i++) {
+			if(shards[i] == null || !isShard(shards[i]) || getIndex(shards[i]) != i) { continue; }
+			if(shardSize != -1 && shards[i].length - HEADER_SIZE != shardSize) { continue; }
+			shardSize = shards[i].length - HEADER_SIZE;
+			length = getLength(shards[i]);
+			present[count++] = i;
+			used[i] = true;
+		}
+		if(count < this.dataShards) {
+			throw new IllegalArgumentException("need " + this.dataShards + " shards, found " + count);
+		}
+
+		//rows of the encoding matrix for the shards present, inverted
+		int[][] matrix = new int[this.dataShards][];
+		byte[][] inputs = new byte[this.dataShards][];
+		for(int r = 0; r < this.dataShards; r++) {
+			int index = present[r];
+			inputs[r] = shards[index];
+			if(index < this.dataShards) {
+				matrix[r] = new int[this.dataShards];
+				matrix[r][index] = 1;
+			} else {
+				matrix[r] = this.parity[index - this.dataShards].clone();
+			}
+		}
+		int[][] decoding = invert(matrix);
+
+		byte[] data = new byte[(int) length];
+		for(int d = 0; d < this.dataShards; d++) {
+			int from = d * shardSize;
+			int size = Math.max(0, Math.min(shardSize, data.length - from));
+			if(size == 0) { continue; }
+			if(used[d]) {
+				System.arraycopy(shards[d], HEADER_SIZE, data, from, size);
+			} else {
+				byte[] rebuilt = new byte[HEADER_SIZE + shardSize];
+				this.apply(decoding[d], inputs, rebuilt, shardSize);
+				System.arraycopy(rebuilt, HEADER_SIZE, data, from, size);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return boolean indicating if the data starts with a valid shard header.
+	 */
+	public static boolean isShard(byte[] data) {
+		if(data == null || data.length < HEADER_SIZE) { return false; }
+		ByteBuffer in = ByteBuffer.wrap(data);
+		if(in.getInt() != MAGIC) { return false; }
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, HEADER_SIZE - 4);
+		return (int) crc.getValue() == in.getInt(HEADER_SIZE - 4);
+	}
+
+	/**
+	 * @return k of the coder the shard was encoded with.
+	 */
+	public static int getDataShards(byte[] shard) {
+		return shard[4] & 0xff;
+	}
+
+	/**
+	 * @return m of the coder the shard was encoded with.
+	 */
+	public static int getParityShards(byte[] shard) {
+		return shard[5] & 0xff;
+	}
+
+	/**
+	 * @return index of the shard, data shards first.
+	 */
+	public static int getIndex(byte[] shard) {
+		return shard[6] & 0xff;
+	}
+
+	/**
+	 * @return length of the file the shard belongs to.
+	 */
+	public static long getLength(byte[] shard) {
+		return ByteBuffer.wrap(shard).getLong(8);
+	}
+
+	private static void writeHeader(byte[] shard, int k, int m, int index, long length) {
+		ByteBuffer out = ByteBuffer.wrap(shard);
+		out.putInt(MAGIC).put((byte) k).put((byte) m).put((byte) index).put((byte) 0).putLong(length);
+		CRC32 crc = new CRC32();
+		crc.update(shard, 0, HEADER_SIZE - 4);
+		out.putInt((int) crc.getValue());
+	}
+
+	/**
+	 * Computes output = sum of coefficients[j] * inputs[j], slice by slice in parallel.
+	 */
+	private void apply(int[] coefficients, byte[][] inputs, byte[] output, int shardSize) {
+		int sliceSize;
+		synchronized(this) {
+			sliceSize = this.sliceSize;
+		}
+		int count = (shardSize + sliceSize - 1) / sliceSize;
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(count);
+		for(int s = 0; s < count; s++) {
+			int from = HEADER_SIZE + s * sliceSize;
+			int to = Math.min(HEADER_SIZE + shardSize, from + sliceSize);
+			Runnable slice = () -> {
+				for(int j = 0; j < inputs.length; j++) {
+					if(coefficients[j] == 0) { continue; }
+					byte[] row = MUL[coefficients[j]];
+					byte[] input = inputs[j];
+					for(int x = from; x < to; x++) {
+						output[x] ^= row[input[x] & 0xff];
+					}
+				}
+			};
+			if(count == 1) {
+				slice.run();
+			} else {
+				tasks.add(this.pool.submit(slice));
+			}
+		}
+		for(ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+	}
+
+	/**
+	 * @param size - amount of bytes of a shard each task works on
+	 */
+	public synchronized void setSliceSize(int size) {
+		this.sliceSize = size;
+	}
+
+	/**
+	 * Inverts a square matrix over GF(256) by Gauss-Jordan elimination.
+	 */
+	private static int[][] invert(int[][] matrix) {
+		int n = matrix.length;
+		int[][] work = new int[n][2 * n];
+		for(int r = 0; r < n; r++) {
+			System.arraycopy(matrix[r], 0, work[r], 0, n);
+			work[r][n + r] = 1;
+		}
+		for(int c = 0; c < n; c++) {
+			int pivot = c;
+			while(pivot < n && work[pivot][c] == 0) { pivot++; }
+			if(pivot == n) { throw new IllegalArgumentException("matrix cannot be inverted"); }
+			int[] swap = work[c]; work[c] = work[pivot]; work[pivot] = swap;
+
+			int scale = inverse(work[c][c]);
+			for(int x = 0; x < 2 * n; x++) {
+				work[c][x] = multiply(work[c][x], scale);
+			}
+			for(int r = 0; r < n; r++) {
+				if(r == c || work[r][c] == 0) { continue; }
+				int factor = work[r][c];
+				for(int x = 0; x < 2 * n; x++) {
+					work[r][x] ^= multiply(factor, work[c][x]);
+				}
+			}
+		}
+		int[][] inverse = new int[n][n];
+		for(int r = 0; r < n; r++) {
+			System.arraycopy(work[r], n, inverse[r], 0, n);
+		}
+		return inverse;
+	}
+
+	private static int multiply(int a, int b) {
+		if(a == 0 || b == 0) { return 0; }
+		return EXP[LOG[a] + LOG[b]];
+	}
+
+	private static int inverse(int a) {
+		return EXP[255 - LOG[a]];
+	}
+
+}
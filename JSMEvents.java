@@ -0,0 +1,251 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the save, write, mount and scan paths. Each event spans
+ * the work it is named after, so a recording shows where the time of a slow save went: 
+ * waiting for the manager, probing devices with a forked process, writing a chunk to the
+ * drive, or sleeping between chunks. Nothing is recorded unless a recording with the
+ * events enabled is running, e.g.
+ * <br />
+ * java -XX:StartFlightRecording:filename=jsm.jfr,settings=profile ...
+ * <br />
+ * and an event that is not enabled costs about as much as allocating it.
+ *
+ * @author Jack Mead
+ */
+public class JSMEvents {
+
+	private JSMEvents() {}
+
+	@Name("jsm.Save")
+	@Label("Save")
+	@Category({"JSM Database", "Manager"})
+	@Description("A file handed to the manager, from admission until it is queued or written to the default directory")
+	@StackTrace(false)
+	public static class Save extends Event {
+		@Label("File Name")
+		public String fileName;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("Priority")
+		public String priority;
+
+		@Label("Result")
+		@Description("QUEUED, DEFAULT or FAILED")
+		public String result;
+	}
+
+	@Name("jsm.Select")
+	@Label("Select Database")
+	@Category({"JSM Database", "Manager"})
+	@StackTrace(false)
+	public static class Select extends Event {
+		@Label("File Name")
+		public String fileName;
+
+		@Label("Priority")
+		public String priority;
+
+		@Label("Drive")
+		@Description("Device of the selected database, empty if none was available")
+		public String drive;
+	}
+
+	@Name("jsm.DeviceScan")
+	@Label("Device Scan")
+	@Category({"JSM Database", "Manager"})
+	@StackTrace(false)
+	public static class DeviceScan extends Event {
+		@Label("Databases")
+		@Description("Databases attached once the scan was done")
+		public int databases;
+	}
+
+	@Name("jsm.Probe")
+	@Label("Device Probe")
+	@Category({"JSM Database", "Manager"})
+	@Description("A call that forks a process or reads the file system to find out about a device")
+	@StackTrace(false)
+	public static class Probe extends Event {
+		@Label("Probe")
+		public String probe;
+
+		@Label("Device")
+		public String device;
+	}
+
+	@Name("jsm.WriteBatch")
+	@Label("Write Batch")
+	@Category({"JSM Database", "Database"})
+	@Description("Files written one after another by a single writer, before they are made durable and committed")
+	@StackTrace(false)
+	public static class WriteBatch extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("Files")
+		public int files;
+
+		@Label("Written")
+		public int written;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+	}
+
+	@Name("jsm.Deduplicate")
+	@Label("Deduplicate")
+	@Category({"JSM Database", "Database"})
+	@Description("A file split into content defined chunks, its new chunks written and its recipe written")
+	@StackTrace(false)
+	public static class Deduplicate extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("File Name")
+		public String fileName;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+
+		@Label("Chunks")
+		public int chunks;
+
+		@Label("New Chunks")
+		@Description("Chunks the chunk store did not hold yet")
+		public int newChunks;
+
+		@Label("New Size")
+		@DataAmount
+		public long newBytes;
+	}
+
+	@Name("jsm.Chunk")
+	@Label("Chunk Write")
+	@Category({"JSM Database", "Database"})
+	@Description("A single chunk of a file written to the drive")
+	@StackTrace(false)
+	public static class Chunk extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("Path")
+		public String path;
+
+		@Label("Offset")
+		@DataAmount
+		public long offset;
+
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+	}
+
+	@Name("jsm.Throttle")
+	@Label("Write Throttle")
+	@Category({"JSM Database", "Database"})
+	@Description("Sleep between two chunks at the database's write speed")
+	@StackTrace(false)
+	public static class Throttle extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("Write Speed")
+		@Description("Milliseconds slept")
+		public int writeSpeed;
+	}
+
+	@Name("jsm.Init")
+	@Label("Database Init")
+	@Category({"JSM Database", "Database"})
+	@StackTrace(false)
+	public static class Init extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("Path")
+		public String path;
+
+		@Label("Success")
+		public boolean success;
+
+		@Label("Files")
+		public int files;
+
+		@Label("Temp Files Swept")
+		public int swept;
+	}
+
+	@Name("jsm.FileScan")
+	@Label("File Scan")
+	@Category({"JSM Database", "Database"})
+	@Description("Listing of the files stored on a drive")
+	@StackTrace(false)
+	public static class FileScan extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("Root Files")
+		public int rootFiles;
+
+		@Label("Files")
+		public int files;
+	}
+
+	@Name("jsm.ReduceRoot")
+	@Label("Reduce Root")
+	@Category({"JSM Database", "Database"})
+	@StackTrace(false)
+	public static class ReduceRoot extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("Requested")
+		public int requested;
+
+		@Label("Moved")
+		public int moved;
+	}
+
+	@Name("jsm.Drain")
+	@Label("Database Drain")
+	@Category({"JSM Database", "Database"})
+	@Description("Writers finishing and the drive being unmounted after uninit()")
+	@StackTrace(false)
+	public static class Drain extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("Aborted")
+		@Description("Queued batches failed without being written")
+		public int aborted;
+
+		@Label("Finished")
+		@Description("Everything finished in time and the drive was unmounted")
+		public boolean finished;
+	}
+
+	@Name("jsm.Corrupt")
+	@Label("Corrupt File")
+	@Category({"JSM Database", "Database"})
+	@Description("A stored file found to not match its checksum, by a read or a scrub")
+	public static class Corrupt extends Event {
+		@Label("Drive")
+		public String drive;
+
+		@Label("File Name")
+		public String fileName;
+	}
+
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Background flusher for the GROUP_COMMIT durability mode. Writers hand it the files
+ * they have written and get a future back. Once the oldest file has waited for the
+ * commit window, or enough bytes have piled up, every pending file and the directory
+ * holding them are forced to the drive in one go and all of the futures are completed.
+ * One sync of many files costs the drive far less than one sync per file. Files written
+ * under a temporary name are renamed to their real name between syncing the files and
+ * syncing the directory, so the renames are on the drive with the rest of the group.
+ *
+ * @author Jack Mead
+ */
+public class JSMGroupCommitter extends Thread {
+
+	private String directory;
+	private long commitWindow;
+	private long commitBytes;
+
+	private LinkedList<String> pendingPaths;
+	private LinkedList<String> pendingTargets;
+	private LinkedList<CompletableFuture<Boolean>> pendingFutures;
+	private long pendingBytes;
+	private long pendingSince;
+
+	private volatile boolean running;
+	private volatile long groups;
+	private volatile long filesSynced;
+
+	/**
+	 * @param directory - directory the files are written to, synced with every group
+	 * @param commitWindow - longest milliseconds a file waits to be synced
+	 * @param commitBytes - amount of pending bytes that triggers a sync right away
+	 */
+	public JSMGroupCommitter(String directory, long commitWindow, long commitBytes) {
+		this.directory = directory;
+		this.commitWindow = commitWindow;
+		this.commitBytes = commitBytes;
+		this.pendingPaths = new LinkedList<String>();
+		this.pendingTargets = new LinkedList<String>();
+		this.pendingFutures = new LinkedList<CompletableFuture<Boolean>>();
+		this.pendingBytes = 0;
+		this.pendingSince = 0;
+		this.running = true;
+		this.groups = 0;
+		this.filesSynced = 0;
+		this.setName("jsm-group-commit-" + directory);
+		this.setDaemon(true);
+	}
+
+	/**
+	 * Queues written files to be synced with the next group. Once the committer has been
+	 * shut down, the files are synced right away on the calling thread.
+	 * @param paths - full paths of the written files
+	 * @param bytes - amount of bytes written to them
+	 * @return future completed with true once the files are on the drive, or false if syncing failed.
+	 */
+	public CompletableFuture<Boolean> sync(List<String> paths, long bytes) {
+		return this.sync(paths, null, bytes);
+	}
+
+	/**
+	 * Queues files written under a temporary name to be synced with the next group and
+	 * renamed to their real name once they are on the drive.
+	 * @param paths - full paths the files were written to
+	 * @param targets - full paths to rename the files to once synced, in the order of the paths, or null to keep their names
+	 * @param bytes - amount of bytes written to them
+	 * @return future completed with true once the files are on the drive under their real name, or false if syncing or renaming failed.
+	 */
+	public CompletableFuture<Boolean> sync(List<String> paths, List<String> targets, long bytes) {
+		if(targets == null) {
+			targets = new LinkedList<String>();
+			for(int i = 0; i < paths.size(); i++) {
+				targets.add(null);
+			}
+		}
+		CompletableFuture<Boolean> synced = new CompletableFuture<Boolean>();
+		synchronized(this) {
+			if(this.running) {
+				if(this.pendingPaths.isEmpty()) {
+					this.pendingSince = System.currentTimeMillis();
+				}
+				this.pendingPaths.addAll(paths);
+				this.pendingTargets.addAll(targets);
+				this.pendingFutures.add(synced);
+				this.pendingBytes += bytes;
+				this.notifyAll();
+				return synced;
+			}
+		}
+		synced.complete(this.force(paths, targets));
+		return synced;
+	}
+
+	/**
+	 * Syncs whatever is pending and stops the committer.
+	 */
+	public synchronized void shutdown() {
+		this.running = false;
+		this.notifyAll();
+	}
+
+	/**
+	 * @return amount of groups synced so far.
+	 */
+	public long getGroups() {
+		return this.groups;
+	}
+
+	/**
+	 * @return amount of files synced so far.
+	 */
+	public long getFilesSynced() {
+		return this.filesSynced;
+	}
+
+	public void run() {
+		while(true) {
+			LinkedList<String> paths;
+			LinkedList<String> targets;
+			LinkedList<CompletableFuture<Boolean>> futures;
+			synchronized(this) {
+				try {
+					while(this.running && (this.pendingPaths.isEmpty() ||
+							(this.pendingBytes < this.commitBytes && 
+							System.currentTimeMillis() - this.pendingSince < this.commitWindow))) {
+						long wait = this.pendingPaths.isEmpty() ? 0 : 
+							Math.max(1, this.commitWindow - (System.currentTimeMillis() - this.pendingSince));
+						this.wait(wait);
+					}
+				} catch(InterruptedException e) {
+					this.running = false;
+				}
+				if(this.pendingPaths.isEmpty() && !this.running) { 
+					break; 
+				}
+				paths = this.pendingPaths;
+				targets = this.pendingTargets;
+				futures = this.pendingFutures;
+				this.pendingPaths = new LinkedList<String>();
+				this.pendingTargets = new LinkedList<String>();
+				this.pendingFutures = new LinkedList<CompletableFuture<Boolean>>();
+				this.pendingBytes = 0;
+			}
+			
+			boolean synced = this.force(paths, targets);
+			for(CompletableFuture<Boolean> future : futures) {
+				future.complete(synced);
+			}
+		}
+	}
+
+	/**
+	 * Forces the files to the drive, renames the ones with a target, and forces their
+	 * directory to the drive. Nothing is renamed if any file failed to sync.
+	 * @return boolean indicating if every file was synced and renamed.
+	 */
+	private boolean force(List<String> paths, List<String> targets) {
+		boolean synced = true;
+		for(String path : paths) {
+			try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+				channel.force(true);
+				this.filesSynced += 1;
+			} catch(IOException e) {
+				e.printStackTrace();
+				synced = false;
+			}
+		}
+		Iterator<String> target = targets.iterator();
+		for(String path : paths) {
+			String to = target.next();
+			if(synced && to != null && !JSMDatabase.publish(path, to, false)) {
+				synced = false;
+			}
+		}
+		JSMDatabase.forceDirectory(this.directory);
+		this.groups += 1;
+		return synced;
+	}
+
+}
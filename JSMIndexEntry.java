@@ -0,0 +1,115 @@
+import java.util.Comparator;
+
+/**
+ * Record kept in a database's index for every file written to it. Entries are 
+ * saved in the database's index file through a JSMParser, keyed by file name, 
+ * so a file name cannot contain a colon.
+ *
+ * @author Jack Mead
+ */
+public class JSMIndexEntry {
+
+	/**
+	 * Codec name recorded for files that are stored as is
+	 */
+	public static final String NO_CODEC = "none";
+
+	/**
+	 * Checksum recorded for files whose checksum is not known
+	 */
+	public static final long NO_CHECKSUM = -1;
+
+	/**
+	 * Orders entries by file name
+	 */
+	public static final Comparator<JSMIndexEntry> BY_NAME = Comparator.comparing(JSMIndexEntry::getName);
+
+	/**
+	 * Orders entries by commit time, and by file name for equal times
+	 */
+	public static final Comparator<JSMIndexEntry> BY_TIME = 
+			Comparator.comparingLong(JSMIndexEntry::getTime).thenComparing(JSMIndexEntry::getName);
+
+	private String name;
+	private String codec;
+	private long checksum;
+	private long size;
+	private long time;
+
+	/**
+	 * @param name - file name
+	 * @param codec - name of the codec the file was encoded with, or NO_CODEC
+	 * @param checksum - CRC32C of the bytes stored on the drive, or NO_CHECKSUM
+	 * @param size - amount of bytes stored on the drive
+	 * @param time - milliseconds since the epoch at which the file was committed
+	 */
+	public JSMIndexEntry(String name, String codec, long checksum, long size, long time) {
+		this.name = name;
+		this.codec = codec;
+		this.checksum = checksum;
+		this.size = size;
+		this.time = time;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getCodec() {
+		return this.codec;
+	}
+
+	public long getChecksum() {
+		return this.checksum;
+	}
+
+	public boolean hasChecksum() {
+		return this.checksum != NO_CHECKSUM;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public long getTime() {
+		return this.time;
+	}
+
+	/**
+	 * @return boolean indicating if the file is stored as is.
+	 */
+	public boolean isRaw() {
+		return NO_CODEC.equals(this.codec);
+	}
+
+	/**
+	 * @return the value saved for this entry in the index file.
+	 */
+	public String toValue() {
+		return this.codec + " " + 
+				(this.hasChecksum() ? Long.toHexString(this.checksum) : "-") + " " + 
+				this.size + " " + this.time;
+	}
+
+	/**
+	 * Reads an entry back from the index file. Fields missing from 
+	 * older index files are left unknown.
+	 * @param name - file name, the key in the index file
+	 * @param value - value saved by toValue()
+	 * @return entry for the file.
+	 */
+	public static JSMIndexEntry parse(String name, String value) {
+		String[] fields = value.trim().split(" ");
+		String codec = fields[0].isEmpty() ? NO_CODEC : fields[0];
+		long checksum = NO_CHECKSUM;
+		long size = -1;
+		long time = 0;
+		try {
+			if(fields.length > 1 && !fields[1].equals("-")) { checksum = Long.parseLong(fields[1], 16); }
+			if(fields.length > 2) { size = Long.parseLong(fields[2]); }
+			if(fields.length > 3) { time = Long.parseLong(fields[3]); }
+		} catch(NumberFormatException e) {}
+		return new JSMIndexEntry(name, codec, checksum, size, time);
+	}
+
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Node backed by a manager in the same JVM. Lets a federation be run, or tested,
+ * in a single process without going through the network.
+ *
+ * @author Jack Mead
+ */
+public class JSMLocalNode implements JSMStorageNode {
+
+	private JSMDBManager manager;
+	private String name;
+
+	/**
+	 * @param manager - manager the files are stored with
+	 * @param name - name of the node
+	 */
+	public JSMLocalNode(JSMDBManager manager, String name) {
+		this.manager = manager;
+		this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public boolean isHealthy() {
+		return true;
+	}
+
+	@Override
+	public boolean canAccept() {
+		return this.manager.getFreeWriters() > 0;
+	}
+
+	@Override
+	public CompletableFuture<JSMSaveStatus> save(byte[] data, String name, JSMPriority priority) {
+		return this.manager.saveLocalAsync(data, name, false, priority);
+	}
+
+	@Override
+	public boolean isWrittenToDB(String name) {
+		return this.manager.isWrittenToDB(name);
+	}
+
+	@Override
+	public byte[] read(String name) throws IOException {
+		return this.manager.readLocal(name);
+	}
+
+	@Override
+	public void close() {}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Caps the bytes of file payloads a manager holds in memory at once. A save reserves
+ * the size of its payload before it is queued and releases it once the file has been
+ * written or has failed. A payload larger than the whole budget is still admitted
+ * when nothing else is reserved, so it cannot be refused forever.
+ * <br />
+ * The amount reserved and the highest amount ever reserved are kept so the heap
+ * can be sized to the budget actually needed.
+ *
+ * @author Jack Mead
+ */
+public class JSMMemoryBudget {
+
+	private long limit;
+	private long used;
+	private long peak;
+	private JSMAdmission policy;
+	private long blockTimeout;
+	private long admitted;
+	private long refused;
+
+	/**
+	 * @param limit - most payload bytes held at once, 0 or less for no limit
+	 * @param policy - what to do with a save over the budget
+	 */
+	public JSMMemoryBudget(long limit, JSMAdmission policy) {
+		this.limit = limit;
+		this.policy = policy;
+		this.used = 0;
+		this.peak = 0;
+		this.blockTimeout = 30000;
+		this.admitted = 0;
+		this.refused = 0;
+	}
+
+	/**
+	 * Reserves bytes if they fit in the budget.
+	 * @param bytes - size of the payload
+	 * @return boolean indicating if the bytes were reserved.
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		if(this.limit > 0 && this.used > 0 && this.used + bytes > this.limit) {
+			return false;
+		}
+		this.used += bytes;
+		this.peak = Math.max(this.peak, this.used);
+		this.admitted++;
+		return true;
+	}
+
+	/**
+	 * Reserves bytes, waiting for other payloads to be released if they do not fit.
+	 * @param bytes - size of the payload
+	 * @param timeoutms - longest milliseconds to wait
+	 * @return boolean indicating if the bytes were reserved before the timeout.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized boolean acquire(long bytes, long timeoutms) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutms;
+		while(!this.tryAcquire(bytes)) {
+			long left = deadline - System.currentTimeMillis();
+			if(left <= 0) { return false; }
+			this.wait(left);
+		}
+		return true;
+	}
+
+	/**
+	 * Releases bytes reserved by tryAcquire() or acquire().
+	 * @param bytes - size of the payload
+	 */
+	public synchronized void release(long bytes) {
+		this.used = Math.max(0, this.used - bytes);
+		this.notifyAll();
+	}
+
+	/**
+	 * Counts a save that was turned away or spilled.
+	 */
+	public synchronized void refuse() {
+		this.refused++;
+	}
+
+	/**
+	 * @param limit - most payload bytes held at once, 0 or less for no limit
+	 */
+	public synchronized void setLimit(long limit) {
+		this.limit = limit;
+		this.notifyAll();
+	}
+
+	public synchronized long getLimit() {
+		return this.limit;
+	}
+
+	public synchronized void setPolicy(JSMAdmission policy) {
+		this.policy = policy;
+	}
+
+	public synchronized JSMAdmission getPolicy() {
+		return this.policy;
+	}
+
+	/**
+	 * @param timeoutms - longest milliseconds a BLOCK save waits before failing
+	 */
+	public synchronized void setBlockTimeout(long timeoutms) {
+		this.blockTimeout = timeoutms;
+	}
+
+	public synchronized long getBlockTimeout() {
+		return this.blockTimeout;
+	}
+
+	/**
+	 * @return payload bytes currently held.
+	 */
+	public synchronized long getUsed() {
+		return this.used;
+	}
+
+	/**
+	 * @return most payload bytes held at once since creation or the last resetPeak().
+	 */
+	public synchronized long getPeak() {
+		return this.peak;
+	}
+
+	public synchronized void resetPeak() {
+		this.peak = this.used;
+	}
+
+	/**
+	 * @return amount of saves that were given room in the budget.
+	 */
+	public synchronized long getAdmitted() {
+		return this.admitted;
+	}
+
+	/**
+	 * @return amount of saves that failed or were spilled because the budget was full.
+	 */
+	public synchronized long getRefused() {
+		return this.refused;
+	}
+
+}
@@ -49,6 +49,7 @@ public class JSMParser {
 			Scanner scan = new Scanner(path.toFile());
 			while(scan.hasNextLine()){
 				String line = scan.nextLine();
+				if(line.isEmpty()) { continue; }
 				String key = line.substring(0, line.indexOf(":"));
 				String value = line.substring(line.indexOf(":")+2);
 				data.put(key, value);
@@ -66,6 +67,7 @@ public class JSMParser {
 	public synchronized boolean load(ArrayList<String> lines) {
 		try {
 			for(String line : lines) {
+				if(line.isEmpty()) { continue; }
 				String key = line.substring(0, line.indexOf(":"));
 				String value = line.substring(line.indexOf(":")+2);
 				data.put(key, value);
@@ -80,6 +82,7 @@ public class JSMParser {
 		HashMap<String, String> parseData = new HashMap<String, String>();
 		try {
 			for(String line : lines){
+				if(line.isEmpty()) { continue; }
 				String key = line.substring(0, line.indexOf(":"));
 				String value = line.substring(line.indexOf(":")+2);
 				parseData.put(key, value);
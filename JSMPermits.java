@@ -0,0 +1,52 @@
+import java.util.concurrent.Semaphore;
+
+/**
+ * Counting semaphore whose total amount of permits can be changed while 
+ * permits are held. Used to cap how many tasks a database runs at once
+ * no matter which executor runs them.
+ *
+ * @author Jack Mead
+ */
+public class JSMPermits extends Semaphore {
+
+	private static final long serialVersionUID = 1L;
+
+	private int limit;
+
+	/**
+	 * @param limit - total amount of permits
+	 */
+	public JSMPermits(int limit) {
+		super(Math.max(0, limit));
+		this.limit = Math.max(0, limit);
+	}
+
+	/**
+	 * Changes the total amount of permits. Lowering the limit below the amount
+	 * of permits in use does not revoke them. New permits are only handed out
+	 * once enough have been released.
+	 * @param limit - total amount of permits
+	 */
+	public synchronized void setLimit(int limit) {
+		limit = Math.max(0, limit);
+		int difference = limit - this.limit;
+		if(difference > 0) {
+			this.release(difference);
+		} else if(difference < 0) {
+			this.reducePermits(-difference);
+		}
+		this.limit = limit;
+	}
+
+	public synchronized int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * @return amount of permits currently held.
+	 */
+	public synchronized int getInUse() {
+		return this.limit - this.availablePermits();
+	}
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Priority class of a save. Each database keeps one queue of waiting writes per
+ * class and hands its free writers out by weighted fair queuing, so each class gets
+ * a share of the drive's writers in proportion to its weight while every class
+ * with waiting writes still gets some of them.
+ *
+ * @author Jack Mead
+ */
+public enum JSMPriority {
+
+	/**
+	 * Writes that must not wait behind routine traffic, e.g. alarm triggered captures.
+	 */
+	URGENT(8),
+
+	/**
+	 * Default class of every save.
+	 */
+	NORMAL(2),
+
+	/**
+	 * Background traffic that only needs to keep moving. It has the lowest weight in the
+	 * weighted fair queue of JSMWriteQueue, so it gets the smallest share of the writers
+	 * while other classes have writes waiting, and all of them when it is alone.
+	 */
+	BULK(1);
+
+	private int weight;
+
+	private JSMPriority(int weight) {
+		this.weight = weight;
+	}
+
+	/**
+	 * @return share of the writers this class gets relative to the other classes
+	 */
+	public int getWeight() {
+		return this.weight;
+	}
+
+}
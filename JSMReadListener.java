@@ -0,0 +1,31 @@
+import java.io.IOException;
+
+/**
+ * Receives the files read by {@link JSMDBManager#getMany(java.util.Collection, JSMReadListener, boolean)}.
+ * Every call is made on the thread that called getMany(), one at a time, so an
+ * implementation does not need to be thread safe.
+ *
+ * @author Jack Mead
+ */
+public interface JSMReadListener {
+
+	/**
+	 * Called with each file once it has been read.
+	 * @param name - name of the file
+	 * @param data - raw file data, or null if the file is not in the database
+	 * @throws IOException to stop reading the rest of the files
+	 */
+	public void fileRead(String name, byte[] data) throws IOException;
+
+	/**
+	 * Called instead of fileRead() when a file could not be read. Rethrows the
+	 * error unless overridden, which stops reading the rest of the files.
+	 * @param name - name of the file
+	 * @param e - error reading the file
+	 * @throws IOException to stop reading the rest of the files
+	 */
+	public default void readFailed(String name, IOException e) throws IOException {
+		throw e;
+	}
+
+}
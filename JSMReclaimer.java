@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces a retention policy on a database by deleting its oldest files. Files
+ * are deleted in small batches with a pause in between, so reclaiming space never
+ * holds up the file writers, and the drive stays writable instead of being retired
+ * once it is full.
+ *
+ * @author Jack Mead
+ */
+public class JSMReclaimer extends Thread {
+
+	private JSMDatabase db;
+	private JSMRetentionPolicy policy;
+	private int batchSize;
+	private long batchSpeed;
+	private long reclaimInterval;
+	private volatile boolean running;
+	private volatile long filesReclaimed;
+	private volatile long bytesReclaimed;
+
+	/**
+	 * @param db - database to reclaim space on
+	 * @param policy - policy deciding which files are deleted
+	 */
+	public JSMReclaimer(JSMDatabase db, JSMRetentionPolicy policy) {
+		this.db = db;
+		this.policy = policy;
+		this.batchSize = 20;
+		this.batchSpeed = 1000;
+		this.reclaimInterval = 10000;
+		this.running = false;
+		this.filesReclaimed = 0;
+		this.bytesReclaimed = 0;
+		this.setName("jsm-reclaimer-" + db.getUSBDriveName());
+		this.setDaemon(true);
+	}
+
+	/**
+	 * @param amount - files deleted per batch
+	 * @param speedms - milliseconds paused between batches
+	 */
+	public void setBatch(int amount, long speedms) {
+		this.batchSize = Math.max(1, amount);
+		this.batchSpeed = speedms;
+	}
+
+	/**
+	 * @param intervalms - milliseconds between checks of the policy
+	 */
+	public void setReclaimInterval(long intervalms) {
+		this.reclaimInterval = intervalms;
+	}
+
+	public JSMRetentionPolicy getPolicy() {
+		return this.policy;
+	}
+
+	public long getFilesReclaimed() {
+		return this.filesReclaimed;
+	}
+
+	public long getBytesReclaimed() {
+		return this.bytesReclaimed;
+	}
+
+	public void shutdown() {
+		this.running = false;
+		this.interrupt();
+	}
+
+	public void run() {
+		this.running = true;
+		while(this.running) {
+			try {
+				while(this.running && this.reclaimBatch()) {
+					TimeUnit.MILLISECONDS.sleep(this.batchSpeed);
+				}
+				TimeUnit.MILLISECONDS.sleep(this.reclaimInterval);
+			} catch(InterruptedException e) {
+				break;
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+		this.running = false;
+	}
+
+	/**
+	 * Deletes up to one batch of the oldest files that the policy no longer allows.
+	 * @return boolean indicating if a full batch was deleted, meaning there may be more.
+	 */
+	private boolean reclaimBatch() {
+		ArrayList<JSMIndexEntry> oldest = this.db.getOldestFiles(this.batchSize * 2);
+		if(oldest.isEmpty()) { return false; }
+
+		long maxAge = this.policy.getMaxAge();
+		long maxBytes = this.policy.getMaxBytes();
+		int keepNewest = this.policy.getKeepNewest();
+		int minStorageLeft = this.policy.getMinStorageLeft();
+
+		long totalBytes = this.db.getStoredBytes();
+		int remaining = this.db.getTotalFilesInDB();
+		boolean lowStorage = minStorageLeft > 0 && this.db.getStorageLeft() < minStorageLeft;
+		long now = System.currentTimeMillis();
+
+		LinkedList<String> batch = new LinkedList<String>();
+		long batchBytes = 0;
+		for(JSMIndexEntry file : oldest) {
+			if(batch.size() >= this.batchSize) { break; }
+			boolean expired = maxAge > 0 && now - file.getTime() > maxAge;
+			boolean overBytes = maxBytes > 0 && totalBytes - batchBytes > maxBytes;
+			boolean overCount = keepNewest > 0 && remaining > keepNewest;
+			if(!expired && !overBytes && !overCount && !lowStorage) { break; }
+			
+			if(this.db.isCurrentlyWriting(file.getName())) { continue; }
+			batch.add(file.getName());
+			batchBytes += Math.max(0, file.getSize());
+			remaining -= 1;
+		}
+		if(batch.isEmpty()) { return false; }
+
+		LinkedHashMap<String, Long> deleted = this.db.delete(batch);
+		this.filesReclaimed += deleted.size();
+		for(long bytes : deleted.values()) {
+			this.bytesReclaimed += bytes;
+		}
+		return deleted.size() >= this.batchSize;
+	}
+
+}
@@ -0,0 +1,376 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Node for a manager on another machine, served by a JSMServer. Every request goes
+ * over one kept alive connection. Requests are pipelined: they are sent as soon as
+ * they are made, without waiting for the answers to the ones before them, and the
+ * requests that pile up while the connection is busy are sent together in a single
+ * write. The answers come back in order on a separate thread. So many small saves
+ * cost about one round trip between them instead of one each.
+ * <br />
+ * The health of the node, whether it answers and how many databases it has, is
+ * checked at most once per health interval in the background, so placing a file
+ * never waits on the network to find out if the node is up. A connection that
+ * fails marks the node unhealthy until the next successful check.
+ *
+ * @author Jack Mead
+ */
+public class JSMRemoteNode implements JSMStorageNode {
+
+	private InetSocketAddress address;
+	private Connection connection;
+	private JSMPermits saveWindow;
+	private int timeout;
+	private long healthInterval;
+
+	private volatile boolean healthy;
+	private volatile int databases;
+	private volatile long checkedAt;
+	private AtomicBoolean checking;
+
+	/**
+	 * @param address - address of the node's JSMServer
+	 */
+	public JSMRemoteNode(InetSocketAddress address) {
+		this.address = address;
+		this.connection = null;
+		this.saveWindow = new JSMPermits(32);
+		this.timeout = 10000;
+		this.healthInterval = 2000;
+		this.healthy = false;
+		this.databases = 0;
+		this.checkedAt = 0;
+		this.checking = new AtomicBoolean(false);
+	}
+
+	/**
+	 * @param amount - most saves sent to the node and not answered yet
+	 */
+	public void setMaxInFlight(int amount) {
+		this.saveWindow.setLimit(amount);
+	}
+
+	/**
+	 * @param timeoutms - milliseconds to wait for the answer to a read or a lookup
+	 */
+	public synchronized void setTimeout(int timeoutms) {
+		this.timeout = timeoutms;
+	}
+
+	/**
+	 * @param intervalms - milliseconds a health check is trusted for
+	 */
+	public synchronized void setHealthInterval(long intervalms) {
+		this.healthInterval = intervalms;
+	}
+
+	@Override
+	public String getName() {
+		return this.address.getHostString() + ":" + this.address.getPort();
+	}
+
+	@Override
+	public boolean isHealthy() {
+		this.checkHealth();
+		return this.healthy;
+	}
+
+	@Override
+	public boolean canAccept() {
+		return this.isHealthy() && this.databases > 0 && this.saveWindow.availablePermits() > 0;
+	}
+
+	/**
+	 * @return amount of databases of the node at the last health check.
+	 */
+	public int getDatabases() {
+		return this.databases;
+	}
+
+	@Override
+	public CompletableFuture<JSMSaveStatus> save(byte[] data, String name, JSMPriority priority) {
+		if(!this.saveWindow.tryAcquire()) {
+			return CompletableFuture.completedFuture(JSMSaveStatus.FAILED);
+		}
+		String target = path(name) + "?local=true&force=false&priority=" + priority.name().toLowerCase();
+		return this.send("PUT", target, data).handle((response, e) -> {
+			this.saveWindow.release();
+			return response != null && response.code == 201 ? JSMSaveStatus.DATABASE : JSMSaveStatus.FAILED;
+		});
+	}
+
+	@Override
+	public boolean isWrittenToDB(String name) throws IOException {
+		return this.await(this.send("HEAD", path(name) + "?local=true", null)).code == 200;
+	}
+
+	@Override
+	public byte[] read(String name) throws IOException {
+		Response response = this.await(this.send("GET", path(name) + "?local=true", null));
+		if(response.code == 404) { return null; }
+		if(response.code != 200) { throw new IOException(this.getName() + " answered " + response.code + " for " + name); }
+		return response.body;
+	}
+
+	@Override
+	public void close() {
+		Connection c;
+		synchronized(this) {
+			c = this.connection;
+			this.connection = null;
+		}
+		if(c != null) { c.close(new IOException("node closed")); }
+	}
+
+	/**
+	 * Starts a health check if the last one is older than the health interval.
+	 */
+	private void checkHealth() {
+		long interval;
+		synchronized(this) {
+			interval = this.healthInterval;
+		}
+		if(System.currentTimeMillis() - this.checkedAt < interval || !this.checking.compareAndSet(false, true)) {
+			return;
+		}
+		this.send("GET", "/.status", null).whenComplete((response, e) -> {
+			if(response != null && response.code == 200) {
+				int amount = 0;
+				for(String line : new String(response.body, StandardCharsets.US_ASCII).split("\n")) {
+					if(line.startsWith("databases=")) {
+						try { amount = Integer.parseInt(line.substring(10).trim()); } catch(NumberFormatException e1) {}
+					}
+				}
+				this.databases = amount;
+				this.healthy = true;
+			} else {
+				this.healthy = false;
+			}
+			this.checkedAt = System.currentTimeMillis();
+			this.checking.set(false);
+		});
+	}
+
+	private Response await(CompletableFuture<Response> response) throws IOException {
+		int timeout;
+		synchronized(this) {
+			timeout = this.timeout;
+		}
+		try {
+			return response.get(timeout, TimeUnit.MILLISECONDS);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) { throw (IOException) e.getCause(); }
+			throw new IOException(e.getCause());
+		} catch(TimeoutException e) {
+			throw new IOException("no answer from " + this.getName());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Queues a request on the connection, opening it first if needed.
+	 */
+	private CompletableFuture<Response> send(String method, String target, byte[] body) {
+		Request request = new Request(method, target, body);
+		Connection c;
+		synchronized(this) {
+			if(this.connection == null || !this.connection.open) {
+				try {
+					this.connection = new Connection();
+				} catch(IOException e) {
+					this.healthy = false;
+					this.checkedAt = System.currentTimeMillis();
+					request.response.completeExceptionally(e);
+					return request.response;
+				}
+			}
+			c = this.connection;
+		}
+		c.send(request);
+		return request.response;
+	}
+
+	private static String path(String name) {
+		try {
+			return "/" + URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+		} catch(UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Request {
+		private String method;
+		private String target;
+		private byte[] body;
+		private CompletableFuture<Response> response;
+
+		private Request(String method, String target, byte[] body) {
+			this.method = method;
+			this.target = target;
+			this.body = body;
+			this.response = new CompletableFuture<Response>();
+		}
+	}
+
+	private static class Response {
+		private int code;
+		private byte[] body;
+
+		private Response(int code, byte[] body) {
+			this.code = code;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * One kept alive connection, with a thread sending the queued requests
+	 * and a thread reading the answers in the order the requests were sent.
+	 */
+	private class Connection {
+		private Socket socket;
+		private OutputStream out;
+		private InputStream in;
+		private LinkedBlockingQueue<Request> outgoing;
+		private LinkedBlockingQueue<Request> waiting;
+		private volatile boolean open;
+
+		private Connection() throws IOException {
+			this.socket = new Socket();
+			this.socket.connect(address, 5000);
+			this.socket.setTcpNoDelay(true);
+			this.out = new BufferedOutputStream(this.socket.getOutputStream(), 65536);
+			this.in = new BufferedInputStream(this.socket.getInputStream(), 65536);
+			this.outgoing = new LinkedBlockingQueue<Request>();
+			this.waiting = new LinkedBlockingQueue<Request>();
+			this.open = true;
+
+			Thread sender = new Thread(this::sendLoop, "jsm-node-send-" + getName());
+			sender.setDaemon(true);
+			sender.start();
+			Thread receiver = new Thread(this::receiveLoop, "jsm-node-receive-" + getName());
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+
+		private void send(Request request) {
+			this.outgoing.add(request);
+			if(!this.open && this.outgoing.remove(request)) {
+				request.response.completeExceptionally(new IOException("connection to " + getName() + " closed"));
+			}
+		}
+
+		private void sendLoop() {
+			ArrayList<Request> batch = new ArrayList<Request>();
+			try {
+				while(this.open) {
+					batch.clear();
+					Request first = this.outgoing.poll(1, TimeUnit.SECONDS);
+					if(first == null) { continue; }
+					batch.add(first);
+					this.outgoing.drainTo(batch, 63);
+
+					for(Request request : batch) {
+						this.waiting.add(request);
+						StringBuilder header = new StringBuilder();
+						header.append(request.method).append(' ').append(request.target).append(" HTTP/1.1\r\n");
+						header.append("Host: ").append(getName()).append("\r\n");
+						header.append("Content-Length: ").append(request.body == null ? 0 : request.body.length).append("\r\n\r\n");
+						this.out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+						if(request.body != null) { this.out.write(request.body); }
+					}
+					this.out.flush();
+				}
+			} catch(InterruptedException e) {
+				this.close(new IOException("interrupted"));
+			} catch(IOException e) {
+				this.close(e);
+			}
+		}
+
+		private void receiveLoop() {
+			try {
+				while(this.open) {
+					String status = readLine(this.in);
+					if(status == null) { throw new EOFException("connection to " + getName() + " closed"); }
+					if(status.isEmpty()) { continue; }
+
+					long length = 0;
+					boolean close = false;
+					String line;
+					while((line = readLine(this.in)) != null && !line.isEmpty()) {
+						String lower = line.toLowerCase();
+						if(lower.startsWith("content-length:")) { length = Long.parseLong(line.substring(15).trim()); }
+						if(lower.startsWith("connection:") && lower.contains("close")) { close = true; }
+					}
+					if(line == null) { throw new EOFException("connection to " + getName() + " closed"); }
+
+					Request request = this.waiting.poll();
+					byte[] body = new byte[request == null || request.method.equals("HEAD") ? 0 : (int) length];
+					int read = 0;
+					while(read < body.length) {
+						int r = this.in.read(body, read, body.length - read);
+						if(r == -1) { throw new EOFException(); }
+						read += r;
+					}
+
+					String[] parts = status.split(" ");
+					int code = parts.length > 1 ? Integer.parseInt(parts[1]) : 500;
+					if(request != null) { request.response.complete(new Response(code, body)); }
+					if(close) { throw new EOFException("connection to " + getName() + " closed by the node"); }
+				}
+			} catch(IOException | NumberFormatException e) {
+				this.close(e instanceof IOException ? (IOException) e : new IOException(e));
+			}
+		}
+
+		/**
+		 * Closes the connection and fails every request not answered yet.
+		 */
+		private void close(IOException cause) {
+			this.open = false;
+			try { this.socket.close(); } catch(IOException e) {}
+			Request request;
+			while((request = this.waiting.poll()) != null) {
+				request.response.completeExceptionally(cause);
+			}
+			while((request = this.outgoing.poll()) != null) {
+				request.response.completeExceptionally(cause);
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1) {
+			if(b == '\n') {
+				byte[] bytes = line.toByteArray();
+				int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+				return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+			}
+			line.write(b);
+		}
+		return null;
+	}
+
+}
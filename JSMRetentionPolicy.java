@@ -0,0 +1,70 @@
+/**
+ * Decides which files a JSMReclaimer deletes from a database so that the drive
+ * never fills up. Any combination of limits may be set, and a limit of 0 is not
+ * enforced. The oldest files are always deleted first.
+ *
+ * @author Jack Mead
+ */
+public class JSMRetentionPolicy {
+
+	private long maxAge;
+	private long maxBytes;
+	private int keepNewest;
+	private int minStorageLeft;
+
+	/**
+	 * Creates a policy that deletes the oldest files whenever less than 10%
+	 * of the drive is left, and enforces no other limit.
+	 */
+	public JSMRetentionPolicy() {
+		this.maxAge = 0;
+		this.maxBytes = 0;
+		this.keepNewest = 0;
+		this.minStorageLeft = 10;
+	}
+
+	/**
+	 * @param agems - milliseconds after which a file is deleted
+	 */
+	public synchronized void setMaxAge(long agems) {
+		this.maxAge = agems;
+	}
+
+	public synchronized long getMaxAge() {
+		return this.maxAge;
+	}
+
+	/**
+	 * @param bytes - total amount of stored bytes above which the oldest files are deleted
+	 */
+	public synchronized void setMaxBytes(long bytes) {
+		this.maxBytes = bytes;
+	}
+
+	public synchronized long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * @param amount - amount of files, newest first, kept in the database
+	 */
+	public synchronized void setKeepNewest(int amount) {
+		this.keepNewest = amount;
+	}
+
+	public synchronized int getKeepNewest() {
+		return this.keepNewest;
+	}
+
+	/**
+	 * @param percent - percentage of storage left below which the oldest files are deleted
+	 */
+	public synchronized void setMinStorageLeft(int percent) {
+		this.minStorageLeft = percent;
+	}
+
+	public synchronized int getMinStorageLeft() {
+		return this.minStorageLeft;
+	}
+
+}
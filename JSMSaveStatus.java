@@ -0,0 +1,23 @@
+/**
+ * Final outcome of a file handed to JSMDBManager.saveAsync().
+ *
+ * @author Jack Mead
+ */
+public enum JSMSaveStatus {
+
+	/**
+	 * The file was written to one of the databases
+	 */
+	DATABASE,
+
+	/**
+	 * The file was written to the default directory
+	 */
+	DEFAULT,
+
+	/**
+	 * The file could not be queued, or every attempt to write it failed
+	 */
+	FAILED
+
+}
@@ -0,0 +1,134 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Re-reads every file of a database in the background and compares it to the
+ * checksum recorded in the database's index when the file was written. Cheap 
+ * flash drives corrupt data without reporting an error, so this is the only
+ * way to find out. Files that do not match are flagged in the database.
+ * <br />
+ * Reads are throttled to the scrub rate so that the scrubber never competes
+ * with the file writers for the drive's bandwidth.
+ *
+ * @author Jack Mead
+ */
+public class JSMScrubber extends Thread {
+
+	private JSMDatabase db;
+
+	/**
+	 * Maximum amount of bytes read per second
+	 */
+	private long scrubRate;
+
+	/**
+	 * Milliseconds to wait after checking every file before starting over
+	 */
+	private long scrubInterval;
+	private Object pause;
+
+	private volatile boolean running;
+	private volatile long bytesScrubbed;
+	private volatile long filesScrubbed;
+
+	/**
+	 * @param db - database to scrub
+	 * @param scrubRate - maximum amount of bytes read per second
+	 */
+	public JSMScrubber(JSMDatabase db, long scrubRate) {
+		this.db = db;
+		this.scrubRate = Math.max(1, scrubRate);
+		this.scrubInterval = 3600000;
+		this.pause = new Object();
+		this.running = false;
+		this.bytesScrubbed = 0;
+		this.filesScrubbed = 0;
+		this.setName("jsm-scrubber-" + db.getUSBDriveName());
+		this.setDaemon(true);
+	}
+
+	/**
+	 * Sets the wait between passes, cutting short the wait in progress.
+	 * @param intervalms - milliseconds to wait between passes over the database
+	 */
+	public void setScrubInterval(long intervalms) {
+		synchronized(this.pause) {
+			this.scrubInterval = intervalms;
+			this.pause.notifyAll();
+		}
+	}
+
+	public long getBytesScrubbed() {
+		return this.bytesScrubbed;
+	}
+
+	public long getFilesScrubbed() {
+		return this.filesScrubbed;
+	}
+
+	public void shutdown() {
+		this.running = false;
+		this.interrupt();
+	}
+
+	public void run() {
+		this.running = true;
+		while(this.running) {
+			try {
+				for(JSMIndexEntry entry : this.db.getIndexEntries()) {
+					if(!this.running) { break; }
+					if(!entry.hasChecksum()) { continue; }
+					
+					String path = this.db.getFilePath(entry.getName());
+					if(path == null) { continue; }
+					
+					try {
+						if(this.checksum(path) != entry.getChecksum()) {
+							this.db.markCorrupt(entry.getName());
+						}
+						this.filesScrubbed += 1;
+					} catch(IOException e) {
+						//moved by the root reducer or deleted, checked on the next pass
+					}
+				}
+				synchronized(this.pause) {
+					this.pause.wait(this.scrubInterval);
+				}
+			} catch(InterruptedException e) {
+				break;
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+		this.running = false;
+	}
+
+	/**
+	 * Computes the CRC32C of a file, reading it no faster than the scrub rate.
+	 */
+	private long checksum(String path) throws IOException, InterruptedException {
+		CRC32C crc = new CRC32C();
+		byte[] buffer = new byte[65536];
+		long start = System.nanoTime();
+		long read = 0;
+		try(InputStream in = new FileInputStream(path)) {
+			int length;
+			while((length = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, length);
+				read += length;
+				this.bytesScrubbed += length;
+				
+				long due = (read * 1000) / this.scrubRate;
+				long elapsed = (System.nanoTime() - start) / 1000000;
+				if(due > elapsed) {
+					TimeUnit.MILLISECONDS.sleep(due - elapsed);
+				}
+			}
+		}
+		return crc.getValue();
+	}
+
+}
@@ -0,0 +1,522 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Small HTTP/1.1 front end for a manager, so that devices on the network can store
+ * and fetch files without embedding the manager themselves.
+ * <br />
+ * <b>PUT /name</b> - saves the body as a file and answers once it is written, with
+ * 201 if it was written to a database or the default directory and 503 if it failed.
+ * Add '?force=false' to fail instead of writing to the default directory, and
+ * '?priority=urgent' or '?priority=bulk' to save it in another priority class.
+ * <br />
+ * <b>GET /name</b> - sends a file. Files stored as is are sent from the drive with
+ * FileChannel.transferTo(), which lets the kernel copy them to the socket without
+ * passing them through the JVM. Encoded files are decoded first.
+ * <br />
+ * <b>HEAD /name</b> - 200 if the file is in the database, otherwise 404.
+ * <br />
+ * Adding '?local=true' to any of the above keeps the request to the manager's own
+ * databases and default directory, leaving out its nodes. JSMRemoteNode uses it.
+ * <br />
+ * <b>GET /.status</b> - amount of databases and free writers, for health checks.
+ * <br />
+ * <b>GET /.export</b> - streams a tar archive of every stored file, sorted by name, or with
+ * '?from=ms&amp;to=ms' of the files committed in that range, sorted by commit time.
+ * <br />
+ * Connections are kept alive and requests sent back to back on one connection
+ * (pipelining) are answered in order. The saves of PUT requests that arrive together
+ * are all started before the first is answered, so they are written in parallel. Each 
+ * connection runs on its own thread, virtual if enabled, and connections over the limit 
+ * are turned away with 503.
+ *
+ * @author Jack Mead
+ */
+public class JSMServer extends Thread {
+
+	private JSMDBManager manager;
+	private InetSocketAddress address;
+	private ServerSocketChannel server;
+	private ExecutorService connections;
+	private JSMPermits connectionPermits;
+	private int maxRequestSize;
+	private int idleTimeout;
+	private boolean useVirtualThreads;
+	private volatile boolean running;
+
+	/**
+	 * @param manager - manager files are saved to and read from
+	 * @param address - address to listen on, e.g. new InetSocketAddress("127.0.0.1", 0) for any free loopback port
+	 */
+	public JSMServer(JSMDBManager manager, InetSocketAddress address) {
+		this.manager = manager;
+		this.address = address;
+		this.server = null;
+		this.connections = null;
+		this.connectionPermits = new JSMPermits(64);
+		this.maxRequestSize = 67108864;
+		this.idleTimeout = 30000;
+		this.useVirtualThreads = false;
+		this.running = false;
+		this.setName("jsm-server");
+	}
+
+	/**
+	 * @param amount - most connections open at once
+	 */
+	public void setMaxConnections(int amount) {
+		this.connectionPermits.setLimit(amount);
+	}
+
+	/**
+	 * @param bytes - largest body accepted by a PUT
+	 */
+	public synchronized void setMaxRequestSize(int bytes) {
+		this.maxRequestSize = bytes;
+	}
+
+	/**
+	 * @param timeoutms - milliseconds a connection may sit idle before it is closed
+	 */
+	public synchronized void setIdleTimeout(int timeoutms) {
+		this.idleTimeout = timeoutms;
+	}
+
+	/**
+	 * Runs each connection on a virtual thread if the JVM supports them. Must be called before start().
+	 * @param virtual - boolean for whether or not to use virtual threads
+	 */
+	public synchronized void setUseVirtualThreads(boolean virtual) {
+		this.useVirtualThreads = virtual;
+	}
+
+	/**
+	 * Binds the server socket. Called by start(), but may be called beforehand
+	 * to learn the port when listening on port 0.
+	 * @throws IOException if the address cannot be bound.
+	 */
+	public synchronized void bind() throws IOException {
+		if(this.server != null) { return; }
+		this.server = ServerSocketChannel.open();
+		this.server.bind(this.address);
+		this.connections = JSMThreads.newExecutor(this.useVirtualThreads);
+	}
+
+	/**
+	 * @return port the server listens on, or -1 if it is not bound.
+	 */
+	public synchronized int getPort() {
+		if(this.server == null) { return -1; }
+		try {
+			return ((InetSocketAddress) this.server.getLocalAddress()).getPort();
+		} catch(IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return amount of connections currently open.
+	 */
+	public int getOpenConnections() {
+		return this.connectionPermits.getInUse();
+	}
+
+	/**
+	 * Stops accepting connections and closes the server socket. Requests in
+	 * progress are finished.
+	 */
+	public void shutdown() {
+		this.running = false;
+		try {
+			synchronized(this) {
+				if(this.server != null) { this.server.close(); }
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		if(this.connections != null) { this.connections.shutdown(); }
+	}
+
+	public void run() {
+		try {
+			this.bind();
+		} catch(IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		this.running = true;
+		while(this.running) {
+			SocketChannel channel;
+			try {
+				channel = this.server.accept();
+			} catch(IOException e) {
+				if(this.running) { e.printStackTrace(); }
+				break;
+			}
+
+			if(!this.connectionPermits.tryAcquire()) {
+				try {
+					this.respond(channel, 503, "Service Unavailable", null, true);
+					channel.close();
+				} catch(IOException e) {}
+				continue;
+			}
+
+			try {
+				this.connections.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(channel);
+						} finally {
+							connectionPermits.release();
+							try { channel.close(); } catch(IOException e) {}
+						}
+					}
+				});
+			} catch(Exception e) {
+				this.connectionPermits.release();
+				try { channel.close(); } catch(IOException e1) {}
+			}
+		}
+		this.running = false;
+	}
+
+	/**
+	 * Answers the requests of one connection, in order, until it is closed.
+	 */
+	private void serve(SocketChannel channel) {
+		try {
+			int maxRequestSize, idleTimeout;
+			synchronized(this) {
+				maxRequestSize = this.maxRequestSize;
+				idleTimeout = this.idleTimeout;
+			}
+			channel.socket().setSoTimeout(idleTimeout);
+			channel.socket().setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(channel.socket().getInputStream(), 65536);
+			LinkedList<CompletableFuture<JSMSaveStatus>> puts = new LinkedList<CompletableFuture<JSMSaveStatus>>();
+
+			while(true) {
+				//answers the saves of a pipelined batch once the batch has been read
+				if(!puts.isEmpty() && in.available() == 0) {
+					this.answerPuts(channel, puts, false);
+				}
+				String requestLine = readLine(in);
+				if(requestLine == null) { return; }
+				if(requestLine.isEmpty()) { continue; }
+
+				HashMap<String, String> headers = new HashMap<String, String>();
+				String line;
+				while((line = readLine(in)) != null && !line.isEmpty()) {
+					int colon = line.indexOf(':');
+					if(colon > 0) {
+						headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+					}
+				}
+				if(line == null) { return; }
+
+				String[] parts = requestLine.split(" ");
+				boolean close = "close".equalsIgnoreCase(headers.get("connection")) ||
+						(parts.length > 2 && parts[2].equals("HTTP/1.0") && !"keep-alive".equalsIgnoreCase(headers.get("connection")));
+				if(parts.length < 2) {
+					this.respond(channel, 400, "Bad Request", null, true);
+					return;
+				}
+
+				String method = parts[0];
+				String target = parts[1];
+				String query = "";
+				if(target.indexOf('?') >= 0) {
+					query = target.substring(target.indexOf('?') + 1);
+					target = target.substring(0, target.indexOf('?'));
+				}
+				String name = decodeName(target);
+				boolean local = query.contains("local=true");
+				boolean queued = method.equals("PUT") && name != null && length(headers) <= maxRequestSize && 
+						length(headers) >= 0 && headers.get("transfer-encoding") == null;
+				if(!queued) {
+					this.answerPuts(channel, puts, false);
+				}
+
+				long length = 0;
+				try {
+					if(headers.get("content-length") != null) { length = Long.parseLong(headers.get("content-length")); }
+				} catch(NumberFormatException e) {
+					this.respond(channel, 400, "Bad Request", null, true);
+					return;
+				}
+				if(length < 0) {
+					this.respond(channel, 400, "Bad Request", null, true);
+					return;
+				}
+				if(headers.get("transfer-encoding") != null) {
+					this.respond(channel, 411, "Length Required", null, true);
+					return;
+				}
+
+				if(method.equals("PUT")) {
+					if(length > maxRequestSize) {
+						this.respond(channel, 413, "Payload Too Large", null, true);
+						return;
+					}
+					byte[] body = readBody(in, (int) length);
+					if(name == null) {
+						this.respond(channel, 400, "Bad Request", null, close);
+					} else {
+						boolean force = !query.contains("force=false");
+						JSMPriority priority = priorityOf(query);
+						puts.add(local ? this.manager.saveLocalAsync(body, name, force, priority) : 
+								this.manager.saveAsync(body, name, force, priority));
+						if(close || puts.size() >= 64) {
+							this.answerPuts(channel, puts, close);
+						}
+					}
+				} else {
+					//bodies of other methods are not used
+					skip(in, length);
+					if(method.equals("GET") && target.equals("/.export")) {
+						this.export(channel, query);
+						return;
+					} else if(method.equals("GET") && target.equals("/.status")) {
+						this.status(channel, close);
+					} else if(name == null) {
+						this.respond(channel, 400, "Bad Request", null, close);
+					} else if(method.equals("GET")) {
+						this.get(channel, name, false, local, close);
+					} else if(method.equals("HEAD")) {
+						this.get(channel, name, true, local, close);
+					} else {
+						this.respond(channel, 405, "Method Not Allowed", null, close);
+					}
+				}
+
+				if(close) { return; }
+			}
+		} catch(SocketTimeoutException | EOFException e) {
+			//idle or half sent request, the connection is closed
+		} catch(IOException e) {
+			if(this.running) { e.printStackTrace(); }
+		}
+	}
+
+	/**
+	 * Waits for the saves of the PUT requests read so far and answers them in order.
+	 * @param close - boolean for whether or not the last answer closes the connection
+	 */
+	private void answerPuts(SocketChannel channel, LinkedList<CompletableFuture<JSMSaveStatus>> puts, boolean close) throws IOException {
+		while(!puts.isEmpty()) {
+			JSMSaveStatus status;
+			try {
+				status = puts.poll().get();
+			} catch(Exception e) {
+				status = JSMSaveStatus.FAILED;
+			}
+			boolean last = close && puts.isEmpty();
+			if(status == JSMSaveStatus.FAILED) {
+				this.respond(channel, 503, "Service Unavailable", null, last);
+			} else {
+				this.respond(channel, 201, "Created", null, last);
+			}
+		}
+	}
+
+	/**
+	 * Answers with the amount of databases and free writers of the manager,
+	 * used by JSMRemoteNode to check the node's health.
+	 */
+	private void status(SocketChannel channel, boolean close) throws IOException {
+		String body = "databases=" + this.manager.getTotalDatabases() + "\n" +
+				"free=" + this.manager.getFreeWriters() + "\n";
+		this.respond(channel, 200, "OK", body.getBytes(StandardCharsets.US_ASCII), close);
+	}
+
+	private void get(SocketChannel channel, String name, boolean head, boolean local, boolean close) throws IOException {
+		String path = this.manager.getRawFilePath(name);
+		if(path != null) {
+			try(FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+				long size = file.size();
+				this.writeHeader(channel, 200, "OK", size, close);
+				if(!head) {
+					long sent = 0;
+					while(sent < size) {
+						sent += file.transferTo(sent, size - sent, channel);
+					}
+				}
+				return;
+			} catch(NoSuchFileException e) {
+				//moved by the root reducer, read it the slow way
+			}
+		}
+
+		byte[] data;
+		try {
+			data = local ? this.manager.readLocal(name) : this.manager.read(name);
+		} catch(IOException e) {
+			//unreadable, corrupt or failed its checksum, the connection is still answered
+			e.printStackTrace();
+			this.respond(channel, 500, "Internal Server Error", null, close);
+			return;
+		}
+		if(data == null) {
+			this.respond(channel, 404, "Not Found", null, close);
+		} else if(head) {
+			this.writeHeader(channel, 200, "OK", data.length, close);
+		} else {
+			this.respond(channel, 200, "OK", data, close);
+		}
+	}
+
+	/**
+	 * Streams a tar archive of every file, or of the files committed between the 'from' 
+	 * and 'to' query parameters, and closes the connection to mark its end.
+	 */
+	private void export(SocketChannel channel, String query) throws IOException {
+		long from = -1, to = -1;
+		try {
+			for(String parameter : query.split("&")) {
+				if(parameter.startsWith("from=")) { from = Long.parseLong(parameter.substring(5)); }
+				if(parameter.startsWith("to=")) { to = Long.parseLong(parameter.substring(3)); }
+			}
+		} catch(NumberFormatException e) {
+			this.respond(channel, 400, "Bad Request", null, true);
+			return;
+		}
+
+		String header = "HTTP/1.1 200 OK\r\n" +
+				"Content-Type: application/x-tar\r\n" +
+				"Connection: close\r\n" +
+				"\r\n";
+		writeFully(channel, ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+		if(from == -1 && to == -1) {
+			this.manager.exportAll(channel);
+		} else {
+			this.manager.exportRange(from == -1 ? 0 : from, to == -1 ? Long.MAX_VALUE : to, channel);
+		}
+	}
+
+	private void respond(SocketChannel channel, int code, String reason, byte[] body, boolean close) throws IOException {
+		this.writeHeader(channel, code, reason, body == null ? 0 : body.length, close);
+		if(body != null) {
+			writeFully(channel, ByteBuffer.wrap(body));
+		}
+	}
+
+	private void writeHeader(SocketChannel channel, int code, String reason, long length, boolean close) throws IOException {
+		String header = "HTTP/1.1 " + code + " " + reason + "\r\n" +
+				"Content-Length: " + length + "\r\n" +
+				(close ? "Connection: close\r\n" : "") +
+				"\r\n";
+		writeFully(channel, ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads a CRLF terminated line.
+	 * @return the line without its terminator, or null at the end of the stream.
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while((b = in.read()) != -1) {
+			if(b == '\n') {
+				byte[] bytes = line.toByteArray();
+				int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+				return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+			}
+			if(line.size() > 8192) { throw new IOException("line too long"); }
+			line.write(b);
+		}
+		return line.size() == 0 ? null : line.toString("ISO-8859-1");
+	}
+
+	private static byte[] readBody(InputStream in, int length) throws IOException {
+		byte[] body = new byte[length];
+		int read = 0;
+		while(read < length) {
+			int r = in.read(body, read, length - read);
+			if(r == -1) { throw new EOFException(); }
+			read += r;
+		}
+		return body;
+	}
+
+	private static void skip(InputStream in, long length) throws IOException {
+		while(length > 0) {
+			long skipped = in.skip(length);
+			if(skipped <= 0) {
+				if(in.read() == -1) { throw new EOFException(); }
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * @return value of the Content-Length header, 0 if there is none, or -1 if it is not a number.
+	 */
+	private static long length(HashMap<String, String> headers) {
+		try {
+			return headers.get("content-length") == null ? 0 : Long.parseLong(headers.get("content-length"));
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return priority class named by the query, NORMAL if it names none.
+	 */
+	private static JSMPriority priorityOf(String query) {
+		for(String parameter : query.split("&")) {
+			if(parameter.startsWith("priority=")) {
+				try {
+					return JSMPriority.valueOf(parameter.substring(9).toUpperCase());
+				} catch(IllegalArgumentException e) {
+					return JSMPriority.NORMAL;
+				}
+			}
+		}
+		return JSMPriority.NORMAL;
+	}
+
+	/**
+	 * Turns a request target into a file name.
+	 * @return file name, or null if the target does not name a single stored file.
+	 */
+	private static String decodeName(String target) {
+		if(!target.startsWith("/") || target.length() < 2) { return null; }
+		try {
+			String name = URLDecoder.decode(target.substring(1).replace("+", "%2B"), "UTF-8");
+			if(name.contains("/") || name.contains(":") || name.startsWith(".")) { return null; }
+			return name;
+		} catch(UnsupportedEncodingException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+}
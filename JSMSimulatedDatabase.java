@@ -0,0 +1,216 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Database on a simulated usb drive, backed by a plain directory instead of a mounted
+ * device, for load and soak testing on machines whose real drives must not be touched.
+ * The drive can be made slow, jittery, small and flaky, and can be pulled out at any time:
+ * <br />
+ * <b>bandwidth</b> - the drive transfers one chunk or file at a time, so its readers and writers share the bandwidth.
+ * <br />
+ * <b>latency</b> - each chunk written and file read waits a fixed latency plus a random jitter.
+ * <br />
+ * <b>switch penalty</b> - a chunk written anywhere but right after the chunk before it waits
+ * longer, like the garbage collection of a cheap flash controller fed interleaved writes.
+ * <br />
+ * <b>capacity</b> - a chunk that does not fit fails like a full drive, and the storage left
+ * is computed from the bytes stored, so the manager retires the drive once it fills up.
+ * <br />
+ * <b>failure rate</b> - chance that any chunk fails with an I/O error.
+ * <br />
+ * <b>removal</b> - every write after remove() fails, and the drive reports itself unmounted.
+ *
+ * @author Jack Mead
+ */
+public class JSMSimulatedDatabase extends JSMDatabase {
+
+	private long bandwidth;
+	private int latency;
+	private int jitter;
+	private int switchPenalty;
+	private long capacity;
+	private double failureRate;
+	private volatile boolean removed;
+
+	/**
+	 * Nano time until which the drive is busy with the chunks already handed to it
+	 */
+	private long busyUntil;
+	private RandomAccessFile lastFile;
+	private long lastEnd;
+	private final Object busyLock = new Object();
+
+	/**
+	 * @param path - directory backing the drive, starting with '/' and ending with '/'
+	 * @param name - name the drive is known by, in place of its /dev/ device
+	 */
+	public JSMSimulatedDatabase(String path, String name) {
+		super(path, name);
+		this.bandwidth = 0;
+		this.latency = 0;
+		this.jitter = 0;
+		this.switchPenalty = 0;
+		this.capacity = 0;
+		this.failureRate = 0;
+		this.removed = false;
+		this.busyUntil = 0;
+	}
+
+	/**
+	 * @param bytesPerSecond - bytes per second the drive writes, or 0 for as fast as the directory allows
+	 */
+	public synchronized void setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * @param latencyms - milliseconds every chunk waits before being written
+	 * @param jitterms - most milliseconds randomly added to the latency
+	 */
+	public synchronized void setLatency(int latencyms, int jitterms) {
+		this.latency = latencyms;
+		this.jitter = jitterms;
+	}
+
+	/**
+	 * @param penaltyms - milliseconds added to a chunk that does not continue the chunk written before it
+	 */
+	public synchronized void setSwitchPenalty(int penaltyms) {
+		this.switchPenalty = penaltyms;
+	}
+
+	/**
+	 * @param bytes - size of the drive, or 0 for the space of the directory
+	 */
+	public synchronized void setCapacity(long bytes) {
+		this.capacity = bytes;
+	}
+
+	/**
+	 * @param rate - chance, between 0 and 1, that a chunk fails
+	 */
+	public synchronized void setFailureRate(double rate) {
+		this.failureRate = rate;
+	}
+
+	/**
+	 * Pulls the drive out. Writes in progress fail on their next chunk.
+	 */
+	public void remove() {
+		this.removed = true;
+	}
+
+	public boolean isRemoved() {
+		return this.removed;
+	}
+
+	@Override
+	protected boolean mount() {
+		if(this.removed) { return false; }
+		try {
+			Files.createDirectories(Paths.get(this.getUSBDrivePath()));
+			return true;
+		} catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	protected boolean isMounted() {
+		return !this.removed;
+	}
+
+	@Override
+	protected boolean unmount() {
+		return true;
+	}
+
+	@Override
+	public synchronized int getStorageLeft() {
+		if(this.removed) { return 0; }
+		if(this.capacity <= 0) {
+			File dir = new File(this.getUSBDrivePath());
+			return dir.getTotalSpace() == 0 ? 0 : (int) (100 * dir.getUsableSpace() / dir.getTotalSpace());
+		}
+		return (int) Math.max(0, 100 * (this.capacity - this.getStoredBytes()) / this.capacity);
+	}
+
+	/**
+	 * Waits for the drive to transfer the bytes and any penalty, after the latency and the 
+	 * jitter and behind the bytes of every other read and write it was handed first.
+	 */
+	private void transfer(int length, int penaltyms) throws IOException {
+		long bandwidth;
+		int latency, jitter;
+		synchronized(this) {
+			bandwidth = this.bandwidth;
+			latency = this.latency;
+			jitter = this.jitter;
+		}
+		long wait = TimeUnit.MILLISECONDS.toNanos(latency + (jitter > 0 ? ThreadLocalRandom.current().nextInt(jitter + 1) : 0));
+		if(bandwidth > 0 || penaltyms > 0) {
+			long transfer = (bandwidth > 0 ? length * 1000000000L / bandwidth : 0) + TimeUnit.MILLISECONDS.toNanos(penaltyms);
+			long now = System.nanoTime();
+			long done;
+			synchronized(this.busyLock) {
+				done = Math.max(now, this.busyUntil) + transfer;
+				this.busyUntil = done;
+			}
+			wait += done - now;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("transfer interrupted");
+		}
+	}
+
+	@Override
+	protected byte[] readFile(String path) throws IOException {
+		if(this.removed) { throw new IOException(this.getUSBDriveName() + " was removed"); }
+		byte[] data = super.readFile(path);
+		this.transfer(data.length, 0);
+		return data;
+	}
+
+	@Override
+	protected void writeChunk(RandomAccessFile r, byte[] data, int offset, int length) throws IOException {
+		long capacity;
+		double failureRate;
+		synchronized(this) {
+			capacity = this.capacity;
+			failureRate = this.failureRate;
+		}
+		if(this.removed) { throw new IOException(this.getUSBDriveName() + " was removed"); }
+		if(capacity > 0 && this.getStoredBytes() + offset + length > capacity) {
+			throw new IOException("No space left on " + this.getUSBDriveName());
+		}
+
+		int penalty;
+		synchronized(this) {
+			penalty = this.switchPenalty;
+		}
+		boolean sequential;
+		synchronized(this.busyLock) {
+			sequential = r == this.lastFile && offset == this.lastEnd;
+			this.lastFile = r;
+			this.lastEnd = offset + length;
+		}
+		this.transfer(length, sequential ? 0 : penalty);
+
+		if(this.removed) { throw new IOException(this.getUSBDriveName() + " was removed"); }
+		if(failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+			throw new IOException("simulated write error on " + this.getUSBDriveName());
+		}
+		super.writeChunk(r, data, offset, length);
+	}
+
+}
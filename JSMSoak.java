@@ -0,0 +1,651 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Load generator that replays a timelapse workload against a JSMDBManager running on
+ * simulated drives, so changes to the ingest path can be soak tested without touching
+ * the usb drives of a production unit. The workload is either synthetic, a number of
+ * producers saving files of a given size at a given rate, or a trace recorded from the
+ * files of an existing database. The drives are JSMSimulatedDatabases in a temporary
+ * directory, and can be given a bandwidth, latency jitter, a capacity to fill up, a
+ * failure rate, and times at which they are pulled out. The files of a producer are
+ * either the same noise over and over, with payload=csv the same sensor readings over and
+ * over, or with change=fraction, each one its previous file
+ * with a region of that fraction of it rewritten and a few bytes inserted, like the frames
+ * of a mostly still scene, to measure deduplication. With reads=rate, a reader reads back
+ * files that were saved to the databases at that rate, to measure reads and their checksums.
+ * <br />
+ * A line is printed every report interval, and a summary at the end with the sustained
+ * throughput, the save latency percentiles, the ratio of files spilled to the default
+ * directory and the heap high water mark. A save's latency is measured from the time
+ * its file was due, not from the time the producer got to it, so a producer held up by
+ * a blocking save does not hide the delay of the files behind it.
+ * <br />
+ * Options are passed as key=value, e.g.
+ * <br />
+ * java JSMSoak drives=4 bandwidth=8m jitter=20 capacity=2g remove=60,90 producers=4 rate=10 size=2m duration=300
+ * <br />
+ * java JSMSoak record=/media/db1/ trace=timelapse.csv
+ * <br />
+ * java JSMSoak trace=timelapse.csv speedup=60 drives=2 bandwidth=4m
+ * <br />
+ * java JSMSoak mode=sequential penalty=5 writers=4 drives=2 bandwidth=8m rate=20 size=1m
+ * <br />
+ * java JSMSoak dedup=true change=0.05 drives=2 bandwidth=8m rate=20 size=1m
+ * <br />
+ * java JSMSoak durability=group_commit drives=2 bandwidth=8m rate=40 size=256k
+ * <br />
+ * java JSMSoak codec=deflate payload=csv drives=2 bandwidth=8m rate=40 size=1m
+ * <br />
+ * java JSMSoak verify=true reads=20 scrub=1m drives=2 bandwidth=8m rate=20 size=1m
+ *
+ * @author Jack Mead
+ */
+public class JSMSoak {
+
+	private HashMap<String, String> options;
+	private JSMDBManager manager;
+	private LinkedList<JSMSimulatedDatabase> drives;
+	private Path root;
+	private Stats stats;
+	private Stats reads;
+	private ArrayList<String> saved;
+	private AtomicInteger outstanding;
+	private MemoryMXBean memory;
+	private volatile long heapPeak;
+	private byte[] noise;
+
+	/**
+	 * @param options - options by key, see the class description
+	 */
+	public JSMSoak(HashMap<String, String> options) {
+		this.options = options;
+		this.drives = new LinkedList<JSMSimulatedDatabase>();
+		this.stats = new Stats();
+		this.reads = new Stats();
+		this.saved = new ArrayList<String>();
+		this.outstanding = new AtomicInteger(0);
+		this.memory = ManagementFactory.getMemoryMXBean();
+		this.heapPeak = 0;
+		if(options.getOrDefault("payload", "noise").equalsIgnoreCase("csv")) {
+			this.noise = readings(1048576);
+		} else {
+			this.noise = new byte[1048576];
+			new Random(1).nextBytes(this.noise);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> options = new HashMap<String, String>();
+		for(String arg : args) {
+			int equals = arg.indexOf('=');
+			if(equals <= 0) {
+				System.err.println("Options are passed as key=value, unknown option " + arg);
+				System.exit(1);
+			}
+			options.put(arg.substring(0, equals).toLowerCase(), arg.substring(equals + 1));
+		}
+
+		if(options.containsKey("record")) {
+			int files = record(Paths.get(options.get("record")), Paths.get(options.getOrDefault("trace", "trace.csv")));
+			System.out.println("Recorded " + files + " files");
+			return;
+		}
+		new JSMSoak(options).run();
+	}
+
+	/**
+	 * Makes sensor readings in CSV, one timestamped row per reading, which compress
+	 * about as well as the readings a unit logs.
+	 * @param length - length of the readings in bytes
+	 */
+	private static byte[] readings(int length) {
+		Random random = new Random(1);
+		StringBuilder csv = new StringBuilder(length + 64);
+		long time = 1500000000000L;
+		while(csv.length() < length) {
+			time += 1000 + random.nextInt(20);
+			csv.append(time).append(",sensor").append(random.nextInt(8)).append(',')
+				.append(String.format("%.2f", 20 + 5 * random.nextGaussian())).append(',')
+				.append(String.format("%.1f", 40 + 10 * random.nextGaussian())).append('\n');
+		}
+		return Arrays.copyOf(csv.toString().getBytes(), length);
+	}
+
+	/**
+	 * Writes a trace of the files in a directory, such as the root of a database, in
+	 * the order they were last modified. Each line is the milliseconds since the first
+	 * file and the size of the file in bytes.
+	 * @param dir - directory to walk
+	 * @param trace - file to write the trace to
+	 * @return amount of files in the trace.
+	 */
+	public static int record(Path dir, Path trace) throws IOException {
+		List<File> files;
+		try(Stream<Path> walk = Files.walk(dir)) {
+			files = walk.map(Path::toFile)
+					.filter(f -> f.isFile() && !f.getName().startsWith("."))
+					.sorted(Comparator.comparingLong(File::lastModified))
+					.collect(Collectors.toList());
+		}
+		try(PrintWriter out = new PrintWriter(trace.toFile())) {
+			out.println("#offsetms,bytes");
+			long first = files.isEmpty() ? 0 : files.get(0).lastModified();
+			for(File f : files) {
+				out.println((f.lastModified() - first) + "," + f.length());
+			}
+		}
+		return files.size();
+	}
+
+	/**
+	 * Sets up the manager and its drives, runs the workload, waits for the saves
+	 * still in flight and prints the summary.
+	 */
+	public void run() throws Exception {
+		this.root = this.options.containsKey("dir") ? Files.createDirectories(Paths.get(this.options.get("dir"))) :
+			Files.createTempDirectory("jsmsoak");
+		this.setUp();
+
+		int producers = this.intOption("producers", 4);
+		List<List<long[]>> trace = this.options.containsKey("trace") ? this.loadTrace(producers) : null;
+		long duration = TimeUnit.SECONDS.toNanos(this.intOption("duration", 60));
+		long start = System.nanoTime();
+
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int p = 0; p < producers; p++) {
+			int producer = p;
+			Thread t = new Thread(() -> this.produce(producer, trace == null ? null : trace.get(producer), start, start + duration),
+					"jsm-soak-producer-" + p);
+			t.start();
+			threads.add(t);
+		}
+
+		if(this.options.containsKey("reads")) {
+			Thread t = new Thread(() -> this.readBack(start + duration), "jsm-soak-reader");
+			t.start();
+			threads.add(t);
+		}
+
+		Thread monitor = new Thread(() -> this.monitor(start), "jsm-soak-monitor");
+		monitor.setDaemon(true);
+		monitor.start();
+
+		for(Thread t : threads) {
+			t.join();
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.intOption("drain", 120));
+		while(this.outstanding.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		long elapsed = Math.max(1, this.stats.getLastCompletion() - start);
+		monitor.interrupt();
+		monitor.join();
+
+		this.printSummary(elapsed);
+		this.manager.uninit();
+		if(!this.options.containsKey("dir") && !Boolean.parseBoolean(this.options.getOrDefault("keep", "false"))) {
+			delete(this.root);
+		}
+	}
+
+	/**
+	 * Creates the manager in the root directory and attaches the simulated drives.
+	 */
+	private void setUp() throws Exception {
+		String dir = this.root.toString() + "/";
+		this.manager = new JSMDBManager();
+		this.manager.setMaxDatabases(0);
+		this.manager.setRootDBDirectory(dir);
+		this.manager.setInfoFileDirectory(dir);
+		this.manager.setLinuxScriptsDirectory(dir);
+		this.manager.setMaxDatabaseWriters(this.intOption("writers", 2));
+		this.manager.setDatabaseWriteSpeed(this.intOption("speed", 0));
+		this.manager.setWriteMode(JSMWriteMode.valueOf(this.options.getOrDefault("mode", "concurrent").toUpperCase()));
+		this.manager.setDeduplication(Boolean.parseBoolean(this.options.getOrDefault("dedup", "false")));
+		this.manager.setDurability(JSMDurability.valueOf(this.options.getOrDefault("durability", "none").toUpperCase()));
+		if(this.options.getOrDefault("codec", "none").equalsIgnoreCase("deflate")) {
+			this.manager.setCodec(new JSMDeflateCodec());
+		}
+		this.manager.setVerifyReads(Boolean.parseBoolean(this.options.getOrDefault("verify", "false")));
+		this.manager.setScrubRate(parseSize(this.options.getOrDefault("scrub", "0")));
+		if(this.options.containsKey("budget")) {
+			this.manager.setMemoryBudget(parseSize(this.options.get("budget")),
+					JSMAdmission.valueOf(this.options.getOrDefault("policy", "block").toUpperCase()));
+		}
+		this.manager.init();
+
+		int count = this.intOption("drives", 4);
+		for(int i = 1; i <= count; i++) {
+			JSMSimulatedDatabase db = new JSMSimulatedDatabase(dir + "sim" + i + "/", "sim" + i);
+			db.setBandwidth(parseSize(this.options.getOrDefault("bandwidth", "0")));
+			db.setLatency(this.intOption("latency", 0), this.intOption("jitter", 0));
+			db.setSwitchPenalty(this.intOption("penalty", 0));
+			db.setCapacity(parseSize(this.options.getOrDefault("capacity", "0")));
+			db.setFailureRate(Double.parseDouble(this.options.getOrDefault("failures", "0")));
+			this.drives.add(db);
+			this.manager.addDatabase(db);
+		}
+		long deadline = System.currentTimeMillis() + 30000;
+		while(this.manager.getTotalDatabases() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		for(JSMSimulatedDatabase db : this.drives) {
+			if(db.getScrubber() != null) {
+				db.getScrubber().setScrubInterval(this.intOption("scrubinterval", 1000));
+			}
+		}
+	}
+
+	/**
+	 * Saves the files of one producer as they come due.
+	 * @param producer - index of the producer
+	 * @param trace - offsets and sizes of the files to save, or null for a synthetic workload
+	 * @param start - nano time the workload started
+	 * @param end - nano time after which no more files are saved
+	 */
+	private void produce(int producer, List<long[]> trace, long start, long end) {
+		boolean force = Boolean.parseBoolean(this.options.getOrDefault("force", "true"));
+		double speedup = Double.parseDouble(this.options.getOrDefault("speedup", "1"));
+		double rate = Double.parseDouble(this.options.getOrDefault("rate", "10")) / this.intOption("producers", 4);
+		boolean poisson = this.options.getOrDefault("arrivals", "fixed").equalsIgnoreCase("poisson");
+		long size = parseSize(this.options.getOrDefault("size", "1m"));
+		double sizeJitter = Double.parseDouble(this.options.getOrDefault("sizejitter", "0"));
+		double change = Double.parseDouble(this.options.getOrDefault("change", "-1"));
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		byte[] previous = null;
+
+		long due = start;
+		for(int n = 0; ; n++) {
+			int length;
+			if(trace != null) {
+				if(n >= trace.size()) { return; }
+				due = start + (long) (TimeUnit.MILLISECONDS.toNanos(trace.get(n)[0]) / speedup);
+				length = (int) trace.get(n)[1];
+			} else {
+				double gap = poisson ? -Math.log(1 - random.nextDouble()) / rate : 1 / rate;
+				due += n == 0 ? (long) (random.nextDouble() * 1e9 / rate) : (long) (gap * 1e9);
+				length = (int) Math.max(1, size * (1 + sizeJitter * (2 * random.nextDouble() - 1)));
+			}
+			if(due >= end) { return; }
+
+			long wait = due - System.nanoTime();
+			if(wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+
+			byte[] data;
+			if(change >= 0) {
+				data = nextFrame(previous, length, change, random);
+				previous = data;
+			} else {
+				data = new byte[length];
+				for(int offset = 0; offset < length; offset += this.noise.length) {
+					System.arraycopy(this.noise, 0, data, offset, Math.min(this.noise.length, length - offset));
+				}
+				data[0] = (byte) n;
+			}
+
+			long scheduled = due;
+			this.outstanding.incrementAndGet();
+			this.stats.offer(length);
+			String name = String.format("p%02d-%08d.jpg", producer, n);
+			CompletableFuture<JSMSaveStatus> save = this.manager.saveAsync(data, name, force);
+			save.whenComplete((status, e) -> {
+				if(status == JSMSaveStatus.DATABASE) {
+					synchronized(this.saved) { this.saved.add(name); }
+				}
+				this.stats.complete(e == null ? status : JSMSaveStatus.FAILED, length, System.nanoTime() - scheduled);
+				this.outstanding.decrementAndGet();
+			});
+		}
+	}
+
+	/**
+	 * Reads back random files that were saved to the databases, at the read rate.
+	 * @param end - nano time after which no more files are read
+	 */
+	private void readBack(long end) {
+		double rate = Double.parseDouble(this.options.get("reads"));
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long due = System.nanoTime();
+		while(due < end) {
+			due += (long) (1e9 / rate);
+			long wait = due - System.nanoTime();
+			if(wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch(InterruptedException e) {
+					return;
+				}
+			}
+			
+			String name;
+			synchronized(this.saved) {
+				if(this.saved.isEmpty()) { continue; }
+				name = this.saved.get(random.nextInt(this.saved.size()));
+			}
+			long start = System.nanoTime();
+			try {
+				byte[] data = this.manager.read(name);
+				this.reads.complete(data == null ? JSMSaveStatus.FAILED : JSMSaveStatus.DATABASE, 
+						data == null ? 0 : data.length, System.nanoTime() - start);
+			} catch(IOException e) {
+				this.reads.complete(JSMSaveStatus.FAILED, 0, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Makes the next file of a producer from its previous one: the previous file cut or grown
+	 * to the length, with one region of a fraction of it rewritten, like an object moving
+	 * through a still scene, and a few random bytes inserted at another place, which shifts
+	 * everything after them.
+	 * @param previous - previous file of the producer, or null for the first one
+	 * @param length - length of the file
+	 * @param change - fraction of the file rewritten
+	 * @param random - source of the new bytes and places
+	 */
+	private static byte[] nextFrame(byte[] previous, int length, double change, ThreadLocalRandom random) {
+		if(previous == null) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			return data;
+		}
+		
+		byte[] inserted = new byte[1 + random.nextInt(64)];
+		random.nextBytes(inserted);
+		int at = random.nextInt(previous.length + 1);
+		byte[] data = new byte[length];
+		System.arraycopy(previous, 0, data, 0, Math.min(at, length));
+		if(at < length) {
+			System.arraycopy(inserted, 0, data, at, Math.min(inserted.length, length - at));
+		}
+		int from = at + inserted.length;
+		if(from < length) {
+			System.arraycopy(previous, at, data, from, Math.min(previous.length - at, length - from));
+		}
+		int grown = previous.length + inserted.length;
+		if(grown < length) {
+			byte[] tail = new byte[length - grown];
+			random.nextBytes(tail);
+			System.arraycopy(tail, 0, data, grown, tail.length);
+		}
+		
+		byte[] region = new byte[(int) Math.min(length, change * length)];
+		random.nextBytes(region);
+		System.arraycopy(region, 0, data, random.nextInt(length - region.length + 1), region.length);
+		return data;
+	}
+	
+	/**
+	 * Samples the heap, removes the drives that were pulled or filled up, and prints
+	 * a line every report interval.
+	 */
+	private void monitor(long start) {
+		long interval = TimeUnit.SECONDS.toNanos(this.intOption("interval", 10));
+		long nextReport = start + interval;
+		long nextScan = start;
+		String[] removals = this.options.getOrDefault("remove", "").split(",");
+		int removed = 0;
+		try {
+			while(true) {
+				long used = this.memory.getHeapMemoryUsage().getUsed();
+				if(used > this.heapPeak) { this.heapPeak = used; }
+
+				long now = System.nanoTime();
+				while(removed < removals.length && !removals[removed].isEmpty() && removed < this.drives.size() &&
+						now - start >= TimeUnit.SECONDS.toNanos(Long.parseLong(removals[removed].trim()))) {
+					JSMSimulatedDatabase db = this.drives.get(removed++);
+					db.remove();
+					this.manager.deviceDetached(db.getUSBDriveName());
+					System.out.println(String.format("%6ds  pulled %s", TimeUnit.NANOSECONDS.toSeconds(now - start), db.getUSBDriveName()));
+				}
+				if(now >= nextScan) {
+					this.manager.removeInvalidDatabases();
+					nextScan = now + TimeUnit.SECONDS.toNanos(1);
+				}
+				if(now >= nextReport) {
+					this.printInterval(now - start, interval);
+					nextReport += interval;
+				}
+				Thread.sleep(100);
+			}
+		} catch(InterruptedException e) {}
+	}
+
+	private void printInterval(long elapsed, long interval) {
+		Stats.Interval i = this.stats.nextInterval(interval);
+		System.out.println(String.format("%6ds  %6d files  %8.2f MB/s  p99 %7.1f ms  spilled %5.1f%%  failed %4d  heap %6.1f MB  budget %6.1f MB  drives %d",
+				TimeUnit.NANOSECONDS.toSeconds(elapsed), i.files, i.bytes / 1048576.0 / (interval / 1e9), i.p99 / 1e6,
+				100 * i.spillRatio, i.failed, this.memory.getHeapMemoryUsage().getUsed() / 1048576.0,
+				this.manager.getMemoryBudget().getUsed() / 1048576.0, this.manager.getTotalDatabases()));
+	}
+
+	private void printSummary(long elapsed) {
+		Stats s = this.stats;
+		long[] latencies = s.getLatencies();
+		System.out.println();
+		System.out.println(String.format("files offered      %d (%.1f MB)", s.offered, s.offeredBytes / 1048576.0));
+		System.out.println(String.format("files saved        %d to databases, %d to default, %d failed, %d unfinished",
+				s.toDatabase, s.toDefault, s.failed, this.outstanding.get()));
+		double sustained = s.savedBytes / (elapsed / 1e9);
+		System.out.println(String.format("throughput         %.2f MB/s sustained, %.2f MB/s lowest interval, %.1f files/s",
+				sustained / 1048576.0, (s.lowestInterval < 0 ? sustained : s.lowestInterval) / 1048576.0,
+				(s.toDatabase + s.toDefault) / (elapsed / 1e9)));
+		System.out.println(String.format("save latency       p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms",
+				percentile(latencies, 0.5) / 1e6, percentile(latencies, 0.99) / 1e6,
+				percentile(latencies, 0.999) / 1e6, percentile(latencies, 1) / 1e6));
+		System.out.println(String.format("spilled to default %.2f%%", 100.0 * s.toDefault / Math.max(1, s.toDatabase + s.toDefault + s.failed)));
+		System.out.println(String.format("heap high water    %.1f MB of %.1f MB", this.heapPeak / 1048576.0,
+				this.memory.getHeapMemoryUsage().getMax() / 1048576.0));
+		System.out.println(String.format("budget high water  %.1f MB", this.manager.getMemoryBudget().getPeak() / 1048576.0));
+		long checksumTime = 0, checksummed = 0, scrubbed = 0, corrupt = 0;
+		for(JSMSimulatedDatabase db : this.drives) {
+			checksumTime += db.getChecksumTime();
+			checksummed += db.getChecksumBytes();
+			scrubbed += db.getScrubber() == null ? 0 : db.getScrubber().getBytesScrubbed();
+			corrupt += db.getCorruptFiles().size();
+		}
+		System.out.println(String.format("checksums          %.1f MB in %.1f ms, %.0f MB/s, %.1f MB scrubbed, %d corrupt",
+				checksummed / 1048576.0, checksumTime / 1e6, checksumTime == 0 ? 0 : checksummed / 1048576.0 / (checksumTime / 1e9),
+				scrubbed / 1048576.0, corrupt));
+		if(this.options.containsKey("reads")) {
+			long[] reads = this.reads.getLatencies();
+			System.out.println(String.format("reads              %d read, %d failed, p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+					this.reads.toDatabase, this.reads.failed, percentile(reads, 0.5) / 1e6,
+					percentile(reads, 0.99) / 1e6, percentile(reads, 1) / 1e6));
+		}
+		if(Boolean.parseBoolean(this.options.getOrDefault("dedup", "false"))) {
+			long files = 0, chunks = 0;
+			int count = 0;
+			for(JSMSimulatedDatabase db : this.drives) {
+				JSMChunkStore store = db.getChunkStore();
+				files += store.getFileBytes();
+				chunks += store.getStoredBytes();
+				count += store.getChunks();
+			}
+			System.out.println(String.format("deduplicated       %.1f MB of files in %.1f MB of chunks, %.1f%% saved, %d chunks",
+					files / 1048576.0, chunks / 1048576.0, files == 0 ? 0 : 100.0 * (files - chunks) / files, count));
+		}
+	}
+
+	/**
+	 * Reads the trace file and deals its files out to the producers, by the producer
+	 * column when there is one and round robin otherwise.
+	 * @return offset in milliseconds and size of each file, by producer.
+	 */
+	private List<List<long[]>> loadTrace(int producers) throws IOException {
+		ArrayList<List<long[]>> trace = new ArrayList<List<long[]>>();
+		for(int p = 0; p < producers; p++) {
+			trace.add(new ArrayList<long[]>());
+		}
+		try(BufferedReader in = new BufferedReader(new FileReader(this.options.get("trace")))) {
+			String line;
+			int n = 0;
+			while((line = in.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) { continue; }
+				String[] parts = line.split(",");
+				int producer = parts.length > 2 ? Integer.parseInt(parts[2].trim()) % producers : n % producers;
+				trace.get(producer).add(new long[] { Long.parseLong(parts[0].trim()), Long.parseLong(parts[1].trim()) });
+				n++;
+			}
+		}
+		return trace;
+	}
+
+	private int intOption(String key, int value) {
+		return this.options.containsKey(key) ? Integer.parseInt(this.options.get(key)) : value;
+	}
+
+	/**
+	 * @param size - amount of bytes, with an optional k, m or g suffix
+	 */
+	private static long parseSize(String size) {
+		size = size.trim().toLowerCase();
+		long unit = 1;
+		if(size.endsWith("k")) { unit = 1024; }
+		if(size.endsWith("m")) { unit = 1048576; }
+		if(size.endsWith("g")) { unit = 1073741824; }
+		if(unit > 1) { size = size.substring(0, size.length() - 1); }
+		return (long) (Double.parseDouble(size) * unit);
+	}
+
+	/**
+	 * @param sorted - values in ascending order
+	 * @param fraction - between 0 and 1
+	 */
+	private static long percentile(long[] sorted, double fraction) {
+		if(sorted.length == 0) { return 0; }
+		int rank = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+	}
+
+	private static void delete(Path dir) {
+		try(Stream<Path> walk = Files.walk(dir)) {
+			walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Counts of the saves, overall and since the last report.
+	 */
+	private static class Stats {
+		private long offered;
+		private long offeredBytes;
+		private long toDatabase;
+		private long toDefault;
+		private long failed;
+		private long savedBytes;
+		private long lastCompletion;
+		private long lowestInterval;
+		private long[] latencies;
+		private int count;
+
+		private int intervalStart;
+		private long intervalBytes;
+		private long intervalDefault;
+		private long intervalFailed;
+
+		private Stats() {
+			this.latencies = new long[65536];
+			this.count = 0;
+			this.lowestInterval = -1;
+		}
+
+		private synchronized void offer(int length) {
+			this.offered++;
+			this.offeredBytes += length;
+		}
+
+		private synchronized void complete(JSMSaveStatus status, int length, long nanos) {
+			if(this.count == this.latencies.length) {
+				this.latencies = Arrays.copyOf(this.latencies, this.count * 2);
+			}
+			this.latencies[this.count++] = nanos;
+			this.lastCompletion = System.nanoTime();
+			if(status == JSMSaveStatus.FAILED) {
+				this.failed++;
+				this.intervalFailed++;
+				return;
+			}
+			if(status == JSMSaveStatus.DEFAULT) {
+				this.toDefault++;
+				this.intervalDefault++;
+			} else {
+				this.toDatabase++;
+			}
+			this.savedBytes += length;
+			this.intervalBytes += length;
+		}
+
+		private synchronized long getLastCompletion() {
+			return this.lastCompletion;
+		}
+
+		private synchronized long[] getLatencies() {
+			long[] sorted = Arrays.copyOf(this.latencies, this.count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		/**
+		 * Closes the current report interval.
+		 */
+		private synchronized Interval nextInterval(long nanos) {
+			Interval i = new Interval();
+			long[] window = Arrays.copyOfRange(this.latencies, this.intervalStart, this.count);
+			Arrays.sort(window);
+			i.files = window.length;
+			i.bytes = this.intervalBytes;
+			i.p99 = percentile(window, 0.99);
+			i.failed = this.intervalFailed;
+			i.spillRatio = window.length == 0 ? 0 : (double) this.intervalDefault / window.length;
+
+			long perSecond = (long) (this.intervalBytes / (nanos / 1e9));
+			if(this.lowestInterval == -1 || perSecond < this.lowestInterval) { this.lowestInterval = perSecond; }
+			this.intervalStart = this.count;
+			this.intervalBytes = 0;
+			this.intervalDefault = 0;
+			this.intervalFailed = 0;
+			return i;
+		}
+
+		private static class Interval {
+			private long files;
+			private long bytes;
+			private long p99;
+			private long failed;
+			private double spillRatio;
+		}
+	}
+
+}
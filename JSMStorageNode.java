@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Another manager a JSMDBManager can place files on and read them back from, so that
+ * several machines, each with its own drives, act as one database. The manager only
+ * sends a node files its own drives have no free writer for, so adding nodes adds 
+ * their drives' bandwidth once the local drives are busy.
+ * <br />
+ * A node only stores files on its own manager's drives and never passes them on to its
+ * own nodes, so managers may list each other without files going around in circles.
+ *
+ * @author Jack Mead
+ */
+public interface JSMStorageNode {
+
+	/**
+	 * @return name of the node for logging, e.g. its address.
+	 */
+	public String getName();
+
+	/**
+	 * @return boolean indicating if the node answered its last health check.
+	 * Cached, so it is cheap to call on every save.
+	 */
+	public boolean isHealthy();
+
+	/**
+	 * @return boolean indicating if the node is healthy, has a database to write to,
+	 * and has room for another file in flight.
+	 */
+	public boolean canAccept();
+
+	/**
+	 * Saves a file to the node's databases, never to its default directory.
+	 * @param data - raw data of file
+	 * @param name - name of the file
+	 * @param priority - priority class of the file
+	 * @return future completed with DATABASE once the file is written, or FAILED.
+	 */
+	public CompletableFuture<JSMSaveStatus> save(byte[] data, String name, JSMPriority priority);
+
+	/**
+	 * @param name - name of the file
+	 * @return boolean indicating if the node holds the file.
+	 * @throws IOException if the node could not be asked.
+	 */
+	public boolean isWrittenToDB(String name) throws IOException;
+
+	/**
+	 * @param name - name of the file
+	 * @return raw file data, or null if the node does not hold the file.
+	 * @throws IOException if the node could not be asked or the file could not be read.
+	 */
+	public byte[] read(String name) throws IOException;
+
+	/**
+	 * Closes any connection to the node. Saves in flight fail.
+	 */
+	public void close();
+
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes files to a channel as a POSIX ustar archive, readable by any tar. Names
+ * longer than the 100 bytes a ustar header holds are written in a pax extended
+ * header in front of the file.
+ *
+ * @author Jack Mead
+ */
+public class JSMTarWriter {
+
+	private static final int BLOCK = 512;
+
+	private WritableByteChannel channel;
+	private long files;
+	private long bytes;
+
+	/**
+	 * @param channel - channel the archive is written to, left open by finish()
+	 */
+	public JSMTarWriter(WritableByteChannel channel) {
+		this.channel = channel;
+		this.files = 0;
+		this.bytes = 0;
+	}
+
+	/**
+	 * Writes a file to the archive.
+	 * @param name - file name
+	 * @param time - last modified time in milliseconds since the epoch
+	 * @param data - contents of the file
+	 * @throws IOException if the channel could not be written to.
+	 */
+	public void write(String name, long time, byte[] data) throws IOException {
+		byte[] path = name.getBytes(StandardCharsets.UTF_8);
+		if(path.length > 100) {
+			byte[] record = paxRecord("path", name);
+			this.writeHeader("PaxHeaders/" + name.hashCode(), time, record.length, 'x');
+			this.writePadded(record);
+		}
+		this.writeHeader(name, time, data.length, '0');
+		this.writePadded(data);
+		this.files++;
+		this.bytes += data.length;
+	}
+
+	/**
+	 * Ends the archive with two empty blocks.
+	 * @throws IOException if the channel could not be written to.
+	 */
+	public void finish() throws IOException {
+		this.writeFully(ByteBuffer.allocate(BLOCK * 2));
+	}
+
+	/**
+	 * @return amount of files written.
+	 */
+	public long getFiles() {
+		return this.files;
+	}
+
+	/**
+	 * @return amount of file bytes written, not counting headers and padding.
+	 */
+	public long getBytes() {
+		return this.bytes;
+	}
+
+	private void writeHeader(String name, long time, long size, char type) throws IOException {
+		byte[] header = new byte[BLOCK];
+		byte[] path = name.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(path, 0, header, 0, Math.min(100, path.length));
+		octal(header, 100, 8, 0644);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		octal(header, 124, 12, size);
+		octal(header, 136, 12, time / 1000);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+		header[263] = '0';
+		header[264] = '0';
+
+		//checksum is taken with its own field set to spaces
+		for(int i = 148; i < 156; i++) { header[i] = ' '; }
+		long checksum = 0;
+		for(byte b : header) { checksum += b & 0xff; }
+		octal(header, 148, 7, checksum);
+		header[155] = ' ';
+
+		this.writeFully(ByteBuffer.wrap(header));
+	}
+
+	private void writePadded(byte[] data) throws IOException {
+		this.writeFully(ByteBuffer.wrap(data));
+		int padding = (BLOCK - data.length % BLOCK) % BLOCK;
+		if(padding > 0) {
+			this.writeFully(ByteBuffer.allocate(padding));
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Writes a number as zero padded octal digits followed by a NUL.
+	 */
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		int pad = length - 1 - digits.length();
+		for(int i = 0; i < length - 1; i++) {
+			header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+		}
+		header[offset + length - 1] = 0;
+	}
+
+	/**
+	 * Builds a pax record, 'length key=value\n', whose length counts its own digits.
+	 */
+	private static byte[] paxRecord(String key, String value) {
+		int body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+		int length = body + String.valueOf(body).length();
+		if(String.valueOf(length).length() > String.valueOf(body).length()) { length++; }
+		return (length + " " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,58 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executors used by the databases. Virtual threads are used when the
+ * running JVM provides them (Java 21 or newer), otherwise a cached pool of platform
+ * threads is used, which is what the databases have always used.
+ *
+ * @author Jack Mead
+ */
+public class JSMThreads {
+
+	private static final Method newVirtualThreadPerTaskExecutor = findVirtualThreadFactory();
+
+	private JSMThreads() {}
+
+	/**
+	 * @return boolean indicating if the running JVM supports virtual threads.
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return newVirtualThreadPerTaskExecutor != null;
+	}
+
+	/**
+	 * Creates an executor that runs each task on its own virtual thread. A virtual thread
+	 * that blocks on I/O or sleeps gives up its carrier thread, so thousands of them cost 
+	 * about as much memory as their stacks actually use.
+	 * @return virtual thread executor, or a cached thread pool if virtual threads are not supported.
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		if(newVirtualThreadPerTaskExecutor != null) {
+			try {
+				return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+			} catch(Exception e) {
+				e.printStackTrace();
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * @param virtual - boolean for whether or not to run tasks on virtual threads
+	 * @return executor running each task on a virtual thread, or a cached thread pool.
+	 */
+	public static ExecutorService newExecutor(boolean virtual) {
+		return virtual ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+	}
+
+	private static Method findVirtualThreadFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch(NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Additive increase, multiplicative decrease controller for a database's writers. 
+ * Once per interval it compares the drive's write latency, in milliseconds per 
+ * megabyte, against the best latency seen so far, and the machine's load average 
+ * against the amount of cores. While neither is too high, a writer is added and 
+ * the pause between chunks is shortened by a step. As soon as either is too high, 
+ * the writers are halved and the pause is doubled, which leaves the cores to 
+ * whatever else the machine is doing, e.g. capturing camera frames.
+ * <br />
+ * The latency baseline drifts up slowly so that it follows a drive that
+ * gets slower as it heats up or fills.
+ *
+ * @author Jack Mead
+ */
+public class JSMWriteController {
+
+	private int minWriters;
+	private int maxWriters;
+	private int minWriteSpeed;
+	private int maxWriteSpeed;
+	private int writeSpeedStep;
+
+	/**
+	 * Latency, as a multiple of the baseline, above which the drive is congested
+	 */
+	private double latencyTolerance;
+
+	/**
+	 * Load average per core above which the machine is busy
+	 */
+	private double maxLoad;
+
+	private long interval;
+	private Path loadAverage;
+
+	private int writers;
+	private int writeSpeed;
+	private double baseline;
+	private long intervalBytes;
+	private long intervalNanos;
+	private long lastAdjustment;
+	private double lastLatency;
+	private double lastLoad;
+
+	/**
+	 * @param minWriters - fewest concurrent writers
+	 * @param maxWriters - most concurrent writers
+	 * @param minWriteSpeed - shortest milliseconds paused between chunks
+	 * @param maxWriteSpeed - longest milliseconds paused between chunks
+	 */
+	public JSMWriteController(int minWriters, int maxWriters, int minWriteSpeed, int maxWriteSpeed) {
+		this.minWriters = Math.max(1, minWriters);
+		this.maxWriters = Math.max(this.minWriters, maxWriters);
+		this.minWriteSpeed = Math.max(0, minWriteSpeed);
+		this.maxWriteSpeed = Math.max(this.minWriteSpeed, maxWriteSpeed);
+		this.writeSpeedStep = 5;
+		this.latencyTolerance = 1.5;
+		this.maxLoad = 0.8;
+		this.interval = 1000;
+		this.loadAverage = Paths.get("/proc/loadavg");
+		this.writers = this.minWriters;
+		this.writeSpeed = this.maxWriteSpeed;
+		this.baseline = 0;
+		this.intervalBytes = 0;
+		this.intervalNanos = 0;
+		this.lastAdjustment = System.currentTimeMillis();
+		this.lastLatency = 0;
+		this.lastLoad = 0;
+	}
+
+	/**
+	 * @param tolerance - latency, as a multiple of the best latency seen, above which the drive is congested
+	 */
+	public synchronized void setLatencyTolerance(double tolerance) {
+		this.latencyTolerance = tolerance;
+	}
+
+	/**
+	 * @param load - load average per core above which the machine is too busy for more writers
+	 */
+	public synchronized void setMaxLoad(double load) {
+		this.maxLoad = load;
+	}
+
+	/**
+	 * @param intervalms - milliseconds between adjustments
+	 */
+	public synchronized void setInterval(long intervalms) {
+		this.interval = intervalms;
+	}
+
+	/**
+	 * @param step - milliseconds the pause between chunks is shortened by per adjustment
+	 */
+	public synchronized void setWriteSpeedStep(int step) {
+		this.writeSpeedStep = step;
+	}
+
+	public synchronized int getWriters() {
+		return this.writers;
+	}
+
+	public synchronized int getWriteSpeed() {
+		return this.writeSpeed;
+	}
+
+	/**
+	 * @return latency of the last interval in milliseconds per megabyte.
+	 */
+	public synchronized double getLatency() {
+		return this.lastLatency;
+	}
+
+	/**
+	 * @return load average per core read at the last adjustment.
+	 */
+	public synchronized double getLoad() {
+		return this.lastLoad;
+	}
+
+	/**
+	 * Records a chunk write.
+	 * @param bytes - bytes written
+	 * @param nanos - nanoseconds the write took
+	 * @return boolean indicating if the writers or write speed have changed.
+	 */
+	public synchronized boolean record(long bytes, long nanos) {
+		this.intervalBytes += bytes;
+		this.intervalNanos += nanos;
+		
+		long now = System.currentTimeMillis();
+		if(now - this.lastAdjustment < this.interval || this.intervalBytes == 0) {
+			return false;
+		}
+		
+		double latency = (this.intervalNanos / 1000000.0) / (this.intervalBytes / 1048576.0);
+		this.lastLatency = latency;
+		this.lastLoad = this.readLoad();
+		this.intervalBytes = 0;
+		this.intervalNanos = 0;
+		this.lastAdjustment = now;
+		
+		if(this.baseline == 0 || latency < this.baseline) {
+			this.baseline = latency;
+		} else {
+			this.baseline *= 1.01;
+		}
+		
+		int writers = this.writers;
+		int writeSpeed = this.writeSpeed;
+		if(latency > this.baseline * this.latencyTolerance || this.lastLoad > this.maxLoad) {
+			this.writers = Math.max(this.minWriters, this.writers / 2);
+			this.writeSpeed = Math.min(this.maxWriteSpeed, Math.max(1, this.writeSpeed * 2));
+		} else {
+			this.writers = Math.min(this.maxWriters, this.writers + 1);
+			this.writeSpeed = Math.max(this.minWriteSpeed, this.writeSpeed - this.writeSpeedStep);
+		}
+		return writers != this.writers || writeSpeed != this.writeSpeed;
+	}
+
+	/**
+	 * Reads the one minute load average divided by the amount of cores.
+	 * @return load per core, or 0 if it cannot be read.
+	 */
+	private double readLoad() {
+		try {
+			String line = new String(Files.readAllBytes(this.loadAverage)).trim();
+			double load = Double.parseDouble(line.split(" ")[0]);
+			return load / Runtime.getRuntime().availableProcessors();
+		} catch(IOException | RuntimeException e) {
+			return 0;
+		}
+	}
+
+}
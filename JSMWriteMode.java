@@ -0,0 +1,23 @@
+/**
+ * How a database schedules the writes of the files queued to it.
+ *
+ * @author Jack Mead
+ */
+public enum JSMWriteMode {
+
+	/**
+	 * Up to maxWriters batches are written at once, each by its own writer, so the
+	 * chunks of different files are interleaved on the drive.
+	 */
+	CONCURRENT,
+
+	/**
+	 * A single writer takes the waiting batches one at a time, in the weighted fair order of
+	 * the write queue, up to the run size, and writes their files one after another in the
+	 * order they were submitted. Each batch is committed once its last file is written. The 
+	 * chunks of different files are never interleaved, but where the files land on the 
+	 * drive is up to its filesystem.
+	 */
+	SEQUENTIAL
+
+}
@@ -0,0 +1,209 @@
+import java.util.EnumMap;
+import java.util.LinkedList;
+
+/**
+ * Weighted fair queue of the writes waiting for a writer of a database, one queue per
+ * priority class. Each write is stamped with a virtual finish time when it is queued:
+ * its class' previous finish time, or the current virtual time if the class was idle,
+ * plus its size divided by the class weight. The write with the smallest finish time
+ * goes next and the virtual time moves up to it (self-clocked fair queuing). A class
+ * with twice the weight gets through twice the bytes while both have writes waiting,
+ * and an urgent write queued behind a long backlog of bulk writes only waits for about
+ * its own weighted share instead of the whole backlog.
+ * <br />
+ * Every class also has a limit on how many writes may wait, so a class that is queuing
+ * faster than the drive writes is turned away instead of piling up memory.
+ *
+ * @author Jack Mead
+ */
+public class JSMWriteQueue<T> {
+
+	private EnumMap<JSMPriority, LinkedList<Waiting<T>>> queues;
+	private EnumMap<JSMPriority, Double> lastFinish;
+	private EnumMap<JSMPriority, Integer> limits;
+	private EnumMap<JSMPriority, Stats> stats;
+	private double virtualTime;
+
+	/**
+	 * @param limit - most writes that may wait in each class
+	 */
+	public JSMWriteQueue(int limit) {
+		this.queues = new EnumMap<JSMPriority, LinkedList<Waiting<T>>>(JSMPriority.class);
+		this.lastFinish = new EnumMap<JSMPriority, Double>(JSMPriority.class);
+		this.limits = new EnumMap<JSMPriority, Integer>(JSMPriority.class);
+		this.stats = new EnumMap<JSMPriority, Stats>(JSMPriority.class);
+		for(JSMPriority priority : JSMPriority.values()) {
+			this.queues.put(priority, new LinkedList<Waiting<T>>());
+			this.lastFinish.put(priority, 0.0);
+			this.limits.put(priority, limit);
+			this.stats.put(priority, new Stats());
+		}
+		this.virtualTime = 0;
+	}
+
+	/**
+	 * @param priority - class to limit
+	 * @param limit - most writes that may wait in the class
+	 */
+	public synchronized void setLimit(JSMPriority priority, int limit) {
+		this.limits.put(priority, limit);
+	}
+
+	public synchronized int getLimit(JSMPriority priority) {
+		return this.limits.get(priority);
+	}
+
+	/**
+	 * @return boolean indicating if the class has room for another write.
+	 */
+	public synchronized boolean canOffer(JSMPriority priority) {
+		return this.queues.get(priority).size() < this.limits.get(priority);
+	}
+
+	/**
+	 * Queues a write.
+	 * @param priority - class of the write
+	 * @param bytes - size of the write, the cost it is charged
+	 * @param item - the write
+	 * @return boolean indicating if the write was queued. False if its class is full.
+	 */
+	public synchronized boolean offer(JSMPriority priority, long bytes, T item) {
+		Stats s = this.stats.get(priority);
+		if(!this.canOffer(priority)) {
+			s.rejected++;
+			return false;
+		}
+
+		LinkedList<Waiting<T>> queue = this.queues.get(priority);
+		double start = Math.max(this.virtualTime, this.lastFinish.get(priority));
+		double finish = start + (double) Math.max(1, bytes) / priority.getWeight();
+		this.lastFinish.put(priority, finish);
+		queue.add(new Waiting<T>(item, bytes, finish));
+
+		s.queued++;
+		s.queuedBytes += bytes;
+		return true;
+	}
+
+	/**
+	 * Takes the next write, the one with the smallest virtual finish time over all classes.
+	 * @return the write, or null if none is waiting.
+	 */
+	public synchronized T poll() {
+		JSMPriority next = null;
+		for(JSMPriority priority : JSMPriority.values()) {
+			Waiting<T> head = this.queues.get(priority).peek();
+			if(head != null && (next == null || head.finish < this.queues.get(next).peek().finish)) {
+				next = priority;
+			}
+		}
+		if(next == null) { return null; }
+
+		Waiting<T> waiting = this.queues.get(next).poll();
+		this.virtualTime = waiting.finish;
+
+		long wait = System.nanoTime() - waiting.since;
+		Stats s = this.stats.get(next);
+		s.queued--;
+		s.queuedBytes -= waiting.bytes;
+		s.dispatched++;
+		s.waitNanos += wait;
+		s.maxWaitNanos = Math.max(s.maxWaitNanos, wait);
+		return waiting.item;
+	}
+
+	/**
+	 * Removes every waiting write, e.g. when the database is drained.
+	 * @return the writes, in the order they were queued within each class.
+	 */
+	public synchronized LinkedList<T> clear() {
+		LinkedList<T> items = new LinkedList<T>();
+		for(JSMPriority priority : JSMPriority.values()) {
+			for(Waiting<T> waiting : this.queues.get(priority)) {
+				items.add(waiting.item);
+			}
+			this.queues.get(priority).clear();
+			this.stats.get(priority).queued = 0;
+			this.stats.get(priority).queuedBytes = 0;
+		}
+		return items;
+	}
+
+	/**
+	 * @return amount of writes waiting over every class.
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for(LinkedList<Waiting<T>> queue : this.queues.values()) {
+			size += queue.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return amount of writes of the class waiting for a writer.
+	 */
+	public synchronized int getQueued(JSMPriority priority) {
+		return this.stats.get(priority).queued;
+	}
+
+	/**
+	 * @return bytes of the class waiting for a writer.
+	 */
+	public synchronized long getQueuedBytes(JSMPriority priority) {
+		return this.stats.get(priority).queuedBytes;
+	}
+
+	/**
+	 * @return amount of writes of the class that have been handed a writer.
+	 */
+	public synchronized long getDispatched(JSMPriority priority) {
+		return this.stats.get(priority).dispatched;
+	}
+
+	/**
+	 * @return amount of writes of the class turned away because the class was full.
+	 */
+	public synchronized long getRejected(JSMPriority priority) {
+		return this.stats.get(priority).rejected;
+	}
+
+	/**
+	 * @return average milliseconds the writes of the class waited for a writer.
+	 */
+	public synchronized double getAverageWait(JSMPriority priority) {
+		Stats s = this.stats.get(priority);
+		return s.dispatched == 0 ? 0 : s.waitNanos / 1000000.0 / s.dispatched;
+	}
+
+	/**
+	 * @return longest milliseconds a write of the class waited for a writer.
+	 */
+	public synchronized double getMaxWait(JSMPriority priority) {
+		return this.stats.get(priority).maxWaitNanos / 1000000.0;
+	}
+
+	private static class Waiting<T> {
+		private T item;
+		private long bytes;
+		private double finish;
+		private long since;
+
+		private Waiting(T item, long bytes, double finish) {
+			this.item = item;
+			this.bytes = bytes;
+			this.finish = finish;
+			this.since = System.nanoTime();
+		}
+	}
+
+	private static class Stats {
+		private int queued;
+		private long queuedBytes;
+		private long dispatched;
+		private long rejected;
+		private long waitNanos;
+		private long maxWaitNanos;
+	}
+
+}